@@ -11,6 +11,7 @@ plugins {
     id("org.jetbrains.intellij") version "1.17.4"
     id("org.jetbrains.kotlin.jvm") version "1.9.21"
     id("org.jetbrains.changelog") version "2.2.1"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = properties("pluginGroup").get()
@@ -61,6 +62,14 @@ dependencies {
     implementation("org.apache.lucene:lucene-queryparser:8.11.1")
     // 添加SLF4J提供者解决日志警告
     implementation("org.slf4j:slf4j-simple:2.0.9")
+    testImplementation("junit:junit:4.13.2")
+}
+
+// JS桥编码基准测试：./gradlew jmh，源码在 src/jmh/java
+jmh {
+    warmupIterations.set(2)
+    iterations.set(5)
+    fork.set(1)
 }
 
 tasks {
@@ -0,0 +1,119 @@
+package com.voidmuse.idea.plugin.bridge;
+
+import cn.hutool.json.JSONUtil;
+import com.voidmuse.idea.plugin.call.CallJavaCallbackReq;
+import com.voidmuse.idea.plugin.call.CallJavaReq;
+import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JS桥请求/响应编码路径的基准：Base64、JSON序列化、回调转义
+ *
+ * @author zhangdaguan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BridgeCodecBenchmark {
+
+    /**
+     * 负载大小（字符数）：单行补全、普通文件、大文件
+     */
+    @Param({"256", "16384", "262144"})
+    public int payloadSize;
+
+    private String payload;
+    private List<String> chunks;
+    private CallJavaScriptReq embeddingsReq;
+    private CallJavaCallbackReq callbackReq;
+    private String encodedRequest;
+
+    @Setup
+    public void setup() {
+        payload = randomCode(payloadSize, new Random(7));
+
+        chunks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            chunks.add(payload.substring(0, Math.max(1, payload.length() / 8)));
+        }
+
+        Map<String, Object> arg = new HashMap<>();
+        arg.put("input", BridgeCodec.base64(chunks));
+        arg.put("requestId", "bench-request");
+        embeddingsReq = new CallJavaScriptReq("getEmbeddings", arg);
+
+        Map<String, Object> callbackArg = new HashMap<>();
+        callbackArg.put("response", BridgeCodec.escapeResponse(payload));
+        callbackReq = new CallJavaCallbackReq("bench-request", callbackArg);
+
+        Map<String, Object> requestArg = new HashMap<>();
+        requestArg.put("content", payload);
+        encodedRequest = JSONUtil.toJsonStr(new CallJavaReq("writeFile", "bench-request", requestArg));
+    }
+
+    @Benchmark
+    public String base64Encode() {
+        return BridgeCodec.base64(payload);
+    }
+
+    @Benchmark
+    public String encodeEmbeddingsRequest() {
+        Map<String, Object> arg = new HashMap<>();
+        arg.put("input", BridgeCodec.base64(chunks));
+        arg.put("requestId", "bench-request");
+        return BridgeCodec.encodeCallJavaScript(new CallJavaScriptReq("getEmbeddings", arg));
+    }
+
+    @Benchmark
+    public String encodePrebuiltRequest() {
+        return BridgeCodec.encodeCallJavaScript(embeddingsReq);
+    }
+
+    @Benchmark
+    public String escapeResponse() {
+        return BridgeCodec.escapeResponse(payload);
+    }
+
+    @Benchmark
+    public String encodeCallback() {
+        Map<String, Object> arg = new HashMap<>();
+        arg.put("response", BridgeCodec.escapeResponse(payload));
+        return BridgeCodec.encodeCallJavaCallback(new CallJavaCallbackReq("bench-request", arg));
+    }
+
+    @Benchmark
+    public String encodePrebuiltCallback() {
+        return BridgeCodec.encodeCallJavaCallback(callbackReq);
+    }
+
+    @Benchmark
+    public CallJavaReq decodeRequest() {
+        return BridgeCodec.decodeRequest(encodedRequest);
+    }
+
+    /**
+     * 生成带引号、反斜杠、换行和中文的伪代码，覆盖转义的各种分支
+     */
+    static String randomCode(int size, Random random) {
+        String[] tokens = {"public ", "return ", "\"text\" ", "a\\b ", "\n", "\t", "{ ", "} ", "变量 ", "x = y; ", "'q' "};
+        StringBuilder builder = new StringBuilder(size + 16);
+        while (builder.length() < size) {
+            builder.append(tokens[random.nextInt(tokens.length)]);
+        }
+        return builder.substring(0, size);
+    }
+}
@@ -0,0 +1,80 @@
+package com.voidmuse.idea.plugin.bridge;
+
+import com.voidmuse.idea.plugin.call.CallJavaReq;
+import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过进程内替身测完整的往返：请求编码 -> 替身应答 -> 应答JSON解码 -> 按requestId找回调
+ *
+ * @author zhangdaguan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InProcessBridgeBenchmark {
+
+    @Param({"256", "1536"})
+    public int embeddingDimension;
+
+    private final Map<String, CompletableFuture<CallJavaReq>> pending = new ConcurrentHashMap<>();
+    private InProcessJsBridge bridge;
+    private String chunk;
+
+    @Setup
+    public void setup() {
+        bridge = new InProcessJsBridge(reply -> {
+            CompletableFuture<CallJavaReq> future = pending.remove(reply.getArg().get("requestId").toString());
+            if (future != null) {
+                future.complete(reply);
+            }
+        }).embeddingDimension(embeddingDimension).completionText("return a + b;");
+        chunk = BridgeCodecBenchmark.randomCode(2048, new Random(7));
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.shutdown();
+    }
+
+    @Benchmark
+    public Object embeddingsRoundTrip() throws Exception {
+        Map<String, Object> arg = new HashMap<>();
+        arg.put("input", BridgeCodec.base64(List.of(chunk)));
+        return roundTrip("getEmbeddings", arg);
+    }
+
+    @Benchmark
+    public Object completionRoundTrip() throws Exception {
+        Map<String, Object> arg = new HashMap<>();
+        arg.put("prefix", BridgeCodec.base64(chunk));
+        arg.put("suffix", BridgeCodec.base64("}"));
+        return roundTrip("codeCompletion", arg);
+    }
+
+    private Object roundTrip(String methodName, Map<String, Object> arg) throws Exception {
+        String requestId = UUID.randomUUID().toString();
+        arg.put("requestId", requestId);
+        CompletableFuture<CallJavaReq> future = new CompletableFuture<>();
+        pending.put(requestId, future);
+        bridge.callJavaScript(new CallJavaScriptReq(methodName, arg));
+        return future.get(10, TimeUnit.SECONDS).getArg().get("data");
+    }
+}
@@ -3,6 +3,8 @@ package com.voidmuse.idea.plugin.activity;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManagerListener;
 import com.intellij.ui.jcef.JBCefBrowser;
+import com.voidmuse.idea.plugin.bridge.InProcessJsBridge;
+import com.voidmuse.idea.plugin.bridge.JsBridge;
 import com.voidmuse.idea.plugin.codebase.vector.LuceneVectorStore;
 import com.voidmuse.idea.plugin.service.ProjectBeanService;
 import org.jetbrains.annotations.NotNull;
@@ -18,6 +20,10 @@ public class PluginProjectManagerListener implements ProjectManagerListener {
             browser.getJBCefClient().dispose();
             browser.dispose();
         }
+        JsBridge bridge = ProjectBeanService.getInstance(project).getJsBridge();
+        if (bridge instanceof InProcessJsBridge inProcessJsBridge) {
+            inProcessJsBridge.shutdown();
+        }
 
         LuceneVectorStore.getInstance(project).close();
     }
@@ -7,6 +7,7 @@ import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
 import com.intellij.openapi.vfs.VirtualFileManager;
+import com.voidmuse.idea.plugin.autocomplete.CompletionAutoTrigger;
 import com.voidmuse.idea.plugin.codebase.CheckAutoIndexingTask;
 import com.voidmuse.idea.plugin.codebase.CodeBaseFileListener;
 import com.voidmuse.idea.plugin.codebase.vector.LuceneVectorStore;
@@ -31,6 +32,9 @@ public class PluginStartupActivity implements StartupActivity, Disposable, DumbA
             PluginSelectionListener listener = new PluginSelectionListener();
             EditorFactory.getInstance().getEventMulticaster().addSelectionListener(listener, this);
 
+            //输入时自动触发补全
+            CompletionAutoTrigger.getInstance(project).start();
+
             //注册文件监听
             project.getMessageBus().connect().subscribe(VirtualFileManager.VFS_CHANGES, new CodeBaseFileListener(project));
 
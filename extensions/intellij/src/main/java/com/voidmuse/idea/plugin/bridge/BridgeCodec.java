@@ -0,0 +1,57 @@
+package com.voidmuse.idea.plugin.bridge;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.json.JSONUtil;
+import com.voidmuse.idea.plugin.call.CallJavaCallbackReq;
+import com.voidmuse.idea.plugin.call.CallJavaReq;
+import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
+
+import java.util.List;
+
+/**
+ * JS桥两端的编码与解码，集中在这里方便做基准测试。不依赖IDEA平台类。
+ *
+ * @author zhangdaguan
+ */
+public final class BridgeCodec {
+
+    private BridgeCodec() {
+    }
+
+    /**
+     * 生成执行前端callJavaScript的脚本
+     */
+    public static String encodeCallJavaScript(CallJavaScriptReq req) {
+        return "callJavaScript('" + JSONUtil.toJsonStr(req) + "')";
+    }
+
+    /**
+     * 生成执行前端callJavaCallback的脚本
+     */
+    public static String encodeCallJavaCallback(CallJavaCallbackReq req) {
+        return "callJavaCallback('" + JSONUtil.toJsonStr(req) + "')";
+    }
+
+    /**
+     * 响应会先被前端JSON.parse一次，再作为字符串解析一次，这里提前处理两层解析的转义符
+     */
+    public static String escapeResponse(String response) {
+        String transResponse = JSONUtil.quote(response);
+        if (transResponse.length() >= 2) {
+            transResponse = transResponse.substring(1, transResponse.length() - 1);
+        }
+        return transResponse;
+    }
+
+    public static CallJavaReq decodeRequest(String request) {
+        return JSONUtil.toBean(request, CallJavaReq.class);
+    }
+
+    public static String base64(String content) {
+        return Base64.encode(content);
+    }
+
+    public static List<String> base64(List<String> contents) {
+        return contents.stream().map(Base64::encode).toList();
+    }
+}
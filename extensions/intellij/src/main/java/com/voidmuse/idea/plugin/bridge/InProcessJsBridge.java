@@ -0,0 +1,133 @@
+package com.voidmuse.idea.plugin.bridge;
+
+import cn.hutool.json.JSONUtil;
+import com.voidmuse.idea.plugin.call.CallJavaCallbackReq;
+import com.voidmuse.idea.plugin.call.CallJavaReq;
+import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 进程内的前端替身，用于无界面压测桥接、embedding和补全链路。
+ * getEmbeddings和codeCompletion按配置的延迟返回固定大小的结果，应答和真实前端一样先编码成JSON再解码，
+ * 通过replyHandler交回Java侧（通常是CallJavaScriptService.handleCallback）。其他方法只计数不应答。
+ *
+ * @author zhangdaguan
+ */
+public class InProcessJsBridge implements JsBridge {
+
+    private final Consumer<CallJavaReq> replyHandler;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random(42);
+
+    private volatile long latencyMillis = 0;
+    private volatile int embeddingDimension = 1536;
+    private volatile String completionText = "return result;";
+
+    private final AtomicLong scriptCalls = new AtomicLong();
+    private final AtomicLong callbackCalls = new AtomicLong();
+    private final AtomicLong callbackBytes = new AtomicLong();
+
+    public InProcessJsBridge(Consumer<CallJavaReq> replyHandler) {
+        this(replyHandler, Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "VoidMuse-InProcessJsBridge");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public InProcessJsBridge(Consumer<CallJavaReq> replyHandler, ScheduledExecutorService scheduler) {
+        this.replyHandler = replyHandler;
+        this.scheduler = scheduler;
+    }
+
+    public InProcessJsBridge latencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    public InProcessJsBridge embeddingDimension(int embeddingDimension) {
+        this.embeddingDimension = embeddingDimension;
+        return this;
+    }
+
+    public InProcessJsBridge completionText(String completionText) {
+        this.completionText = completionText;
+        return this;
+    }
+
+    @Override
+    public void callJavaScript(CallJavaScriptReq req) {
+        scriptCalls.incrementAndGet();
+        // 与真实实现一样经过一次编码，保证压测包含序列化开销
+        BridgeCodec.encodeCallJavaScript(req);
+        Map<String, Object> arg = req.getArg();
+        Object requestId = arg == null ? null : arg.get("requestId");
+        if (requestId == null) {
+            return;
+        }
+        Object data;
+        if ("getEmbeddings".equals(req.getMethodName())) {
+            Object input = arg.get("input");
+            int count = input instanceof List<?> list ? list.size() : 1;
+            data = JSONUtil.toJsonStr(randomEmbeddings(count));
+        } else if ("codeCompletion".equals(req.getMethodName())) {
+            data = completionText;
+        } else {
+            return;
+        }
+        Map<String, Object> replyArg = new HashMap<>();
+        replyArg.put("requestId", requestId.toString());
+        replyArg.put("data", data);
+        String reply = JSONUtil.toJsonStr(new CallJavaReq("handleJsCallback", null, replyArg));
+        Runnable deliver = () -> replyHandler.accept(BridgeCodec.decodeRequest(reply));
+        if (latencyMillis > 0) {
+            scheduler.schedule(deliver, latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.execute(deliver);
+        }
+    }
+
+    @Override
+    public void callJavaCallback(CallJavaCallbackReq req) {
+        callbackCalls.incrementAndGet();
+        callbackBytes.addAndGet(BridgeCodec.encodeCallJavaCallback(req).length());
+    }
+
+    public long getScriptCalls() {
+        return scriptCalls.get();
+    }
+
+    public long getCallbackCalls() {
+        return callbackCalls.get();
+    }
+
+    public long getCallbackBytes() {
+        return callbackBytes.get();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private List<double[]> randomEmbeddings(int count) {
+        List<double[]> embeddings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double[] vector = new double[embeddingDimension];
+            for (int j = 0; j < vector.length; j++) {
+                vector[j] = random.nextDouble() - 0.5;
+            }
+            embeddings.add(vector);
+        }
+        return embeddings;
+    }
+}
@@ -0,0 +1,39 @@
+package com.voidmuse.idea.plugin.bridge;
+
+import com.intellij.ui.jcef.JBCefBrowser;
+import com.voidmuse.idea.plugin.call.CallJavaCallbackReq;
+import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
+import com.voidmuse.idea.plugin.factory.DataSchemeHandlerFactory;
+
+/**
+ * 基于JBCefBrowser.executeJavaScript的实现，调用方负责在EDT中调用
+ *
+ * @author zhangdaguan
+ */
+public class JcefJsBridge implements JsBridge {
+
+    private final JBCefBrowser browser;
+
+    public JcefJsBridge(JBCefBrowser browser) {
+        this.browser = browser;
+    }
+
+    public JBCefBrowser getBrowser() {
+        return browser;
+    }
+
+    @Override
+    public void callJavaScript(CallJavaScriptReq req) {
+        browser.getCefBrowser().executeJavaScript(BridgeCodec.encodeCallJavaScript(req), null, 0);
+    }
+
+    @Override
+    public void callJavaCallback(CallJavaCallbackReq req) {
+        browser.getCefBrowser().executeJavaScript(BridgeCodec.encodeCallJavaCallback(req), null, 0);
+    }
+
+    @Override
+    public boolean supportsBlobFetch() {
+        return DataSchemeHandlerFactory.isRegistered();
+    }
+}
@@ -0,0 +1,33 @@
+package com.voidmuse.idea.plugin.bridge;
+
+import com.voidmuse.idea.plugin.call.CallJavaCallbackReq;
+import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
+
+/**
+ * Java到前端的发送通道。默认实现是{@link JcefJsBridge}，
+ * 压测或无界面环境下可以换成{@link InProcessJsBridge}，不依赖JBCefBrowser。
+ * <p>
+ * 前端到Java的方向仍然是CefMessageRouter -> ProtocDispatchService.onQuery，
+ * 进程内实现直接把应答交给回调处理。
+ *
+ * @author zhangdaguan
+ */
+public interface JsBridge {
+
+    /**
+     * 调用前端的callJavaScript方法
+     */
+    void callJavaScript(CallJavaScriptReq req);
+
+    /**
+     * 把callJava请求的结果回传给前端的callJavaCallback方法
+     */
+    void callJavaCallback(CallJavaCallbackReq req);
+
+    /**
+     * 是否支持通过scheme handler读取blob，不支持时大响应也直接内联返回
+     */
+    default boolean supportsBlobFetch() {
+        return false;
+    }
+}
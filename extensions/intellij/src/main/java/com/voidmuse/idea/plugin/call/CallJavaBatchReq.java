@@ -0,0 +1,26 @@
+package com.voidmuse.idea.plugin.call;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * batchCallJava的参数，一次CefQuery携带多个CallJavaReq
+ */
+@Data
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class CallJavaBatchReq {
+
+    private List<CallJavaReq> requests;
+
+    /**
+     * true: 每个子请求完成后按自己的requestId单独回调；false: 全部完成后按批次requestId一次性回调
+     */
+    private Boolean stream;
+
+}
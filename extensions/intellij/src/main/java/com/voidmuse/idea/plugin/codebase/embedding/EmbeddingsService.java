@@ -7,7 +7,9 @@ import cn.hutool.json.JSONUtil;
 import com.google.common.collect.Lists;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -17,6 +19,7 @@ import com.voidmuse.idea.plugin.codebase.vector.LuceneVectorStore;
 import com.voidmuse.idea.plugin.codebase.vector.Word;
 import com.voidmuse.idea.plugin.service.CallJavaScriptService;
 import com.voidmuse.idea.plugin.service.FileService;
+import com.voidmuse.idea.plugin.util.CancellationUtils;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.Nullable;
@@ -37,10 +40,18 @@ public final class EmbeddingsService {
     }
 
     public List<double[]> getEmbeddings(List<ChunkFileInfo> chunks) {
+        return getEmbeddings(chunks, CallJavaScriptService.Priority.NORMAL);
+    }
+
+    /**
+     * 索引构建时使用BULK优先级，补全请求等待期间会让路
+     */
+    public List<double[]> getEmbeddings(List<ChunkFileInfo> chunks, CallJavaScriptService.Priority priority) {
         if (CollectionUtils.isEmpty(chunks)) {
             return Lists.newArrayList();
         }
 
+        String requestId = null;
         try {
             Map<String, Object> paramMap = new HashMap<>();
             List<String> encodeMessages = chunks.stream()
@@ -49,8 +60,8 @@ public final class EmbeddingsService {
 
             CompletableFuture<List<double[]>> future = new CompletableFuture<>();
 
-            CallJavaScriptService.getInstance(project).callJavaScriptAsync(
-                    "getEmbeddings", paramMap, new CallJavaScriptService.Callback() {
+            requestId = CallJavaScriptService.getInstance(project).callJavaScriptAsync(
+                    "getEmbeddings", paramMap, priority, new CallJavaScriptService.Callback() {
                         @Override
                         public void run(Map<String, Object> args) {
                             try {
@@ -75,11 +86,16 @@ public final class EmbeddingsService {
                     }
             );
 
-            // 直接使用future的timeout机制
-            return future.get(30, TimeUnit.SECONDS);
+            // 等待结果的同时响应请求取消
+            return CancellationUtils.awaitWithCheckCanceled(future, 30, TimeUnit.SECONDS);
         } catch (TimeoutException e) {
             LOG.warn("Embedding request timed out after 30 seconds");
+            // 可能仍在队列中排队，移除后不再发送
+            CallJavaScriptService.getInstance(project).cancelCallback(requestId);
             return Lists.newArrayList();
+        } catch (ProcessCanceledException e) {
+            CallJavaScriptService.getInstance(project).cancelCallback(requestId);
+            throw e;
         } catch (Exception e) {
             LOG.error("getEmbeddings error, ", e);
         }
@@ -152,6 +168,7 @@ public final class EmbeddingsService {
             FileService fileService = FileService.getInstance(project);
             List<FindNearFileInfo> processedResults = new ArrayList<>();
             for (FindNearFileInfo info : results) {
+                ProgressManager.checkCanceled();
                 String content = fileService.getFileContentRange(info.getPath(), info.getStartLine(), info.getEndLine());
                 if (StringUtils.isNotBlank(content)) {
                     // Base64编码内容
@@ -161,6 +178,8 @@ public final class EmbeddingsService {
             }
 
             return processedResults;
+        } catch (ProcessCanceledException e) {
+            throw e;
         } catch (Exception e) {
             LOG.error("buildWithCodebaseContext error", e);
         }
@@ -178,6 +197,8 @@ public final class EmbeddingsService {
                 if (indicator != null) {
                     indicator.setFraction((double) i / checkedFiles.size());
                 }
+            } catch (ProcessCanceledException e) {
+                throw e;
             } catch (Throwable t) {
                 LOG.error("createEmbeddings error, ", t);
             }
@@ -199,7 +220,7 @@ public final class EmbeddingsService {
         // 获取嵌入向量
         List<double[]> embeddings = new ArrayList<>();
         Lists.partition(chunks, 1).forEach(list -> {
-            List<double[]> result = getEmbeddings(list);
+            List<double[]> result = getEmbeddings(list, CallJavaScriptService.Priority.BULK);
             if (CollectionUtils.isNotEmpty(result)) {
                 embeddings.addAll(result);
             }
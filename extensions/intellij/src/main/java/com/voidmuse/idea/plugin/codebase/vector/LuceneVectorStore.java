@@ -2,6 +2,7 @@ package com.voidmuse.idea.plugin.codebase.vector;
 
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.io.FileUtil;
 import com.voidmuse.idea.plugin.VoidMusePlugin;
@@ -228,8 +229,9 @@ public final class LuceneVectorStore {
 
         vectorQuery = padOrTruncateVector(vectorQuery, VECTOR_DIMENSION);
 
+        DirectoryReader reader = null;
         try {
-            DirectoryReader reader = DirectoryReader.open(indexWriter);
+            reader = DirectoryReader.open(indexWriter);
             IndexSearcher searcher = new IndexSearcher(reader);
 
             // 准备文本查询
@@ -265,12 +267,16 @@ public final class LuceneVectorStore {
                 results = vectorOnlySearch(searcher, knnQuery, k);
             }
 
-            reader.close();
             return results;
 
         } catch (IOException e) {
             LOG.error("Error during hybrid search", e);
             throw e;
+        } finally {
+            // 请求取消时也要释放reader
+            if (reader != null) {
+                reader.close();
+            }
         }
     }
 
@@ -322,6 +328,7 @@ public final class LuceneVectorStore {
 
         List<ScoredDocument> scoredDocs = new ArrayList<>();
         for (int docId : allDocs) {
+            ProgressManager.checkCanceled();
             float normalizedTextScore = textScores.getOrDefault(docId, 0f);
             float normalizedVectorScore = vectorScores.getOrDefault(docId, 0f);
 
@@ -337,6 +344,7 @@ public final class LuceneVectorStore {
         // 转换为结果列表
         List<FindNearFileInfo> results = new ArrayList<>();
         for (int i = 0; i < Math.min(k, scoredDocs.size()); i++) {
+            ProgressManager.checkCanceled();
             ScoredDocument sd = scoredDocs.get(i);
             Document doc = searcher.doc(sd.docId);
 
@@ -432,8 +440,7 @@ public final class LuceneVectorStore {
      * @return 如果文件已被索引则返回true，否则返回false
      */
     public boolean hasIndex(String path) {
-        try {
-            DirectoryReader reader = DirectoryReader.open(indexWriter);
+        try (DirectoryReader reader = DirectoryReader.open(indexWriter)) {
             IndexSearcher searcher = new IndexSearcher(reader);
 
             // 创建查询
@@ -443,10 +450,7 @@ public final class LuceneVectorStore {
             TopDocs results = searcher.search(query, 1);
 
             // 检查是否有匹配结果
-            boolean exists = results.scoreDocs.length > 0;
-
-            reader.close();
-            return exists;
+            return results.scoreDocs.length > 0;
         } catch (IOException e) {
             LOG.warn("Failed to check if path is indexed: " + path, e);
             return false;
@@ -461,8 +465,7 @@ public final class LuceneVectorStore {
     public List<String> queryNotExistFilePaths() {
         List<String> retList = new ArrayList<>();
 
-        try {
-            DirectoryReader reader = DirectoryReader.open(indexWriter);
+        try (DirectoryReader reader = DirectoryReader.open(indexWriter)) {
             IndexSearcher searcher = new IndexSearcher(reader);
 
             // 查询所有文档
@@ -479,8 +482,6 @@ public final class LuceneVectorStore {
                 }
             }
 
-            reader.close();
-
             // 去重
             return retList.stream().distinct().collect(Collectors.toList());
         } catch (IOException e) {
@@ -636,6 +637,8 @@ public final class LuceneVectorStore {
                                 public int advance(int target) throws IOException {
                                     docId = target;
                                     while (docId < maxDoc) {
+                                        // 全量扫描向量，前端取消请求后尽快停止
+                                        ProgressManager.checkCanceled();
                                         if (scoreDoc(context, docId) > 0) {
                                             return docId;
                                         }
@@ -9,8 +9,6 @@ import com.knuddels.jtokkit.api.EncodingRegistry;
 import com.knuddels.jtokkit.api.EncodingType;
 import com.knuddels.jtokkit.api.IntArrayList;
 
-import java.util.List;
-
 @Service
 public final class EncodingManager {
 
@@ -36,7 +34,7 @@ public final class EncodingManager {
 
     try {
       // #444: Cl100kParser.split() throws AssertionError "Input is not UTF-8: "
-      return encoding.countTokens(text.replaceAll("<|", "").replaceAll("|>", ""));
+      return encoding.countTokens(removeSpecialTokens(text));
     } catch (Exception | Error ex) {
       LOG.warn("Could not count tokens for: " + text, ex);
       return 0;
@@ -52,18 +50,30 @@ public final class EncodingManager {
    * @return The truncated text.
    */
   public String truncateText(String text, int maxTokens, boolean fromStart) {
-    var textWithSpecialEncodingsRemoved = text.replace(SPECIAL_START, "").replace(SPECIAL_END, "");
+    var textWithSpecialEncodingsRemoved = removeSpecialTokens(text);
+    if (fromStart) {
+      // encode stops at maxTokens, so only the kept head is ever tokenized
+      var result = encoding.encode(textWithSpecialEncodingsRemoved, maxTokens);
+      return result.isTruncated() ? encoding.decode(result.getTokens()) : textWithSpecialEncodingsRemoved;
+    }
     var tokens = encoding.encode(textWithSpecialEncodingsRemoved);
-    int tokensToRetrieve = Math.min(maxTokens, tokens.size());
-    int startIndex = fromStart ? 0 : tokens.size() - tokensToRetrieve;
-    var truncatedList =
-        tokens.boxed().subList(startIndex, startIndex + tokensToRetrieve);
-    return encoding.decode(convertToIntArrayList(truncatedList));
+    if (tokens.size() <= maxTokens) {
+      return textWithSpecialEncodingsRemoved;
+    }
+    var truncated = new IntArrayList(maxTokens);
+    for (int i = tokens.size() - maxTokens; i < tokens.size(); i++) {
+      truncated.add(tokens.get(i));
+    }
+    return encoding.decode(truncated);
   }
 
-  private IntArrayList convertToIntArrayList(List<Integer> tokens) {
-    var result = new IntArrayList(tokens.size());
-    tokens.forEach(result::add);
-    return result;
+  /**
+   * Removes the special token markers that the tokenizer refuses to encode.
+   */
+  public static String removeSpecialTokens(String text) {
+    if (!text.contains(SPECIAL_START) && !text.contains(SPECIAL_END)) {
+      return text;
+    }
+    return text.replace(SPECIAL_START, "").replace(SPECIAL_END, "");
   }
 }
@@ -0,0 +1,78 @@
+package com.voidmuse.idea.plugin.editor;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorCustomElementRenderer;
+import com.intellij.openapi.editor.Inlay;
+import com.intellij.openapi.editor.colors.EditorFontType;
+import com.intellij.openapi.editor.ex.util.EditorUtil;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.ui.JBColor;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.util.List;
+
+/**
+ * 直接绘制diff块中被删除的行，不创建Swing组件，块很多时滚动也不会变慢
+ */
+public class DeletedLinesRenderer implements EditorCustomElementRenderer {
+    private static final Color BACKGROUND = new JBColor(new Color(255, 0, 0, 0x30), new Color(255, 0, 0, 0x30));
+
+    private final Editor editor;
+    private final List<String> lines;
+    private final Font font;
+
+    /**
+     * @param lines 被删除的行，不含换行符
+     */
+    public DeletedLinesRenderer(Editor editor, List<String> lines) {
+        this.editor = editor;
+        String tab = StringUtil.repeat(" ", EditorUtil.getTabSize(editor));
+        this.lines = lines.stream().map(line -> line.replace("\t", tab)).toList();
+        //idea 默认编辑器字体 jetBrains Mono不支持中文显示，按内容选择fallback字体
+        Font editorFont = editor.getColorsScheme().getFont(EditorFontType.PLAIN);
+        this.font = UIUtil.getFontWithFallbackIfNeeded(editorFont, String.join("", this.lines))
+                .deriveFont((float) editor.getColorsScheme().getEditorFontSize());
+    }
+
+    @Override
+    public int calcWidthInPixels(@NotNull Inlay inlay) {
+        FontMetrics metrics = editor.getContentComponent().getFontMetrics(font);
+        int width = 1;
+        for (String line : lines) {
+            width = Math.max(width, metrics.stringWidth(line));
+        }
+        return width;
+    }
+
+    @Override
+    public int calcHeightInPixels(@NotNull Inlay inlay) {
+        return editor.getLineHeight() * Math.max(1, lines.size());
+    }
+
+    @Override
+    public void paint(@NotNull Inlay inlay, @NotNull Graphics g, @NotNull Rectangle targetRegion,
+                      @NotNull TextAttributes textAttributes) {
+        // 背景铺满可见宽度，和新增行的整行高亮对齐
+        Rectangle visibleArea = editor.getScrollingModel().getVisibleArea();
+        int right = Math.max(targetRegion.x + targetRegion.width, visibleArea.x + visibleArea.width);
+        g.setColor(BACKGROUND);
+        g.fillRect(targetRegion.x, targetRegion.y, right - targetRegion.x, targetRegion.height);
+
+        Rectangle clip = g.getClipBounds();
+        int lineHeight = editor.getLineHeight();
+        int ascent = editor.getAscent();
+        g.setColor(JBColor.GRAY);
+        g.setFont(font);
+        for (int i = 0; i < lines.size(); i++) {
+            int y = targetRegion.y + i * lineHeight;
+            // 只画可见的行
+            if (clip != null && (y + lineHeight < clip.y || y > clip.y + clip.height)) {
+                continue;
+            }
+            g.drawString(lines.get(i), targetRegion.x, y + ascent);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.voidmuse.idea.plugin.editor;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.DocumentUtil;
+import com.voidmuse.idea.plugin.editor.diff.DiffLine;
+import com.voidmuse.idea.plugin.editor.diff.DiffLineType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次性应用diff：先按diff行算出所有改动块，再在一个写命令里用bulk模式从后往前替换。
+ * 只产生一个undo步骤，文档监听、PSI重新解析和高亮只在bulk结束时触发一次。
+ */
+public final class DiffApplyEngine {
+
+    /**
+     * 连续的改动行
+     *
+     * @param oldStartLine 在原文档中的起始行
+     * @param newStartLine 应用后在新文档中的起始行，即diff块的位置
+     * @param deletedLines 删除的行，不含换行符
+     * @param addedLines   新增的行，不含换行符
+     */
+    public record Hunk(int oldStartLine, int newStartLine, List<String> deletedLines, List<String> addedLines) {
+    }
+
+    private DiffApplyEngine() {
+    }
+
+    /**
+     * @param startLine diff范围在文档中的起始行
+     */
+    public static List<Hunk> computeHunks(List<DiffLine> diffLines, int startLine) {
+        List<Hunk> hunks = new ArrayList<>();
+        int oldLine = startLine;
+        int newLine = startLine;
+        Hunk current = null;
+        for (DiffLine diffLine : diffLines) {
+            DiffLineType type = diffLine.type();
+            if (type == DiffLineType.SAME) {
+                current = null;
+                oldLine++;
+                newLine++;
+                continue;
+            }
+            if (current == null) {
+                current = new Hunk(oldLine, newLine, new ArrayList<>(), new ArrayList<>());
+                hunks.add(current);
+            }
+            if (type == DiffLineType.OLD) {
+                current.deletedLines().add(diffLine.line());
+                oldLine++;
+            } else {
+                current.addedLines().add(diffLine.line());
+                newLine++;
+            }
+        }
+        return hunks;
+    }
+
+    /**
+     * 在EDT上调用
+     */
+    public static void apply(Project project, Document document, List<Hunk> hunks) {
+        if (hunks.isEmpty()) {
+            return;
+        }
+        WriteCommandAction.writeCommandAction(project)
+                .withName("VoidMuse Apply Edit")
+                .run(() -> DocumentUtil.executeInBulk(document, true, () -> replaceHunks(document, hunks)));
+    }
+
+    /**
+     * 需要在写命令中调用
+     */
+    static void replaceHunks(Document document, List<Hunk> hunks) {
+        // 从后往前替换，前面块的行号不受影响
+        for (int i = hunks.size() - 1; i >= 0; i--) {
+            replaceLines(document, hunks.get(i));
+        }
+    }
+
+    /**
+     * 拒绝已应用的块：把块中新增的行换回删除的行，需要在写命令中调用
+     *
+     * @param startLine    块在当前文档中的起始行
+     * @param addedLines   块中新增的行，不含换行符
+     * @param deletedLines 块中删除的行，不含换行符
+     */
+    static void revert(Document document, int startLine, List<String> addedLines, List<String> deletedLines) {
+        replaceLines(document, new Hunk(startLine, startLine, addedLines, deletedLines));
+    }
+
+    private static void replaceLines(Document document, Hunk hunk) {
+        int lineCount = document.getLineCount();
+        int oldStart = hunk.oldStartLine();
+        int oldEnd = oldStart + hunk.deletedLines().size();
+        List<String> added = hunk.addedLines();
+        String text = String.join("\n", added);
+
+        int startOffset = oldStart < lineCount ? document.getLineStartOffset(oldStart) : document.getTextLength();
+        int endOffset;
+        if (oldEnd < lineCount) {
+            endOffset = document.getLineStartOffset(oldEnd);
+            if (!added.isEmpty()) {
+                text += "\n";
+            }
+        } else {
+            // 改动延伸到文档末尾，最后一行没有换行符
+            endOffset = document.getTextLength();
+            if (oldStart >= lineCount) {
+                // 空文档没有可以接在后面的行
+                text = added.isEmpty() || document.getTextLength() == 0 ? text : "\n" + text;
+            } else if (added.isEmpty() && oldStart > 0) {
+                // 删除末尾的行时连同前一行的换行符一起删掉
+                startOffset = document.getLineEndOffset(oldStart - 1);
+            }
+        }
+        document.replaceString(startOffset, endOffset, text);
+    }
+}
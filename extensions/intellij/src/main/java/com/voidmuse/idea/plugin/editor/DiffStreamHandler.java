@@ -1,18 +1,28 @@
 package com.voidmuse.idea.plugin.editor;
 
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.ex.util.EditorUtil;
 import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
 import com.voidmuse.idea.plugin.editor.diff.DiffLine;
 import com.voidmuse.idea.plugin.editor.diff.DiffLineType;
+import com.voidmuse.idea.plugin.editor.diff.StreamingLineDiffer;
 import com.voidmuse.idea.plugin.editor.diff.TextDiff;
+import com.voidmuse.idea.plugin.util.EditorUiRegistry;
 import com.voidmuse.idea.plugin.util.EditorUtils;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
 
@@ -28,12 +38,33 @@ public class DiffStreamHandler {
 
     private CurLineState curLine;
     private boolean isRunning = false;
+    private PacedDiffRenderer renderer;
+    private StreamingLineDiffer streamingDiffer;
+    private final String commandGroupId = "VoidMuse.DiffStream." + System.identityHashCode(this);
 
-    private final List<RangeHighlighter> unfinishedHighlighters = new ArrayList<>();
+    /**
+     * 还没处理到的原文范围，只用一个highlighter，随文档修改自动收缩
+     */
+    private RangeHighlighter unfinishedHighlighter;
+    /**
+     * 进度highlighter每批diff行只更新一次
+     */
+    private boolean progressUpdateScheduled = false;
+    private boolean showProgress = false;
     private final List<VerticalDiffBlock> diffBlocks = new ArrayList<>();
+    /**
+     * 光标所在的块，只有它嵌入Swing按钮
+     */
+    private VerticalDiffBlock focusedBlock;
+    private Disposable caretListenerDisposable;
+    private final List<Runnable> closeListeners = new ArrayList<>();
 
     private final TextAttributesKey curLineKey;
     private final TextAttributesKey unfinishedKey;
+    /**
+     * 只移除自己添加的highlighter，不影响IDE和其他插件的
+     */
+    private final EditorUiRegistry uiRegistry;
 
     private static class CurLineState {
         int index;
@@ -53,19 +84,81 @@ public class DiffStreamHandler {
         this.onClose = onClose;
         this.onFinish = onFinish;
         this.curLine = new CurLineState(startLine);
+        this.uiRegistry = EditorUiRegistry.getInstance(editor);
 
         this.curLineKey = EditorUtils.createTextAttributesKey("VOID_MUSE_DIFF_CURRENT_LINE", 0x40888888, editor);
         this.unfinishedKey = EditorUtils.createTextAttributesKey("VOID_MUSE_DIFF_UNFINISHED_LINE", 0x20888888, editor);
 
         initUnfinishedRangeHighlights();
+        listenCaret();
+    }
+
+    private void listenCaret() {
+        if (caretListenerDisposable != null) {
+            return;
+        }
+        caretListenerDisposable = Disposer.newDisposable();
+        // 编辑器在会话中途关闭时随编辑器一起释放，不依赖resetState
+        EditorUtil.disposeWithEditor(editor, caretListenerDisposable);
+        editor.getCaretModel().addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+                updateFocusedBlock();
+            }
+        }, caretListenerDisposable);
+    }
+
+    private void updateFocusedBlock() {
+        int caretLine = editor.getCaretModel().getLogicalPosition().line;
+        VerticalDiffBlock target = null;
+        for (VerticalDiffBlock block : diffBlocks) {
+            if (block.containsLine(caretLine)) {
+                target = block;
+                break;
+            }
+        }
+        if (target == focusedBlock) {
+            return;
+        }
+        if (focusedBlock != null) {
+            focusedBlock.setFocused(false);
+        }
+        focusedBlock = target;
+        if (target != null) {
+            target.setFocused(true);
+        }
     }
 
     public void acceptAll() {
-        editor.getMarkupModel().removeAllHighlighters();
+        cancelRendering();
+        uiRegistry.removeHighlighters(EditorUiRegistry.Kind.DIFF);
         resetState();
     }
 
+    /**
+     * 编辑器关闭时调用：停止渲染并清理界面，已写入文档的内容保留
+     */
+    public void dispose() {
+        cancelRendering();
+        resetState();
+    }
+
+    /**
+     * diff块全部处理完，或全部接受、拒绝、dispose时在EDT上回调
+     */
+    public void addCloseListener(Runnable listener) {
+        closeListeners.add(listener);
+    }
+
+    private void fireClose() {
+        onClose.run();
+        for (Runnable listener : new ArrayList<>(closeListeners)) {
+            listener.run();
+        }
+    }
+
     public void rejectAll() {
+        cancelRendering();
         for (VerticalDiffBlock block : new ArrayList<>(diffBlocks)) {
             block.handleReject();
             handleDiffBlockAcceptOrReject(block, false);
@@ -75,12 +168,27 @@ public class DiffStreamHandler {
     }
 
     private void initUnfinishedRangeHighlights() {
-        for (int i = startLine; i <= endLine; i++) {
-            RangeHighlighter highlighter = editor.getMarkupModel().addLineHighlighter(
-                    unfinishedKey, Math.min(i, editor.getDocument().getLineCount() - 1), HighlighterLayer.LAST
-            );
-            unfinishedHighlighters.add(highlighter);
+        Document document = editor.getDocument();
+        int lastLine = Math.min(endLine, document.getLineCount() - 1);
+        if (startLine > lastLine) {
+            return;
+        }
+        showProgress = true;
+        setUnfinishedRange(document.getLineStartOffset(startLine), document.getLineEndOffset(lastLine));
+    }
+
+    /**
+     * RangeHighlighter的范围不能修改，范围变化时替换成新的
+     */
+    private void setUnfinishedRange(int startOffset, int endOffset) {
+        uiRegistry.remove(EditorUiRegistry.Kind.DIFF, unfinishedHighlighter);
+        unfinishedHighlighter = null;
+        if (startOffset >= endOffset) {
+            return;
         }
+        unfinishedHighlighter = uiRegistry.add(EditorUiRegistry.Kind.DIFF, editor.getMarkupModel().addRangeHighlighter(
+                unfinishedKey, startOffset, endOffset, HighlighterLayer.LAST, HighlighterTargetArea.LINES_IN_RANGE
+        ));
     }
 
     private void handleDiffLine(DiffLineType type, String text) {
@@ -102,7 +210,7 @@ public class DiffStreamHandler {
                     break;
             }
 
-            updateProgressHighlighters(type);
+            scheduleProgressUpdate();
 
         } catch (Exception e) {
             System.out.println("Error handling diff line: " + curLine.index + ", " + type + ", " + text + ", " + e.getMessage());
@@ -111,13 +219,16 @@ public class DiffStreamHandler {
 
     private void handleDiffBlockAcceptOrReject(VerticalDiffBlock diffBlock, boolean didAccept) {
         diffBlocks.remove(diffBlock);
+        if (diffBlock == focusedBlock) {
+            focusedBlock = null;
+        }
 
         if (!didAccept) {
             updatePositionsOnReject(diffBlock.getStartLine(), diffBlock.getAddedLines().size(), diffBlock.getDeletedLines().size());
         }
 
         if (diffBlocks.isEmpty()) {
-            onClose.run();
+            fireClose();
         }
     }
 
@@ -152,16 +263,44 @@ public class DiffStreamHandler {
         curLine.diffBlock.deleteLineAt(curLine.index);
     }
 
-    private void updateProgressHighlighters(DiffLineType type) {
-        if (curLine.highlighter != null) {
-            editor.getMarkupModel().removeHighlighter(curLine.highlighter);
+    private void scheduleProgressUpdate() {
+        if (progressUpdateScheduled) {
+            return;
+        }
+        progressUpdateScheduled = true;
+        // 在当前写命令结束后更新，同一批的多行只改一次markup
+        ApplicationManager.getApplication().invokeLater(() -> {
+            progressUpdateScheduled = false;
+            updateProgressHighlighters();
+        });
+    }
+
+    private void updateProgressHighlighters() {
+        if (!showProgress || editor.isDisposed()) {
+            return;
+        }
+        Document document = editor.getDocument();
+        int line = Math.min(curLine.index, document.getLineCount() - 1);
+        if (curLine.highlighter == null || !curLine.highlighter.isValid()
+                || document.getLineNumber(curLine.highlighter.getStartOffset()) != line) {
+            uiRegistry.remove(EditorUiRegistry.Kind.DIFF, curLine.highlighter);
+            curLine.highlighter = uiRegistry.add(EditorUiRegistry.Kind.DIFF, editor.getMarkupModel().addLineHighlighter(
+                    curLineKey, line, HighlighterLayer.LAST
+            ));
         }
-        curLine.highlighter = editor.getMarkupModel().addLineHighlighter(
-                curLineKey, Math.min(curLine.index, editor.getDocument().getLineCount() - 1), HighlighterLayer.LAST
-        );
 
-        if (type != DiffLineType.OLD && !unfinishedHighlighters.isEmpty()) {
-            editor.getMarkupModel().removeHighlighter(unfinishedHighlighters.remove(0));
+        // 未完成范围从当前行之后开始，结束位置由highlighter自身随删除的旧行收缩
+        if (unfinishedHighlighter != null) {
+            if (!unfinishedHighlighter.isValid()) {
+                uiRegistry.remove(EditorUiRegistry.Kind.DIFF, unfinishedHighlighter);
+                unfinishedHighlighter = null;
+                return;
+            }
+            int start = curLine.index + 1 < document.getLineCount()
+                    ? document.getLineStartOffset(curLine.index + 1) : document.getTextLength();
+            if (start != unfinishedHighlighter.getStartOffset()) {
+                setUnfinishedRange(Math.max(start, unfinishedHighlighter.getStartOffset()), unfinishedHighlighter.getEndOffset());
+            }
         }
     }
 
@@ -176,40 +315,96 @@ public class DiffStreamHandler {
     }
 
     private void resetState() {
-        editor.getMarkupModel().removeAllHighlighters();
+        uiRegistry.removeHighlighters(EditorUiRegistry.Kind.DIFF);
+        unfinishedHighlighter = null;
+        showProgress = false;
         for (VerticalDiffBlock block : diffBlocks) {
             block.clearEditorUI();
         }
 
         diffBlocks.clear();
+        focusedBlock = null;
+        if (caretListenerDisposable != null) {
+            Disposer.dispose(caretListenerDisposable);
+            caretListenerDisposable = null;
+        }
         curLine = new CurLineState(startLine);
         isRunning = false;
-        onClose.run();
+        fireClose();
     }
 
     private void handleFinishedResponse() {
-        //防止最后的输出没打印
-        WriteCommandAction.runWriteCommandAction(project, () -> handleSameLine());
+        if (!editor.isDisposed()) {
+            //防止最后的输出没打印，和前面的写入在同一个undo分组
+            WriteCommandAction.writeCommandAction(project)
+                    .withName("VoidMuse Diff")
+                    .withGroupId(commandGroupId)
+                    .run(this::handleSameLine);
+        }
 
         onFinish.run();
-        ApplicationManager.getApplication().invokeLater(this::cleanupProgressHighlighters);
+        ApplicationManager.getApplication().invokeLater(() -> {
+            cleanupProgressHighlighters();
+            updateFocusedBlock();
+        });
     }
 
     private void cleanupProgressHighlighters() {
-        if (curLine.highlighter != null) {
-            editor.getMarkupModel().removeHighlighter(curLine.highlighter);
+        showProgress = false;
+        uiRegistry.remove(EditorUiRegistry.Kind.DIFF, curLine.highlighter);
+        curLine.highlighter = null;
+        uiRegistry.remove(EditorUiRegistry.Kind.DIFF, unfinishedHighlighter);
+        unfinishedHighlighter = null;
+    }
+
+    private void cancelRendering() {
+        if (renderer != null) {
+            renderer.cancel();
+            renderer = null;
         }
-        for (RangeHighlighter highlighter : unfinishedHighlighters) {
-            editor.getMarkupModel().removeHighlighter(highlighter);
+        streamingDiffer = null;
+    }
+
+    /**
+     * 开始流式diff，之后模型每生成一段内容调用{@link #onStreamChunk}，结束时调用{@link #finishStream}。
+     * 都在EDT上调用
+     */
+    public void startStream(String originalCode) {
+        cancelRendering();
+        isRunning = true;
+        listenCaret();
+        streamingDiffer = new StreamingLineDiffer(Arrays.asList(originalCode.split("\n", -1)));
+    }
+
+    public void onStreamChunk(String chunk) {
+        if (streamingDiffer == null) {
+            return;
         }
+        applyStreamedLines(streamingDiffer.push(chunk));
     }
 
-    public void sleepMs(long millis) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    public void finishStream() {
+        if (streamingDiffer == null) {
+            return;
         }
+        applyStreamedLines(streamingDiffer.finish());
+        streamingDiffer = null;
+        handleFinishedResponse();
+    }
+
+    private void applyStreamedLines(List<DiffLine> diffLines) {
+        if (diffLines.isEmpty() || editor.isDisposed()) {
+            return;
+        }
+        // 同一次流式diff的所有改动合并成一个undo步骤
+        WriteCommandAction.writeCommandAction(project)
+                .withName("VoidMuse Diff")
+                .withGroupId(commandGroupId)
+                .run(() -> {
+                    for (DiffLine diffLine : diffLines) {
+                        handleDiffLine(diffLine.type(), diffLine.line());
+                    }
+                });
     }
 
     /**
@@ -219,28 +414,73 @@ public class DiffStreamHandler {
      * @param modifiedCode 修改后的代码
      */
     public void handleExternalDiffResult(String filePath, String originalCode, String modifiedCode) {
+        handleExternalDiffResult(filePath, originalCode, modifiedCode, false);
+    }
+
+    /**
+     * 处理外部传入的diff结果并展示
+     * @param instant 为true时不做逐行动画，一次应用全部diff；行数很多时也会自动使用即时模式
+     */
+    public void handleExternalDiffResult(String filePath, String originalCode, String modifiedCode, boolean instant) {
         LOG.info("Handling external diff result for file: " + filePath);
         isRunning = true;
+        listenCaret();
         
         List<String> oldLines = Arrays.asList(originalCode.split("\n"));
         List<String> newLines = Arrays.asList(modifiedCode.split("\n"));
         
         TextDiff textDiff = new TextDiff(oldLines, newLines);
         List<DiffLine> diffLines = textDiff.genDiffLines();
-        LOG.info("oldLines: " + originalCode);
-        LOG.info("newLines: " + modifiedCode);
-        LOG.info("diffLines: " + diffLines.toString());
+        LOG.debug("diffLines: " + diffLines.size());
 
-        
-        ApplicationManager.getApplication().invokeLater(() -> {
-            for (DiffLine diffLine : diffLines) {
-                WriteCommandAction.runWriteCommandAction(project, () -> {
-                    handleDiffLine(diffLine.type(), diffLine.line());
-                });
-                sleepMs(20);
-            }
-            handleFinishedResponse();
-        });
+        cancelRendering();
+        if (instant || diffLines.size() > PacedDiffRenderer.INSTANT_MODE_LINES) {
+            // 大改动一次写入，只有一次undo和一次重新解析
+            ApplicationManager.getApplication().invokeLater(() -> applyAll(diffLines));
+            return;
+        }
+        // 按帧分批应用，帧之间让出EDT
+        renderer = new PacedDiffRenderer(project, editor, diffLines,
+                diffLine -> handleDiffLine(diffLine.type(), diffLine.line()),
+                this::handleFinishedResponse, commandGroupId);
+        renderer.start();
+    }
+
+    private void applyAll(List<DiffLine> diffLines) {
+        if (!isRunning || editor.isDisposed()) {
+            return;
+        }
+        List<DiffApplyEngine.Hunk> hunks = DiffApplyEngine.computeHunks(diffLines, startLine);
+        DiffApplyEngine.apply(project, editor.getDocument(), hunks);
+        markApplied(hunks);
+        onFinish.run();
+        cleanupProgressHighlighters();
+        updateFocusedBlock();
+    }
+
+    /**
+     * 文档已经是修改后的内容，只展示diff块供逐块接受或拒绝，拒绝时恢复原内容。在EDT上调用
+     *
+     * @return 没有改动时返回false
+     */
+    public boolean showAppliedChanges(String originalCode, String modifiedCode) {
+        isRunning = true;
+        listenCaret();
+        List<DiffLine> diffLines = new TextDiff(Arrays.asList(originalCode.split("\n")),
+                Arrays.asList(modifiedCode.split("\n"))).genDiffLines();
+        List<DiffApplyEngine.Hunk> hunks = DiffApplyEngine.computeHunks(diffLines, startLine);
+        markApplied(hunks);
+        cleanupProgressHighlighters();
+        updateFocusedBlock();
+        return !hunks.isEmpty();
+    }
+
+    private void markApplied(List<DiffApplyEngine.Hunk> hunks) {
+        for (DiffApplyEngine.Hunk hunk : hunks) {
+            VerticalDiffBlock diffBlock = new VerticalDiffBlock(editor, project, hunk.newStartLine(), this::handleDiffBlockAcceptOrReject);
+            diffBlocks.add(diffBlock);
+            diffBlock.markApplied(hunk.deletedLines(), hunk.addedLines());
+        }
     }
 }
 
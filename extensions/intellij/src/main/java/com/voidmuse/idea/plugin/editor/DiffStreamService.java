@@ -2,39 +2,336 @@ package com.voidmuse.idea.plugin.editor;
 
 
 
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.ex.util.EditorUtil;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
+ * 每个编辑器当前的diff会话。
+ * <ul>
+ *     <li>注册表可以在任意线程读写，handler的界面操作都切到EDT</li>
+ *     <li>会话跟随编辑器的生命周期，编辑器关闭时自动清理，不再持有已关闭编辑器的handler和diff块</li>
+ *     <li>结束的会话保留有限条数的修改前后内容，用于撤销整次修改</li>
+ * </ul>
+ *
  * @author zhangdaguan
  */
 @Service(Service.Level.PROJECT)
-public class DiffStreamService {
-    private final Map<Editor, DiffStreamHandler> handlers = new HashMap<>();
+public final class DiffStreamService implements Disposable {
+    private static final Logger LOG = Logger.getInstance(DiffStreamService.class);
+
+    /**
+     * 历史最多保留的会话数和总字符数，超出后丢弃最早的
+     */
+    private static final int MAX_HISTORY = 20;
+    private static final long MAX_HISTORY_CHARS = 4L * 1024 * 1024;
+    /**
+     * 单个流最多缓存的提前到达的片段数，超出时认为前面的片段丢失，结束该流
+     */
+    private static final int MAX_EARLY_CHUNKS = 256;
+    /**
+     * 记住最近结束的streamId数，结束后迟到或重复的片段直接丢弃
+     */
+    private static final int MAX_ENDED_STREAMS = 256;
+
+    private final Project project;
+    private final Map<Editor, Session> sessions = new ConcurrentHashMap<>();
+    /**
+     * 正在流式写入的diff，key为前端传入的streamId
+     */
+    private final Map<String, DiffStreamHandler> streams = new ConcurrentHashMap<>();
+    /**
+     * 每个streamId下一个要应用的片段序号和提前到达的片段。片段在不同线程里分发，到达EDT的顺序不确定
+     */
+    private final Map<String, ChunkBuffer> chunkBuffers = new ConcurrentHashMap<>();
+    private final Set<String> endedStreams = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_ENDED_STREAMS;
+                }
+            }));
+    private final Deque<FinishedDiff> history = new ArrayDeque<>();
+    private long historyChars = 0;
+
+    private record Session(Editor editor, DiffStreamHandler handler, Document document, String originalText,
+                           Disposable disposable) {
+    }
+
+    /**
+     * 结束的diff会话
+     *
+     * @param resultText 会话结束时的文档内容，只有文档仍是该内容时才能撤销
+     */
+    public record FinishedDiff(String id, String filePath, String originalText, String resultText, long finishedAt) {
+    }
+
+    /**
+     * 流式写入的一个片段
+     *
+     * @param seq 流内序号，从0开始；为null时按到达顺序应用
+     * @param arg 原始请求参数，第一个片段用它打开文件
+     */
+    public record StreamChunk(Integer seq, String text, boolean done, Map<String, Object> arg) {
+    }
+
+    private static final class ChunkBuffer {
+        private int nextSeq = 0;
+        private final TreeMap<Integer, StreamChunk> early = new TreeMap<>();
+    }
+
+    public DiffStreamService(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * 编辑器上是否有未结束的diff会话
+     */
+    public boolean hasSession(Editor editor) {
+        return sessions.containsKey(editor);
+    }
+
+    public DiffStreamHandler getStream(String streamId) {
+        return streams.get(streamId);
+    }
+
+    public void startStream(String streamId, DiffStreamHandler handler, Editor editor) {
+        register(handler, editor);
+        streams.put(streamId, handler);
+    }
+
+    /**
+     * 结束流并丢弃缓存的片段，之后同一streamId的片段不再应用
+     */
+    public void endStream(String streamId) {
+        endedStreams.add(streamId);
+        streams.remove(streamId);
+        chunkBuffers.remove(streamId);
+    }
+
+    /**
+     * 按序号取出可以应用的片段：序号不连续时先缓存，等前面的片段到达后一起返回。在EDT上调用
+     */
+    public List<StreamChunk> takeInOrder(String streamId, StreamChunk chunk) {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        if (endedStreams.contains(streamId)) {
+            LOG.debug("chunk for ended stream, streamId: " + streamId + ", seq: " + chunk.seq());
+            return List.of();
+        }
+        if (chunk.seq() == null) {
+            return List.of(chunk);
+        }
+        ChunkBuffer buffer = chunkBuffers.computeIfAbsent(streamId, id -> new ChunkBuffer());
+        if (chunk.seq() < buffer.nextSeq) {
+            LOG.warn("duplicate stream chunk, streamId: " + streamId + ", seq: " + chunk.seq());
+            return List.of();
+        }
+        buffer.early.put(chunk.seq(), chunk);
+        if (buffer.early.size() > MAX_EARLY_CHUNKS) {
+            LOG.warn("stream chunk " + buffer.nextSeq + " never arrived, streamId: " + streamId);
+            endStream(streamId);
+            return List.of();
+        }
+        List<StreamChunk> ready = new ArrayList<>();
+        StreamChunk next;
+        while ((next = buffer.early.remove(buffer.nextSeq)) != null) {
+            ready.add(next);
+            buffer.nextSeq++;
+        }
+        return ready;
+    }
 
+    /**
+     * 以当前文档内容作为修改前的内容
+     */
     public void register(DiffStreamHandler handler, Editor editor) {
-        if (handlers.containsKey(editor)) {
-            handlers.get(editor).rejectAll();
+        runOnEdt(() -> register(handler, editor, editor.getDocument().getText()));
+    }
+
+    /**
+     * 同一编辑器已有的会话会被拒绝。在EDT上调用
+     *
+     * @param originalText 修改前的内容，文档已经写入修改时由调用方传入
+     */
+    public void register(DiffStreamHandler handler, Editor editor, String originalText) {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        if (editor.isDisposed() || project.isDisposed()) {
+            handler.dispose();
+            return;
         }
-        handlers.put(editor, handler);
+        Disposable disposable = Disposer.newDisposable("VoidMuse.DiffSession");
+        Session session = new Session(editor, handler, editor.getDocument(), originalText, disposable);
+        Session previous = sessions.put(editor, session);
+        if (previous != null) {
+            release(previous);
+            previous.handler().rejectAll();
+        }
+        handler.addCloseListener(() -> finish(session, true));
+        // 编辑器释放时自动结束会话，文档已写入的内容保留
+        Disposer.register(disposable, () -> {
+            if (sessions.remove(editor, session)) {
+                recordHistory(session);
+                removeStreams(handler);
+                handler.dispose();
+            }
+        });
+        EditorUtil.disposeWithEditor(editor, disposable);
     }
 
     public void reject(Editor editor) {
-        DiffStreamHandler handler = handlers.get(editor);
-        if (handler != null) {
-            handler.rejectAll();
-            handlers.remove(editor);
-        }
+        runOnEdt(() -> {
+            Session session = sessions.get(editor);
+            if (session != null) {
+                finish(session, false);
+                session.handler().rejectAll();
+            }
+        });
     }
 
     public void accept(Editor editor) {
-        DiffStreamHandler handler = handlers.get(editor);
-        if (handler != null) {
-            handler.acceptAll();
-            handlers.remove(editor);
+        runOnEdt(() -> {
+            Session session = sessions.get(editor);
+            if (session != null) {
+                session.handler().acceptAll();
+            }
+        });
+    }
+
+    public List<FinishedDiff> getHistory() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * 把文件恢复到该次修改前的内容。文件在会话结束后又被修改过时不撤销，返回false。在EDT上调用
+     */
+    public boolean undo(String id) {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        FinishedDiff target = null;
+        synchronized (history) {
+            for (FinishedDiff finished : history) {
+                if (finished.id().equals(id)) {
+                    target = finished;
+                }
+            }
+        }
+        if (target == null) {
+            return false;
+        }
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(target.filePath());
+        Document document = file != null ? FileDocumentManager.getInstance().getDocument(file) : null;
+        if (document == null || !document.getText().equals(target.resultText())) {
+            return false;
+        }
+        String originalText = target.originalText();
+        WriteCommandAction.writeCommandAction(project)
+                .withName("VoidMuse Undo Diff")
+                .run(() -> document.setText(originalText));
+        removeHistory(target);
+        return true;
+    }
+
+    /**
+     * 结束会话，record为true时记录到历史。同一会话只处理一次
+     */
+    private void finish(Session session, boolean record) {
+        if (sessions.remove(session.editor(), session)) {
+            if (record) {
+                recordHistory(session);
+            }
+            release(session);
         }
     }
 
+    private void release(Session session) {
+        removeStreams(session.handler());
+        Disposer.dispose(session.disposable());
+    }
+
+    private void recordHistory(Session session) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(session.document());
+        String resultText = session.document().getText();
+        if (file == null || resultText.equals(session.originalText())) {
+            return;
+        }
+        FinishedDiff finished = new FinishedDiff(UUID.randomUUID().toString(), file.getPath(),
+                session.originalText(), resultText, System.currentTimeMillis());
+        if (sizeOf(finished) > MAX_HISTORY_CHARS) {
+            // 超大文件不保留历史，依赖IDE自身的undo
+            return;
+        }
+        synchronized (history) {
+            history.addLast(finished);
+            historyChars += sizeOf(finished);
+            while (history.size() > MAX_HISTORY || historyChars > MAX_HISTORY_CHARS) {
+                historyChars -= sizeOf(history.removeFirst());
+            }
+        }
+    }
+
+    private void removeHistory(FinishedDiff finished) {
+        synchronized (history) {
+            if (history.remove(finished)) {
+                historyChars -= sizeOf(finished);
+            }
+        }
+    }
+
+    private static long sizeOf(FinishedDiff finished) {
+        return (long) finished.originalText().length() + finished.resultText().length();
+    }
+
+    private void removeStreams(DiffStreamHandler handler) {
+        for (Map.Entry<String, DiffStreamHandler> entry : new ArrayList<>(streams.entrySet())) {
+            if (entry.getValue() == handler) {
+                endStream(entry.getKey());
+            }
+        }
+    }
+
+    private static void runOnEdt(Runnable runnable) {
+        if (ApplicationManager.getApplication().isDispatchThread()) {
+            runnable.run();
+        } else {
+            ApplicationManager.getApplication().invokeLater(runnable);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        for (Session session : new ArrayList<>(sessions.values())) {
+            Disposer.dispose(session.disposable());
+        }
+        sessions.clear();
+        streams.clear();
+        chunkBuffers.clear();
+        endedStreams.clear();
+        synchronized (history) {
+            history.clear();
+            historyChars = 0;
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package com.voidmuse.idea.plugin.editor;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 批量写入后的逐个文件审阅：一次只打开一个文件展示diff，当前文件的diff块全部处理完后再打开下一个。
+ * 只在EDT中使用。
+ */
+@Service(Service.Level.PROJECT)
+public final class FileReviewQueue {
+    private static final Logger LOG = Logger.getInstance(FileReviewQueue.class);
+
+    private final Project project;
+    private final Deque<MultiFileWriteTransaction.FileChange> pending = new ArrayDeque<>();
+    private MultiFileWriteTransaction.FileChange current;
+
+    public FileReviewQueue(Project project) {
+        this.project = project;
+    }
+
+    public static FileReviewQueue getInstance(Project project) {
+        return project.getService(FileReviewQueue.class);
+    }
+
+    public void enqueue(List<MultiFileWriteTransaction.FileChange> changes) {
+        pending.addAll(changes);
+        if (current == null) {
+            showNext();
+        }
+    }
+
+    public int remaining() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    private void showNext() {
+        current = null;
+        while (!pending.isEmpty() && !project.isDisposed()) {
+            MultiFileWriteTransaction.FileChange change = pending.poll();
+            VirtualFile file = LocalFileSystem.getInstance().findFileByPath(change.filePath());
+            if (file == null) {
+                LOG.warn("review file not found: " + change.filePath());
+                continue;
+            }
+            Editor editor = FileEditorManager.getInstance(project).openTextEditor(new OpenFileDescriptor(project, file), true);
+            if (editor == null) {
+                continue;
+            }
+            // 先结束同一编辑器上的旧会话，再创建新的handler
+            DiffStreamService diffStreamService = project.getService(DiffStreamService.class);
+            diffStreamService.reject(editor);
+            // 全部接受、全部拒绝和最后一个diff块处理完都会回调onClose，只推进一次
+            boolean[] closed = {false};
+            Runnable onClose = () -> {
+                if (!closed[0] && current == change) {
+                    closed[0] = true;
+                    // 等当前handler清理完再打开下一个
+                    ApplicationManager.getApplication().invokeLater(this::showNext);
+                }
+            };
+            DiffStreamHandler handler = new DiffStreamHandler(project, editor, 0, editor.getDocument().getLineCount() - 1,
+                    onClose, () -> {
+            });
+            current = change;
+            if (handler.showAppliedChanges(change.originalContent(), change.newContent())) {
+                diffStreamService.register(handler, editor, change.originalContent());
+                return;
+            }
+            // 没有diff块时不注册会话，否则会一直留到编辑器关闭
+            handler.dispose();
+            current = null;
+        }
+    }
+}
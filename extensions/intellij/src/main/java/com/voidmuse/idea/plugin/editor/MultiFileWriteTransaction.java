@@ -0,0 +1,386 @@
+package com.voidmuse.idea.plugin.editor;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.ReadonlyStatusHandler;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.encoding.EncodingProjectManager;
+import com.intellij.openapi.vfs.newvfs.RefreshQueue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 多文件写入事务，任一文件失败则已写入的全部回滚。
+ * <ul>
+ *     <li>已加载document的文件（通常是打开的文件）在一个写命令中修改document，只替换变化的部分，一次undo</li>
+ *     <li>其余文件不打开编辑器、不加载document，直接写磁盘，全部写完后统一刷新一次VFS</li>
+ * </ul>
+ * 磁盘读写在调用线程执行，document相关操作切到EDT，不能在EDT上调用{@link #apply}。
+ */
+public class MultiFileWriteTransaction {
+    private static final Logger LOG = Logger.getInstance(MultiFileWriteTransaction.class);
+
+    /**
+     * @param startLine 可选，从1开始，和endLine一起指定时只替换这些行
+     */
+    public record FileEdit(String filePath, String content, Integer startLine, Integer endLine) {
+    }
+
+    /**
+     * 已写入的改动，内容的换行符统一为\n
+     */
+    public record FileChange(String filePath, String originalContent, String newContent, boolean created) {
+    }
+
+    private final Project project;
+    private final List<FileEdit> edits;
+    private final String commandGroupId = "VoidMuse.WriteFiles." + System.identityHashCode(this);
+
+    /**
+     * 和edits顺序一致
+     */
+    private final List<Target> targets = new ArrayList<>();
+    private final List<Target> documentTargets = new ArrayList<>();
+    private final List<Target> diskTargets = new ArrayList<>();
+    /**
+     * 写新文件时创建的目录，外层在前，回滚时从后往前删除
+     */
+    private final List<Path> createdDirectories = new ArrayList<>();
+
+    private static class Target {
+        final FileEdit edit;
+        final Path path;
+        VirtualFile file;
+        Document document;
+        String originalContent;
+        String newContent;
+        byte[] originalBytes;
+        boolean applied;
+
+        // document中实际被替换的范围，用于回滚
+        int replaceStart;
+        int replaceEnd;
+        String replacedText;
+        long appliedStamp;
+
+        Target(FileEdit edit) {
+            this.edit = edit;
+            this.path = Paths.get(edit.filePath());
+        }
+    }
+
+    public MultiFileWriteTransaction(Project project, List<FileEdit> edits) {
+        this.project = project;
+        this.edits = edits;
+    }
+
+    /**
+     * 写入所有文件，内容没有变化的文件不在返回结果中
+     *
+     * @param afterRefresh VFS刷新完成后在EDT上调用，参数和返回值相同，可以为null
+     * @throws IOException 任一文件写入失败，此时已写入的文件都已回滚
+     */
+    public List<FileChange> apply(Consumer<List<FileChange>> afterRefresh) throws IOException {
+        ApplicationManager.getApplication().assertIsNonDispatchThread();
+        String error = onEdt(this::prepare);
+        if (error != null) {
+            throw new IOException(error);
+        }
+        try {
+            for (Target target : diskTargets) {
+                writeToDisk(target);
+            }
+            String documentError = onEdt(this::applyDocuments);
+            if (documentError != null) {
+                throw new IOException(documentError);
+            }
+        } catch (IOException | RuntimeException e) {
+            rollback();
+            throw e;
+        }
+
+        List<FileChange> changes = new ArrayList<>();
+        for (Target target : targets) {
+            if (target.applied) {
+                changes.add(new FileChange(target.edit.filePath(), target.originalContent, target.newContent,
+                        target.file == null));
+            }
+        }
+        refreshOnce(afterRefresh != null ? () -> afterRefresh.accept(changes) : () -> {
+        });
+        return changes;
+    }
+
+    /**
+     * 在EDT上找出每个文件的document，并检查只读状态。document的内容在写入时重新读取。返回错误信息，没有错误返回null
+     */
+    private String prepare() {
+        FileDocumentManager documentManager = FileDocumentManager.getInstance();
+        List<VirtualFile> existingFiles = new ArrayList<>();
+        for (FileEdit edit : edits) {
+            Target target = new Target(edit);
+            targets.add(target);
+            target.file = LocalFileSystem.getInstance().findFileByNioFile(target.path);
+            if (target.file != null && target.file.isDirectory()) {
+                return "not a file: " + edit.filePath();
+            }
+            if (target.file == null && edit.startLine() != null) {
+                return "file not found: " + edit.filePath();
+            }
+            target.document = target.file != null ? documentManager.getCachedDocument(target.file) : null;
+            if (target.document != null) {
+                target.originalContent = target.document.getText();
+                target.newContent = buildNewContent(target.originalContent, edit);
+                if (!target.newContent.equals(target.originalContent)) {
+                    documentTargets.add(target);
+                    existingFiles.add(target.file);
+                }
+            } else {
+                // 磁盘文件的原内容在调用线程读取
+                diskTargets.add(target);
+                if (target.file != null) {
+                    existingFiles.add(target.file);
+                }
+            }
+        }
+        if (!existingFiles.isEmpty()) {
+            ReadonlyStatusHandler.OperationStatus status =
+                    ReadonlyStatusHandler.getInstance(project).ensureFilesWritable(existingFiles);
+            if (status.hasReadonlyFiles()) {
+                return status.getReadonlyFilesMessage();
+            }
+        }
+        return null;
+    }
+
+    private void writeToDisk(Target target) throws IOException {
+        Charset charset;
+        String lineSeparator = "\n";
+        byte[] bom = null;
+        if (target.file != null) {
+            target.originalBytes = Files.readAllBytes(target.path);
+            target.originalContent = LoadTextUtil.getTextByBinaryPresentation(target.originalBytes, target.file).toString();
+            charset = target.file.getCharset();
+            bom = target.file.getBOM();
+            if (target.file.getDetectedLineSeparator() != null) {
+                lineSeparator = target.file.getDetectedLineSeparator();
+            }
+        } else {
+            target.originalContent = "";
+            charset = EncodingProjectManager.getInstance(project).getDefaultCharset();
+        }
+        target.newContent = buildNewContent(target.originalContent, target.edit);
+        if (target.file != null && target.newContent.equals(target.originalContent)) {
+            return;
+        }
+
+        byte[] text = StringUtil.convertLineSeparators(target.newContent, lineSeparator).getBytes(charset);
+        byte[] bytes = text;
+        if (bom != null) {
+            bytes = new byte[bom.length + text.length];
+            System.arraycopy(bom, 0, bytes, 0, bom.length);
+            System.arraycopy(text, 0, bytes, bom.length, text.length);
+        }
+        createParentDirectories(target.path);
+        // 直接覆盖写，保留原文件的权限和链接，失败时由回滚恢复原内容
+        Files.write(target.path, bytes);
+        target.applied = true;
+    }
+
+    private void createParentDirectories(Path path) throws IOException {
+        List<Path> missing = new ArrayList<>();
+        for (Path dir = path.toAbsolutePath().getParent(); dir != null && !Files.exists(dir); dir = dir.getParent()) {
+            missing.add(0, dir);
+        }
+        for (Path dir : missing) {
+            Files.createDirectory(dir);
+            createdDirectories.add(dir);
+        }
+    }
+
+    /**
+     * 所有document改动在同一个写命令里完成。返回错误信息，没有错误返回null
+     */
+    private String applyDocuments() {
+        if (documentTargets.isEmpty()) {
+            return null;
+        }
+        try {
+            WriteCommandAction.writeCommandAction(project)
+                    .withName("VoidMuse Write Files")
+                    .withGroupId(commandGroupId)
+                    .run(() -> {
+                        for (Target target : documentTargets) {
+                            // 准备之后到现在用户可能又输入过，按写入时的内容重新计算
+                            target.originalContent = target.document.getText();
+                            target.newContent = buildNewContent(target.originalContent, target.edit);
+                            if (target.newContent.equals(target.originalContent)) {
+                                continue;
+                            }
+                            replaceChangedRange(target);
+                            target.appliedStamp = target.document.getModificationStamp();
+                            target.applied = true;
+                        }
+                    });
+            return null;
+        } catch (RuntimeException e) {
+            LOG.warn("write documents failed", e);
+            return "write document failed: " + e.getMessage();
+        }
+    }
+
+    /**
+     * 只替换首尾相同部分之间的文本，范围外的光标、折叠和标记都不受影响
+     */
+    private static void replaceChangedRange(Target target) {
+        String oldText = target.originalContent;
+        String newText = target.newContent;
+        int prefix = 0;
+        int maxPrefix = Math.min(oldText.length(), newText.length());
+        while (prefix < maxPrefix && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix
+                && oldText.charAt(oldText.length() - 1 - suffix) == newText.charAt(newText.length() - 1 - suffix)) {
+            suffix++;
+        }
+        target.replaceStart = prefix;
+        target.replaceEnd = newText.length() - suffix;
+        target.replacedText = oldText.substring(prefix, oldText.length() - suffix);
+        target.document.replaceString(prefix, oldText.length() - suffix, newText.substring(prefix, target.replaceEnd));
+    }
+
+    private void rollback() {
+        onEdt(() -> {
+            List<Target> appliedDocuments = documentTargets.stream().filter(target -> target.applied).toList();
+            if (!appliedDocuments.isEmpty()) {
+                WriteCommandAction.writeCommandAction(project)
+                        .withName("VoidMuse Write Files")
+                        .withGroupId(commandGroupId)
+                        .run(() -> {
+                            for (Target target : appliedDocuments) {
+                                if (target.document.getModificationStamp() != target.appliedStamp) {
+                                    // 写入后又被修改过，范围已经失效，留给IDE的undo处理
+                                    LOG.warn("document changed after write, skip rollback: " + target.path);
+                                    continue;
+                                }
+                                target.document.replaceString(target.replaceStart, target.replaceEnd, target.replacedText);
+                            }
+                        });
+            }
+            return null;
+        });
+        for (Target target : diskTargets) {
+            if (!target.applied) {
+                continue;
+            }
+            try {
+                if (target.file == null) {
+                    Files.deleteIfExists(target.path);
+                } else {
+                    Files.write(target.path, target.originalBytes);
+                }
+            } catch (IOException e) {
+                LOG.warn("rollback file failed: " + target.path, e);
+            }
+        }
+        for (int i = createdDirectories.size() - 1; i >= 0; i--) {
+            Path dir = createdDirectories.get(i);
+            try {
+                Files.deleteIfExists(dir);
+            } catch (IOException e) {
+                // 期间有其它文件写入该目录时保留
+                LOG.warn("rollback directory failed: " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * 磁盘上写过的文件一起标记dirty并只提交一次异步刷新，新建文件刷新其最近的已存在目录
+     */
+    private void refreshOnce(Runnable onFinish) {
+        Set<VirtualFile> roots = new LinkedHashSet<>();
+        for (Target target : diskTargets) {
+            if (!target.applied) {
+                continue;
+            }
+            if (target.file != null) {
+                roots.add(target.file);
+                continue;
+            }
+            Path parent = target.path.getParent();
+            VirtualFile ancestor = null;
+            while (parent != null && (ancestor = LocalFileSystem.getInstance().findFileByNioFile(parent)) == null) {
+                parent = parent.getParent();
+            }
+            if (ancestor != null) {
+                roots.add(ancestor);
+            }
+        }
+        if (roots.isEmpty()) {
+            ApplicationManager.getApplication().invokeLater(onFinish);
+            return;
+        }
+        VirtualFile[] files = roots.toArray(VirtualFile[]::new);
+        VfsUtil.markDirty(false, true, files);
+        RefreshQueue.getInstance().refresh(true, false, onFinish, files);
+    }
+
+    /**
+     * 指定行范围时只替换这些行，否则替换整个文件
+     */
+    private static String buildNewContent(String original, FileEdit edit) {
+        String content = StringUtil.convertLineSeparators(edit.content());
+        if (edit.startLine() == null || edit.endLine() == null) {
+            return content;
+        }
+        int start = lineStartOffset(original, edit.startLine() - 1);
+        int end = lineStartOffset(original, edit.endLine());
+        if (end > start && end <= original.length() && original.charAt(end - 1) == '\n') {
+            // 保留范围最后一行的换行符
+            end--;
+        }
+        return original.substring(0, start) + content + original.substring(end);
+    }
+
+    private static int lineStartOffset(String text, int line) {
+        int offset = 0;
+        for (int i = 0; i < line; i++) {
+            int newline = text.indexOf('\n', offset);
+            if (newline < 0) {
+                return text.length();
+            }
+            offset = newline + 1;
+        }
+        return offset;
+    }
+
+    private static <T> T onEdt(Supplier<T> action) {
+        Object[] result = new Object[1];
+        ApplicationManager.getApplication().invokeAndWait(() -> result[0] = action.get(), ModalityState.defaultModalityState());
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+}
@@ -0,0 +1,115 @@
+package com.voidmuse.idea.plugin.editor;
+
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.EdtExecutorService;
+import com.voidmuse.idea.plugin.editor.diff.DiffLine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 按帧分批把diff行应用到编辑器：每帧在时间预算内应用一批行，帧之间通过EDT调度器让出，不在EDT上sleep。
+ * 所有批次使用同一个undo分组，一次撤销即可回到修改前。大diff不做动画，由{@link DiffApplyEngine}一次应用。
+ */
+public class PacedDiffRenderer {
+    private static final Logger LOG = Logger.getInstance(PacedDiffRenderer.class);
+
+    /**
+     * 每帧应用diff行的时间上限，留出一半给绘制和输入响应
+     */
+    private static final long FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+    private static final long FRAME_INTERVAL_MS = 16;
+    /**
+     * 动画总时长的目标值，行数多时每帧多放几行
+     */
+    private static final long TARGET_ANIMATION_MS = 1500;
+    /**
+     * 超过该行数不做动画，直接一次应用
+     */
+    public static final int INSTANT_MODE_LINES = 400;
+
+    private final Project project;
+    private final Editor editor;
+    private final List<DiffLine> diffLines;
+    private final Consumer<DiffLine> applyLine;
+    private final Runnable onDone;
+    private final int linesPerFrame;
+    private final String commandGroupId;
+
+    private int next = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param applyLine      应用单行，在写命令中、EDT上调用
+     * @param onDone         全部应用后在EDT上调用，取消时不调用
+     * @param commandGroupId 所有批次使用的undo分组，调用方之后的收尾写入也使用它
+     */
+    public PacedDiffRenderer(Project project, Editor editor, List<DiffLine> diffLines,
+                             Consumer<DiffLine> applyLine, Runnable onDone, String commandGroupId) {
+        this.project = project;
+        this.editor = editor;
+        this.diffLines = diffLines;
+        this.applyLine = applyLine;
+        this.onDone = onDone;
+        long frames = Math.max(1, TARGET_ANIMATION_MS / FRAME_INTERVAL_MS);
+        this.linesPerFrame = (int) Math.max(1, (diffLines.size() + frames - 1) / frames);
+        this.commandGroupId = commandGroupId;
+    }
+
+    /**
+     * 开始应用，可在任意线程调用
+     */
+    public void start() {
+        EdtExecutorService.getInstance().execute(this::renderFrame, ModalityState.defaultModalityState());
+    }
+
+    /**
+     * 停止后续批次，已应用的行保留
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isDone() {
+        return next >= diffLines.size();
+    }
+
+    private void renderFrame() {
+        if (cancelled || project.isDisposed() || editor.isDisposed()) {
+            return;
+        }
+        long frameStart = System.nanoTime();
+        try {
+            WriteCommandAction.writeCommandAction(project)
+                    .withName("VoidMuse Diff")
+                    .withGroupId(commandGroupId)
+                    .run(() -> {
+                        int applied = 0;
+                        while (next < diffLines.size()) {
+                            applyLine.accept(diffLines.get(next++));
+                            applied++;
+                            if (applied >= linesPerFrame || System.nanoTime() - frameStart > FRAME_BUDGET_NANOS) {
+                                break;
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            LOG.error("render diff lines error", e);
+            cancelled = true;
+            return;
+        }
+
+        if (isDone()) {
+            onDone.run();
+        } else {
+            // 让出EDT，下一帧继续
+            EdtExecutorService.getScheduledExecutorInstance()
+                    .schedule(this::renderFrame, FRAME_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
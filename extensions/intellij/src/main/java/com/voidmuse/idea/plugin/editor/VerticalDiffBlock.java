@@ -1,21 +1,26 @@
 package com.voidmuse.idea.plugin.editor;
 
-import com.google.common.collect.Lists;
+import com.intellij.icons.AllIcons;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.editor.Inlay;
 import com.intellij.openapi.editor.colors.EditorFontType;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.markup.GutterIconRenderer;
 import com.intellij.openapi.editor.markup.HighlighterLayer;
 import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.project.DumbAwareAction;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.ui.JBColor;
 import com.intellij.util.ui.UIUtil;
 import com.voidmuse.idea.plugin.editor.custom.CustomButton;
+import com.voidmuse.idea.plugin.util.EditorUiRegistry;
 import com.voidmuse.idea.plugin.util.EditorUtils;
-import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 import java.awt.*;
@@ -32,12 +37,18 @@ public class VerticalDiffBlock {
     private final OnAcceptRejectCallback onAcceptReject;
     private final List<String> deletedLines = new ArrayList<>();
     private final List<String> addedLines = new ArrayList<>();
-    private final JComponent acceptButton;
-    private final JComponent rejectButton;
-    private List<Disposable> deletionInlays = null;
-    private JTextArea textArea = null;
     private final EditorComponentInlaysManager editorComponentInlaysManager;
     private final TextAttributesKey greenKey;
+    private final List<RangeHighlighter> greenHighlighters = new ArrayList<>();
+    private final EditorUiRegistry uiRegistry;
+    /**
+     * 删除的行用renderer绘制，接受/拒绝放在gutter里；只有光标所在的块才嵌入Swing按钮
+     */
+    private Inlay<DeletedLinesRenderer> deletedLinesInlay = null;
+    private final List<RangeHighlighter> gutterHighlighters = new ArrayList<>();
+    private Disposable buttonsInlay = null;
+    private boolean rendered = false;
+    private boolean focused = false;
 
     public VerticalDiffBlock(Editor editor, Project project, int startLine, OnAcceptRejectCallback onAcceptReject) {
         this.editor = editor;
@@ -46,20 +57,17 @@ public class VerticalDiffBlock {
         this.onAcceptReject = onAcceptReject;
         this.editorComponentInlaysManager = EditorComponentInlaysManager.from(editor, false);
         this.greenKey = EditorUtils.createTextAttributesKey("VOID_MUSE_DIFF_NEW_LINE", 0x3000FF00, editor);
-        deletionInlays = Lists.newArrayList();
-
-        JComponent[] buttons = createButtons();
-        this.acceptButton = buttons[0];
-        this.rejectButton = buttons[1];
+        this.uiRegistry = EditorUiRegistry.getInstance(editor);
     }
 
     public void clearEditorUI() {
-        if (deletionInlays != null && CollectionUtils.isNotEmpty(deletionInlays)) {
-            for(Disposable deletionInlay: deletionInlays){
-                deletionInlay.dispose();
-            }
-            deletionInlays.clear();
+        rendered = false;
+        uiRegistry.remove(EditorUiRegistry.Kind.DIFF, deletedLinesInlay);
+        deletedLinesInlay = null;
+        for (RangeHighlighter highlighter : gutterHighlighters) {
+            uiRegistry.remove(EditorUiRegistry.Kind.DIFF, highlighter);
         }
+        gutterHighlighters.clear();
         removeGreenHighlighters();
         removeButtons();
     }
@@ -87,16 +95,62 @@ public class VerticalDiffBlock {
 
         int offset = editor.getDocument().getLineStartOffset(line);
         editor.getDocument().insertString(offset, text + "\n");
-        editor.getMarkupModel().addLineHighlighter(greenKey, line, HighlighterLayer.LAST);
+        greenHighlighters.add(uiRegistry.add(EditorUiRegistry.Kind.DIFF,
+                editor.getMarkupModel().addLineHighlighter(greenKey, line, HighlighterLayer.LAST)));
 
         addedLines.add(text);
     }
 
+    /**
+     * 改动已经由{@link DiffApplyEngine}一次性写入文档，这里只记录改动并展示新增行高亮、删除行和按钮
+     */
+    public void markApplied(List<String> deleted, List<String> added) {
+        for (String line : deleted) {
+            deletedLines.add(line + "\n");
+        }
+        for (int i = 0; i < added.size(); i++) {
+            int line = Math.min(startLine + i, editor.getDocument().getLineCount() - 1);
+            greenHighlighters.add(uiRegistry.add(EditorUiRegistry.Kind.DIFF,
+                    editor.getMarkupModel().addLineHighlighter(greenKey, line, HighlighterLayer.LAST)));
+        }
+        addedLines.addAll(added);
+        onLastDiffLine();
+    }
+
     public void onLastDiffLine() {
         if (!deletedLines.isEmpty()) {
             renderDeletedLinesInlay();
         }
-        renderButtons();
+        renderGutterActions();
+        rendered = true;
+        if (focused) {
+            renderButtons();
+        }
+    }
+
+    /**
+     * 光标进入块时嵌入Swing按钮，离开时移除，同一时间只有一个块有Swing组件
+     */
+    public void setFocused(boolean focused) {
+        if (this.focused == focused) {
+            return;
+        }
+        this.focused = focused;
+        if (!rendered) {
+            return;
+        }
+        if (focused) {
+            renderButtons();
+        } else {
+            removeButtons();
+        }
+    }
+
+    /**
+     * 光标在新增行上，或在删除行所在位置的行上
+     */
+    public boolean containsLine(int line) {
+        return line >= startLine && line < startLine + Math.max(1, addedLines.size());
     }
 
     public void handleReject() {
@@ -110,43 +164,97 @@ public class VerticalDiffBlock {
     }
 
     private void renderDeletedLinesInlay() {
-        JTextArea textArea = createDeletionTextArea(String.join("\n", deletedLines));
-        this.textArea = textArea;
+        List<String> lines = new ArrayList<>(deletedLines.size());
+        for (String line : deletedLines) {
+            lines.add(StringUtils.removeEnd(line, "\n"));
+        }
+        int line = Math.min(startLine, editor.getDocument().getLineCount() - 1);
+        int offset = startLine < editor.getDocument().getLineCount()
+                ? editor.getDocument().getLineStartOffset(line) : editor.getDocument().getTextLength();
+        // 显示在块第一行的上方
+        deletedLinesInlay = uiRegistry.add(EditorUiRegistry.Kind.DIFF, editor.getInlayModel().addBlockElement(
+                offset, false, true, 0, new DeletedLinesRenderer(editor, lines)));
+    }
+
+    private void renderGutterActions() {
+        int line = Math.min(startLine, editor.getDocument().getLineCount() - 1);
+        gutterHighlighters.add(addGutterAction(line, AllIcons.Actions.Checked, "Accept", this::accept));
+        gutterHighlighters.add(addGutterAction(line, AllIcons.Actions.Close, "Reject", this::reject));
+    }
+
+    private RangeHighlighter addGutterAction(int line, Icon icon, String tooltip, Runnable action) {
+        RangeHighlighter highlighter = editor.getMarkupModel().addLineHighlighter(line, HighlighterLayer.LAST, null);
+        highlighter.setGutterIconRenderer(new GutterIconRenderer() {
+            @Override
+            public @NotNull Icon getIcon() {
+                return icon;
+            }
+
+            @Override
+            public String getTooltipText() {
+                return tooltip;
+            }
+
+            @Override
+            public boolean isNavigateAction() {
+                return true;
+            }
+
+            @Override
+            public AnAction getClickAction() {
+                return DumbAwareAction.create(tooltip, e -> action.run());
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj == this;
+            }
 
-        Disposable disposable = editorComponentInlaysManager.insert(startLine, textArea, false, 0);
-        deletionInlays.add(disposable);
+            @Override
+            public int hashCode() {
+                return System.identityHashCode(this);
+            }
+        });
+        return uiRegistry.add(EditorUiRegistry.Kind.DIFF, highlighter);
     }
 
     private void renderButtons() {
+        if (buttonsInlay != null) {
+            return;
+        }
+        JComponent[] buttons = createButtons();
         // 创建一个面板
         JPanel panel = new JPanel();
         panel.setOpaque(false);
 
         // 设置布局管理器，居右对齐，并设置水平间隔为 5 像素
         panel.setLayout(new FlowLayout(FlowLayout.RIGHT, 5, 0)); // 5 像素的水平间隔，垂直间隔为 0
-        panel.add(rejectButton);
-        panel.add(acceptButton);
-        Disposable disposable = editorComponentInlaysManager.insert(startLine, panel, false, 0);
-        deletionInlays.add(disposable);
+        panel.add(buttons[1]);
+        panel.add(buttons[0]);
+        buttonsInlay = editorComponentInlaysManager.insert(Math.min(startLine, editor.getDocument().getLineCount() - 1), panel, false, 0);
 
         refreshEditor();
     }
 
+    private void accept() {
+        handleAccept();
+        onAcceptReject.onAcceptReject(this, true);
+    }
+
+    private void reject() {
+        handleReject();
+        onAcceptReject.onAcceptReject(this, false);
+    }
+
     private JComponent[] createButtons() {
         Font editorFont = editor.getColorsScheme().getFont(EditorFontType.PLAIN);
         int fontSize = Math.max(4, editorFont.getSize() - 1);
         Font font = UIUtil.getFontWithFallback("Arial", Font.PLAIN, fontSize);
-        CustomButton rejectBtn = new CustomButton(" Reject ", font, () -> {
-            handleReject();
-            onAcceptReject.onAcceptReject(this, false);
-        });
+        CustomButton rejectBtn = new CustomButton(" Reject ", font, this::reject);
         rejectBtn.setBackground(new JBColor(0x99FF0000, 0x99FF0000));
         rejectBtn.setForeground(new JBColor(0xF5F5F5, 0xF5F5F5));
 
-        CustomButton acceptBtn = new CustomButton(" Accept ", font, () -> {
-            handleAccept();
-            onAcceptReject.onAcceptReject(this, true);
-        });
+        CustomButton acceptBtn = new CustomButton(" Accept ", font, this::accept);
         acceptBtn.setBackground(new JBColor(0x9900FF00, 0x9900FF00));
         acceptBtn.setForeground(new JBColor(0xF5F5F5, 0xF5F5F5));
 
@@ -154,7 +262,10 @@ public class VerticalDiffBlock {
     }
 
     private void removeButtons() {
-
+        if (buttonsInlay != null) {
+            buttonsInlay.dispose();
+            buttonsInlay = null;
+        }
         refreshEditor();
     }
 
@@ -163,57 +274,20 @@ public class VerticalDiffBlock {
     }
 
     private void revertDiff() {
-        WriteCommandAction.runWriteCommandAction(project, () -> {
-            // Delete the added lines
-            int startOffset = editor.getDocument().getLineStartOffset(startLine);
-            int endOffset = editor.getDocument().getLineEndOffset(startLine + addedLines.size() - 1) + 1;
-            editor.getDocument().deleteString(startOffset, endOffset);
-
-            // Add the deleted lines back
-            if (!deletedLines.isEmpty()) {
-                editor.getDocument().insertString(startOffset, String.join("", deletedLines));
-            }
-        });
+        List<String> restored = new ArrayList<>(deletedLines.size());
+        for (String line : deletedLines) {
+            restored.add(StringUtils.removeEnd(line, "\n"));
+        }
+        // 和应用时一样处理文件末尾没有换行符的情况
+        WriteCommandAction.runWriteCommandAction(project,
+                () -> DiffApplyEngine.revert(editor.getDocument(), startLine, addedLines, restored));
     }
 
     private void removeGreenHighlighters() {
-        List<RangeHighlighter> highlightersToRemove = new ArrayList<>();
-        for (RangeHighlighter highlighter : editor.getMarkupModel().getAllHighlighters()) {
-            int highlighterLine = editor.getDocument().getLineNumber(highlighter.getStartOffset());
-            if (highlighterLine >= startLine && highlighterLine < startLine + addedLines.size()) {
-                highlightersToRemove.add(highlighter);
-            }
-        }
-
-        for (RangeHighlighter highlighter : highlightersToRemove) {
-            editor.getMarkupModel().removeHighlighter(highlighter);
+        for (RangeHighlighter highlighter : greenHighlighters) {
+            uiRegistry.remove(EditorUiRegistry.Kind.DIFF, highlighter);
         }
-    }
-
-    private JTextArea createDeletionTextArea(String text) {
-        JTextArea textArea = new JTextArea(text);
-        textArea.setEditable(false);
-        textArea.setBackground(new JBColor(0x30FF0000, 0x30FF0000));
-        textArea.setForeground(JBColor.GRAY);
-        textArea.setBorder(BorderFactory.createEmptyBorder());
-        textArea.setLineWrap(false);
-        textArea.setWrapStyleWord(false);
-        //idea 默认编辑器字体 jetBrains Mono不支持中文显示，会输出乱码，所以用其他字体代替
-        Font editorFont = editor.getColorsScheme().getFont(EditorFontType.PLAIN);
-        textArea.setFont(UIUtil.getFontWithFallback("Fira Code", Font.PLAIN, editorFont.getSize()));
-        return textArea;
-    }
-
-    private Point getButtonsXYPositions() {
-        Rectangle visibleArea = editor.getScrollingModel().getVisibleArea();
-        int textAreaHeight = (textArea != null) ? textArea.getHeight() : 0;
-        Point lineStartPosition = editor.logicalPositionToXY(new LogicalPosition(startLine, 0));
-
-        int xPosition = visibleArea.x + visibleArea.width - acceptButton.getPreferredSize().width - rejectButton.getPreferredSize().width - 20;
-//        int yPosition = lineStartPosition.y - textAreaHeight;
-        int yPosition = lineStartPosition.y;
-
-        return new Point(xPosition, yPosition);
+        greenHighlighters.clear();
     }
 
     private JButton createButton(String text, JBColor backgroundColor) {
@@ -0,0 +1,229 @@
+package com.voidmuse.idea.plugin.editor.diff;
+
+import com.github.difflib.DiffUtils;
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.patch.DeltaType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 行级histogram diff。
+ * <ul>
+ *     <li>每行先通过hash表映射成int id，之后只比较int数组</li>
+ *     <li>去掉公共前缀和后缀，只对中间部分做diff</li>
+ *     <li>在区间内选出现次数最少的公共行为锚点，取包含锚点的最长相同片段，再对两侧递归</li>
+ *     <li>区间内公共行都重复太多时退回Myers；超时后剩余区间整体作为替换</li>
+ * </ul>
+ */
+public class HistogramDiff {
+    /**
+     * 出现次数超过该值的行不作为锚点
+     */
+    private static final int MAX_CHAIN_LENGTH = 64;
+    /**
+     * 退回Myers时区间的最大行数，再大直接整体替换
+     */
+    private static final int MYERS_FALLBACK_LIMIT = 2000;
+    public static final long DEFAULT_TIMEOUT_MS = 1000;
+
+    private final List<String> oldLines;
+    private final List<String> newLines;
+    private final long deadline;
+
+    private int[] a;
+    private int[] b;
+    /**
+     * a[i]匹配到的b的下标，-1表示删除
+     */
+    private int[] matchA;
+    /**
+     * b[j]匹配到的a的下标，-1表示新增
+     */
+    private int[] matchB;
+
+    // 区间内每个id在a中的出现链表，所有区间共用，处理完一个区间后只重置用到的位置
+    private int[] head;
+    private int[] next;
+    private int[] count;
+
+    private HistogramDiff(List<String> oldLines, List<String> newLines, long timeoutMs) {
+        this.oldLines = oldLines;
+        this.newLines = newLines;
+        this.deadline = System.currentTimeMillis() + timeoutMs;
+    }
+
+    public static List<DiffLine> diff(List<String> oldLines, List<String> newLines) {
+        return diff(oldLines, newLines, DEFAULT_TIMEOUT_MS);
+    }
+
+    public static List<DiffLine> diff(List<String> oldLines, List<String> newLines, long timeoutMs) {
+        return new HistogramDiff(oldLines, newLines, timeoutMs).run();
+    }
+
+    private List<DiffLine> run() {
+        intern();
+        int n = a.length;
+        int m = b.length;
+        matchA = new int[n];
+        matchB = new int[m];
+        Arrays.fill(matchA, -1);
+        Arrays.fill(matchB, -1);
+
+        int prefix = 0;
+        while (prefix < n && prefix < m && a[prefix] == b[prefix]) {
+            match(prefix, prefix, 1);
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix && a[n - 1 - suffix] == b[m - 1 - suffix]) {
+            match(n - 1 - suffix, m - 1 - suffix, 1);
+            suffix++;
+        }
+
+        next = new int[n];
+        Deque<int[]> regions = new ArrayDeque<>();
+        regions.push(new int[]{prefix, n - suffix, prefix, m - suffix});
+        while (!regions.isEmpty()) {
+            int[] region = regions.pop();
+            diffRegion(region[0], region[1], region[2], region[3], regions);
+        }
+        return toDiffLines();
+    }
+
+    private void intern() {
+        Map<String, Integer> ids = new HashMap<>(oldLines.size() + newLines.size());
+        a = new int[oldLines.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = ids.computeIfAbsent(oldLines.get(i), k -> ids.size());
+        }
+        b = new int[newLines.size()];
+        for (int j = 0; j < b.length; j++) {
+            b[j] = ids.computeIfAbsent(newLines.get(j), k -> ids.size());
+        }
+        head = new int[ids.size()];
+        count = new int[ids.size()];
+        Arrays.fill(head, -1);
+    }
+
+    private void diffRegion(int aStart, int aEnd, int bStart, int bEnd, Deque<int[]> regions) {
+        if (aStart >= aEnd || bStart >= bEnd || System.currentTimeMillis() > deadline) {
+            // 未匹配的行即为删除和新增
+            return;
+        }
+
+        for (int i = aEnd - 1; i >= aStart; i--) {
+            int id = a[i];
+            next[i] = head[id];
+            head[id] = i;
+            count[id]++;
+        }
+
+        int bestLength = 0;
+        int bestCount = MAX_CHAIN_LENGTH + 1;
+        int bestA = -1;
+        int bestB = -1;
+        boolean hasCommon = false;
+        for (int j = bStart; j < bEnd; ) {
+            int id = b[j];
+            int nextJ = j + 1;
+            if (count[id] > 0) {
+                hasCommon = true;
+            }
+            if (count[id] == 0 || count[id] > MAX_CHAIN_LENGTH || count[id] > bestCount) {
+                j = nextJ;
+                continue;
+            }
+            for (int i = head[id]; i != -1; i = next[i]) {
+                int as = i;
+                int bs = j;
+                while (as > aStart && bs > bStart && a[as - 1] == b[bs - 1]) {
+                    as--;
+                    bs--;
+                }
+                int ae = i + 1;
+                int be = j + 1;
+                int runCount = count[id];
+                while (ae < aEnd && be < bEnd && a[ae] == b[be]) {
+                    runCount = Math.min(runCount, count[a[ae]]);
+                    ae++;
+                    be++;
+                }
+                for (int k = as; k < i; k++) {
+                    runCount = Math.min(runCount, count[a[k]]);
+                }
+                if (runCount < bestCount || (runCount == bestCount && ae - as > bestLength)) {
+                    bestLength = ae - as;
+                    bestCount = runCount;
+                    bestA = as;
+                    bestB = bs;
+                }
+                nextJ = Math.max(nextJ, be);
+            }
+            j = nextJ;
+        }
+
+        for (int i = aStart; i < aEnd; i++) {
+            head[a[i]] = -1;
+            count[a[i]] = 0;
+        }
+
+        if (bestLength == 0) {
+            if (hasCommon) {
+                // 公共行都重复太多，没有合适的锚点
+                myersFallback(aStart, aEnd, bStart, bEnd);
+            }
+            return;
+        }
+        match(bestA, bestB, bestLength);
+        regions.push(new int[]{bestA + bestLength, aEnd, bestB + bestLength, bEnd});
+        regions.push(new int[]{aStart, bestA, bStart, bestB});
+    }
+
+    private void myersFallback(int aStart, int aEnd, int bStart, int bEnd) {
+        if (aEnd - aStart > MYERS_FALLBACK_LIMIT || bEnd - bStart > MYERS_FALLBACK_LIMIT) {
+            return;
+        }
+        List<AbstractDelta<String>> deltas = DiffUtils.diff(
+                oldLines.subList(aStart, aEnd), newLines.subList(bStart, bEnd), true).getDeltas();
+        for (AbstractDelta<String> delta : deltas) {
+            if (delta.getType() == DeltaType.EQUAL) {
+                match(aStart + delta.getSource().getPosition(), bStart + delta.getTarget().getPosition(),
+                        delta.getSource().size());
+            }
+        }
+    }
+
+    private void match(int aIndex, int bIndex, int length) {
+        for (int k = 0; k < length; k++) {
+            matchA[aIndex + k] = bIndex + k;
+            matchB[bIndex + k] = aIndex + k;
+        }
+    }
+
+    /**
+     * 按顺序输出，同一处改动先输出删除的行，再输出新增的行
+     */
+    private List<DiffLine> toDiffLines() {
+        List<DiffLine> diffLines = new ArrayList<>(Math.max(a.length, b.length));
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && matchA[i] == -1) {
+                diffLines.add(new DiffLine(DiffLineType.OLD, oldLines.get(i++)));
+            } else if (j < b.length && matchB[j] == -1) {
+                diffLines.add(new DiffLine(DiffLineType.NEW, newLines.get(j++)));
+            } else {
+                diffLines.add(new DiffLine(DiffLineType.SAME, oldLines.get(i)));
+                i++;
+                j++;
+            }
+        }
+        return diffLines;
+    }
+}
@@ -0,0 +1,369 @@
+package com.voidmuse.idea.plugin.editor.diff;
+
+import com.github.difflib.patch.ChangeDelta;
+import com.github.difflib.patch.Chunk;
+import com.github.difflib.patch.Patch;
+import com.github.difflib.patch.PatchFailedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 把模型生成的补丁应用到原文，支持两种格式：
+ * <ul>
+ *     <li>unified diff：hunk头的行号只作为查找起点，行数不校验，上下文空行缺少前导空格也能识别</li>
+ *     <li>SEARCH/REPLACE块：{@code <<<<<<< SEARCH}、{@code =======}、{@code >>>>>>> REPLACE}</li>
+ * </ul>
+ * 每个hunk在原文中依次按完全相同、忽略行尾空白、忽略全部空白查找，取离预期位置最近的匹配；
+ * 仍找不到时去掉首尾最多{@link #MAX_FUZZ}行上下文再找。定位后用java-diff-utils的{@link Patch}应用。
+ * SEARCH部分为空的块追加到文件末尾。
+ */
+public class PatchApplier {
+    /**
+     * 最多去掉的首尾上下文行数
+     */
+    private static final int MAX_FUZZ = 2;
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@\\s*-(\\d+)(?:,(\\d+))?\\s+\\+\\d+(?:,(\\d+))?\\s*@@.*");
+    private static final String SEARCH_MARKER = "<<<<<<< SEARCH";
+    private static final String DIVIDER_MARKER = "=======";
+    private static final String REPLACE_MARKER = ">>>>>>> REPLACE";
+
+    /**
+     * 匹配级别，依次放宽
+     */
+    private static final List<Function<String, String>> NORMALIZERS = List.of(
+            Function.identity(),
+            String::stripTrailing,
+            line -> line.replaceAll("\\s+", "")
+    );
+
+    private enum Op {CONTEXT, DELETE, ADD}
+
+    private record HunkLine(Op op, String text) {
+    }
+
+    private static class Hunk {
+        /**
+         * hunk头中原文的起始行，从0开始，没有时为-1
+         */
+        final int expectedLine;
+        final List<HunkLine> lines = new ArrayList<>();
+        /**
+         * hunk头中的原文和新内容行数，没有时为-1；只用来判断hunk是否结束，不校验
+         */
+        int oldCount = -1;
+        int newCount = -1;
+        /**
+         * 追加到文件末尾
+         */
+        boolean append;
+
+        Hunk(int expectedLine) {
+            this.expectedLine = expectedLine;
+        }
+
+        /**
+         * 按hunk头的行数，内容行是否已经读完
+         */
+        boolean isComplete() {
+            if (oldCount < 0) {
+                return true;
+            }
+            long oldLines = lines.stream().filter(line -> line.op() != Op.ADD).count();
+            long newLines = lines.stream().filter(line -> line.op() != Op.DELETE).count();
+            return oldLines >= oldCount && newLines >= newCount;
+        }
+    }
+
+    private PatchApplier() {
+    }
+
+    public static boolean isSearchReplace(String patch) {
+        return patch.contains(SEARCH_MARKER) && patch.contains(REPLACE_MARKER);
+    }
+
+    /**
+     * @return 应用补丁后的内容
+     * @throws PatchFailedException 补丁格式错误，或有hunk在原文中找不到
+     */
+    public static String apply(String original, String patchText) throws PatchFailedException {
+        String patch = patchText.replace("\r\n", "\n");
+        List<Hunk> hunks = isSearchReplace(patch) ? parseSearchReplace(patch) : parseUnifiedDiff(patch);
+        if (hunks.isEmpty()) {
+            throw new PatchFailedException("no hunk found in patch");
+        }
+
+        boolean ordered = !isSearchReplace(patch);
+        List<String> originalLines = Arrays.asList(original.split("\n", -1));
+        List<ChangeDelta<String>> deltas = new ArrayList<>();
+        int previousEnd = 0;
+        // 前面hunk实际位置和hunk头行号的偏差，用于修正后面hunk的预期位置
+        int drift = 0;
+        for (int i = 0; i < hunks.size(); i++) {
+            Hunk hunk = hunks.get(i);
+            int expected = hunk.expectedLine >= 0 ? Math.max(hunk.expectedLine + drift, previousEnd) : previousEnd;
+            // unified diff的hunk按顺序排列；SEARCH/REPLACE块不要求顺序，取离上一块最近的匹配
+            ChangeDelta<String> delta = locate(originalLines, hunk, ordered ? previousEnd : 0, expected);
+            if (delta == null) {
+                throw new PatchFailedException("hunk " + (i + 1) + " not found: " + firstSourceLine(hunk));
+            }
+            if (hunk.expectedLine >= 0) {
+                drift = delta.getSource().getPosition() - hunk.expectedLine;
+            }
+            previousEnd = delta.getSource().getPosition() + delta.getSource().size();
+            deltas.add(delta);
+        }
+
+        deltas.sort(Comparator.comparingInt(delta -> delta.getSource().getPosition()));
+        Patch<String> located = new Patch<>();
+        int lastEnd = 0;
+        for (ChangeDelta<String> delta : deltas) {
+            if (delta.getSource().getPosition() < lastEnd) {
+                throw new PatchFailedException("overlapping hunks at line " + (delta.getSource().getPosition() + 1));
+            }
+            lastEnd = delta.getSource().getPosition() + delta.getSource().size();
+            located.addDelta(delta);
+        }
+        return String.join("\n", located.applyTo(originalLines));
+    }
+
+    private static ChangeDelta<String> locate(List<String> originalLines, Hunk hunk, int searchFrom, int expected) {
+        List<HunkLine> lines = hunk.lines;
+        for (int fuzz = 0; fuzz <= MAX_FUZZ; fuzz++) {
+            int head = Math.min(fuzz, leadingContext(lines));
+            int tail = Math.min(fuzz, trailingContext(lines));
+            if (fuzz > 0 && head + tail == 0) {
+                break;
+            }
+            List<HunkLine> trimmed = lines.subList(head, lines.size() - tail);
+            List<String> source = new ArrayList<>();
+            for (HunkLine line : trimmed) {
+                if (line.op() != Op.ADD) {
+                    source.add(line.text());
+                }
+            }
+            if (source.isEmpty()) {
+                if (fuzz > 0) {
+                    // 上下文全部去掉后没有可定位的行
+                    break;
+                }
+                // 纯新增且没有上下文，插入到预期位置；追加时插在末尾换行之前
+                int end = originalLines.get(originalLines.size() - 1).isEmpty() ? originalLines.size() - 1 : originalLines.size();
+                int position = hunk.append ? end : Math.min(expected, end);
+                return toDelta(originalLines, trimmed, position, false);
+            }
+            for (Function<String, String> normalizer : NORMALIZERS) {
+                int position = find(originalLines, source, searchFrom, expected, normalizer);
+                if (position >= 0) {
+                    return toDelta(originalLines, trimmed, position, normalizer != NORMALIZERS.get(0));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 返回离expected最近的匹配位置，找不到返回-1
+     */
+    private static int find(List<String> originalLines, List<String> source, int searchFrom, int expected,
+                            Function<String, String> normalizer) {
+        List<String> normalizedSource = source.stream().map(normalizer).toList();
+        int last = originalLines.size() - source.size();
+        int best = -1;
+        for (int position = searchFrom; position <= last; position++) {
+            if (best >= 0 && position - expected > expected - best) {
+                break;
+            }
+            if (matchesAt(originalLines, normalizedSource, position, normalizer)
+                    && (best < 0 || Math.abs(position - expected) < Math.abs(best - expected))) {
+                best = position;
+            }
+        }
+        return best;
+    }
+
+    private static boolean matchesAt(List<String> originalLines, List<String> normalizedSource, int position,
+                                     Function<String, String> normalizer) {
+        for (int k = 0; k < normalizedSource.size(); k++) {
+            if (!normalizer.apply(originalLines.get(position + k)).equals(normalizedSource.get(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 上下文行取原文中的实际内容，保留原来的缩进
+     *
+     * @param reindent 按空白宽松匹配时，新增行补上原文比补丁多出的缩进
+     */
+    private static ChangeDelta<String> toDelta(List<String> originalLines, List<HunkLine> lines, int position,
+                                               boolean reindent) {
+        String extraIndent = reindent ? extraIndent(originalLines, lines, position) : "";
+        List<String> source = new ArrayList<>();
+        List<String> target = new ArrayList<>();
+        int cursor = position;
+        for (HunkLine line : lines) {
+            switch (line.op()) {
+                case CONTEXT -> {
+                    String actual = originalLines.get(cursor++);
+                    source.add(actual);
+                    target.add(actual);
+                }
+                case DELETE -> source.add(originalLines.get(cursor++));
+                case ADD -> target.add(line.text().isEmpty() ? "" : extraIndent + line.text());
+            }
+        }
+        return new ChangeDelta<>(new Chunk<>(position, source), new Chunk<>(position, target));
+    }
+
+    /**
+     * 第一个非空的原文行在原文中的缩进比补丁中多出的部分；补丁缩进不是原文缩进的前缀时不调整
+     */
+    private static String extraIndent(List<String> originalLines, List<HunkLine> lines, int position) {
+        int cursor = position;
+        for (HunkLine line : lines) {
+            if (line.op() == Op.ADD) {
+                continue;
+            }
+            String actual = originalLines.get(cursor++);
+            if (line.text().isBlank()) {
+                continue;
+            }
+            String actualIndent = indentOf(actual);
+            String patchIndent = indentOf(line.text());
+            return actualIndent.startsWith(patchIndent) ? actualIndent.substring(patchIndent.length()) : "";
+        }
+        return "";
+    }
+
+    private static String indentOf(String line) {
+        int end = 0;
+        while (end < line.length() && Character.isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        return line.substring(0, end);
+    }
+
+    private static List<Hunk> parseUnifiedDiff(String patch) throws PatchFailedException {
+        List<Hunk> hunks = new ArrayList<>();
+        Hunk current = null;
+        String[] patchLines = patch.split("\n", -1);
+        for (int i = 0; i < patchLines.length; i++) {
+            String line = patchLines[i];
+            if (line.startsWith("@@")) {
+                Matcher matcher = HUNK_HEADER.matcher(line);
+                boolean matches = matcher.matches();
+                current = new Hunk(matches ? Math.max(0, Integer.parseInt(matcher.group(1)) - 1) : -1);
+                if (matches) {
+                    current.oldCount = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 1;
+                    current.newCount = matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 1;
+                }
+                hunks.add(current);
+                continue;
+            }
+            if (current == null || line.startsWith("\\")) {
+                // 文件头（diff、---、+++、index）和"\ No newline at end of file"
+                continue;
+            }
+            if (isFileHeader(patchLines, i) && current.isComplete()) {
+                // 下一个文件的文件头，只处理单个文件的补丁；hunk还没读完时是删除"-- "行和新增"++ "行
+                current = null;
+                i++;
+                continue;
+            }
+            if (line.startsWith("+")) {
+                current.lines.add(new HunkLine(Op.ADD, line.substring(1)));
+            } else if (line.startsWith("-")) {
+                current.lines.add(new HunkLine(Op.DELETE, line.substring(1)));
+            } else if (line.startsWith(" ")) {
+                current.lines.add(new HunkLine(Op.CONTEXT, line.substring(1)));
+            } else if (line.isEmpty()) {
+                // 模型经常丢掉空上下文行的前导空格
+                current.lines.add(new HunkLine(Op.CONTEXT, ""));
+            } else {
+                throw new PatchFailedException("invalid patch line: " + line);
+            }
+        }
+        for (Hunk hunk : hunks) {
+            // patch末尾换行产生的空上下文行
+            List<HunkLine> lines = hunk.lines;
+            while (!lines.isEmpty() && lines.get(lines.size() - 1).op() == Op.CONTEXT
+                    && lines.get(lines.size() - 1).text().isEmpty()) {
+                lines.remove(lines.size() - 1);
+            }
+        }
+        hunks.removeIf(hunk -> hunk.lines.stream().allMatch(line -> line.op() == Op.CONTEXT));
+        return hunks;
+    }
+
+    /**
+     * "--- "和"+++ "两行之后是hunk头、下一个diff或补丁结束
+     */
+    private static boolean isFileHeader(String[] patchLines, int i) {
+        if (!patchLines[i].startsWith("--- ") || i + 1 >= patchLines.length || !patchLines[i + 1].startsWith("+++ ")) {
+            return false;
+        }
+        String next = i + 2 < patchLines.length ? patchLines[i + 2] : "";
+        return (next.isEmpty() && i + 3 >= patchLines.length) || next.startsWith("@@") || next.startsWith("diff ");
+    }
+
+    private static List<Hunk> parseSearchReplace(String patch) throws PatchFailedException {
+        List<Hunk> hunks = new ArrayList<>();
+        List<String> search = null;
+        List<String> replace = null;
+        for (String line : patch.split("\n", -1)) {
+            String marker = line.trim();
+            if (marker.equals(SEARCH_MARKER)) {
+                search = new ArrayList<>();
+            } else if (marker.equals(DIVIDER_MARKER) && search != null && replace == null) {
+                replace = new ArrayList<>();
+            } else if (marker.equals(REPLACE_MARKER) && replace != null) {
+                Hunk hunk = new Hunk(-1);
+                // SEARCH为空时没有可定位的内容，追加到末尾而不是插到文件开头
+                hunk.append = search.stream().allMatch(String::isBlank);
+                if (!hunk.append) {
+                    search.forEach(text -> hunk.lines.add(new HunkLine(Op.DELETE, text)));
+                }
+                replace.forEach(text -> hunk.lines.add(new HunkLine(Op.ADD, text)));
+                hunks.add(hunk);
+                search = null;
+                replace = null;
+            } else if (replace != null) {
+                replace.add(line);
+            } else if (search != null) {
+                search.add(line);
+            }
+        }
+        if (search != null) {
+            throw new PatchFailedException("unterminated SEARCH/REPLACE block");
+        }
+        return hunks;
+    }
+
+    private static int leadingContext(List<HunkLine> lines) {
+        int count = 0;
+        while (count < lines.size() && lines.get(count).op() == Op.CONTEXT) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int trailingContext(List<HunkLine> lines) {
+        int count = 0;
+        while (count < lines.size() && lines.get(lines.size() - 1 - count).op() == Op.CONTEXT) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String firstSourceLine(Hunk hunk) {
+        return hunk.lines.stream().filter(line -> line.op() != Op.ADD).map(HunkLine::text)
+                .filter(text -> !text.isBlank()).findFirst().orElse("");
+    }
+}
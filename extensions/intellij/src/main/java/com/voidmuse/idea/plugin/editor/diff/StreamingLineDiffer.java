@@ -0,0 +1,148 @@
+package com.voidmuse.idea.plugin.editor.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式行对比：新内容边生成边对比，不需要等完整文本。
+ * 每收到一行，在原文当前位置之后有限的窗口内找相同的行：
+ * <ul>
+ *     <li>找到：跳过的原文行输出OLD，匹配行输出SAME，只有空白不同时输出OLD和NEW</li>
+ *     <li>没找到：输出NEW</li>
+ * </ul>
+ * 需要跳过原文行的匹配会删除文档中的内容且无法撤回，先暂存，等下一个强匹配行在附近也对齐后才确认；
+ * 对齐不上则按新增处理。{@code return result;}、空行、单个括号这类重复出现的行因此不会误删中间的原文。
+ */
+public class StreamingLineDiffer {
+    /**
+     * 在原文中向后查找匹配行的最大行数
+     */
+    private static final int LOOKAHEAD = 64;
+    /**
+     * 弱匹配行最多暂存的行数，超出后不再等待确认
+     */
+    private static final int MAX_PENDING = 8;
+    /**
+     * 确认行在原文中离匹配行的距离，最多比在新内容中的距离多这么多行
+     */
+    private static final int CONFIRM_SLACK = 2;
+
+    private final List<String> oldLines;
+    private final List<String> pending = new ArrayList<>();
+    private final StringBuilder partialLine = new StringBuilder();
+    private int oldIndex = 0;
+
+    public StreamingLineDiffer(List<String> oldLines) {
+        this.oldLines = oldLines;
+    }
+
+    /**
+     * 追加一段新内容，返回已经能确定的diff行；最后不完整的一行留到下次
+     */
+    public List<DiffLine> push(String chunk) {
+        List<DiffLine> result = new ArrayList<>();
+        int start = 0;
+        int newline;
+        while ((newline = chunk.indexOf('\n', start)) >= 0) {
+            partialLine.append(chunk, start, newline);
+            pending.add(stripCarriageReturn(partialLine.toString()));
+            partialLine.setLength(0);
+            start = newline + 1;
+        }
+        partialLine.append(chunk, start, chunk.length());
+        process(result, false);
+        return result;
+    }
+
+    /**
+     * 新内容结束，输出剩余的diff行，原文中没有匹配到的行都按删除处理
+     */
+    public List<DiffLine> finish() {
+        List<DiffLine> result = new ArrayList<>();
+        if (partialLine.length() > 0) {
+            pending.add(stripCarriageReturn(partialLine.toString()));
+            partialLine.setLength(0);
+        }
+        process(result, true);
+        while (oldIndex < oldLines.size()) {
+            result.add(new DiffLine(DiffLineType.OLD, oldLines.get(oldIndex++)));
+        }
+        return result;
+    }
+
+    private void process(List<DiffLine> result, boolean finished) {
+        while (!pending.isEmpty()) {
+            String line = pending.get(0);
+            int match = findMatch(line, oldIndex);
+            if (match > oldIndex) {
+                Boolean confirmed = confirmMatch(match);
+                if (confirmed == null && !finished) {
+                    // 等后面的行来确认
+                    return;
+                }
+                if (Boolean.FALSE.equals(confirmed)) {
+                    match = -1;
+                }
+            }
+            pending.remove(0);
+            if (match < 0) {
+                result.add(new DiffLine(DiffLineType.NEW, line));
+                continue;
+            }
+            while (oldIndex < match) {
+                result.add(new DiffLine(DiffLineType.OLD, oldLines.get(oldIndex++)));
+            }
+            String oldLine = oldLines.get(oldIndex++);
+            if (oldLine.equals(line)) {
+                result.add(new DiffLine(DiffLineType.SAME, oldLine));
+            } else {
+                // 只有缩进或空格不同，对齐位置不变，内容替换成新的
+                result.add(new DiffLine(DiffLineType.OLD, oldLine));
+                result.add(new DiffLine(DiffLineType.NEW, line));
+            }
+        }
+    }
+
+    /**
+     * 匹配行之后的第一个强匹配行是否也在原文中紧跟着对齐；还没有后续强匹配行时返回null
+     */
+    private Boolean confirmMatch(int match) {
+        for (int i = 1; i < pending.size(); i++) {
+            String next = pending.get(i);
+            if (!isWeak(next)) {
+                int nextMatch = findMatch(next, match + 1);
+                return nextMatch >= 0 && nextMatch - match <= i + CONFIRM_SLACK;
+            }
+        }
+        return pending.size() >= MAX_PENDING ? Boolean.FALSE : null;
+    }
+
+    private int findMatch(String line, int from) {
+        int end = Math.min(oldLines.size(), from + LOOKAHEAD);
+        for (int i = from; i < end; i++) {
+            if (oldLines.get(i).equals(line)) {
+                return i;
+            }
+        }
+        // 模型经常改动缩进和行尾空格
+        String trimmed = line.trim();
+        if (trimmed.isEmpty()) {
+            return -1;
+        }
+        for (int i = from; i < end; i++) {
+            if (oldLines.get(i).trim().equals(trimmed)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWeak(String line) {
+        String trimmed = line.trim();
+        return trimmed.length() <= 2;
+    }
+
+    private static String stripCarriageReturn(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
@@ -3,12 +3,10 @@ package com.voidmuse.idea.plugin.editor.diff;
 import com.github.difflib.DiffUtils;
 import com.github.difflib.algorithm.myers.MeyersDiff;
 import com.github.difflib.patch.AbstractDelta;
-import com.github.difflib.patch.DeltaType;
 import com.github.difflib.patch.Patch;
 import com.github.difflib.text.DiffRow;
 import com.github.difflib.text.DiffRowGenerator;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -27,32 +25,11 @@ public class TextDiff {
     }
 
 
+    /**
+     * 使用{@link HistogramDiff}，大文件也能在有限时间内返回
+     */
     public List<DiffLine> genDiffLines() {
-        Patch<String> patch = DiffUtils.diff(oldLines, newLines, true);
-        List<DiffLine> diffLines = new ArrayList<>();
-        for (AbstractDelta<String> delta : patch.getDeltas()) {
-            if (delta.getType().equals(DeltaType.INSERT)) {
-                for (String line : delta.getTarget().getLines()) {
-                    diffLines.add(new DiffLine(DiffLineType.NEW, line));
-                }
-            } else if (delta.getType().equals(DeltaType.CHANGE)) {
-                for (String line : delta.getSource().getLines()) {
-                    diffLines.add(new DiffLine(DiffLineType.OLD, line));
-                }
-                for (String line : delta.getTarget().getLines()) {
-                    diffLines.add(new DiffLine(DiffLineType.NEW, line));
-                }
-            } else if (delta.getType().equals(DeltaType.EQUAL)) {
-                for (String line : delta.getSource().getLines()) {
-                    diffLines.add(new DiffLine(DiffLineType.SAME, line));
-                }
-            } else if (delta.getType().equals(DeltaType.DELETE)) {
-                for (String line : delta.getSource().getLines()) {
-                    diffLines.add(new DiffLine(DiffLineType.OLD, line));
-                }
-            }
-        }
-        return diffLines;
+        return HistogramDiff.diff(oldLines, newLines);
     }
 
 
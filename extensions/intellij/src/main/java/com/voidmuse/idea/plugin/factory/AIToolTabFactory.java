@@ -13,7 +13,6 @@ import com.voidmuse.idea.plugin.service.ProtocDispatchService;
 import com.voidmuse.idea.plugin.setting.ConfigurationSettings;
 import com.voidmuse.idea.plugin.setting.ConfigurationSettingsState;
 import com.voidmuse.idea.plugin.util.StateUtils;
-import org.cef.CefApp;
 import org.cef.browser.CefBrowser;
 import org.cef.browser.CefFrame;
 import org.cef.browser.CefMessageRouter;
@@ -78,8 +77,7 @@ public class AIToolTabFactory implements ToolWindowFactory {
                     
                     // 尝试注册scheme handler
                     try {
-                        CefApp.getInstance()
-                                .registerSchemeHandlerFactory("http", "voidmuse", new DataSchemeHandlerFactory());
+                        DataSchemeHandlerFactory.register();
                         LOG.info("Scheme handler registered successfully");
                     } catch (Exception e) {
                         LOG.error("Failed to register scheme handler, will use static HTML fallback", e);
@@ -97,8 +95,7 @@ public class AIToolTabFactory implements ToolWindowFactory {
                         // Production mode: use static resources
                         targetUrl = "http://voidmuse/index.html";
                         try {
-                            CefApp.getInstance()
-                                    .registerSchemeHandlerFactory("http", "voidmuse", new DataSchemeHandlerFactory());
+                            DataSchemeHandlerFactory.register();
                             LOG.info("Auto mode: Using static resources with scheme handler");
                         } catch (Exception e) {
                             LOG.error("Failed to register scheme handler factory, falling back to static content", e);
@@ -111,6 +108,15 @@ public class AIToolTabFactory implements ToolWindowFactory {
                 }
             }
 
+            // 开发模式下页面不走scheme handler，但大响应的blob通道仍然需要它
+            if (!DataSchemeHandlerFactory.isRegistered()) {
+                try {
+                    DataSchemeHandlerFactory.register();
+                } catch (Exception e) {
+                    LOG.warn("Failed to register scheme handler, large responses will be sent inline", e);
+                }
+            }
+
             //添加一个监听，页面加载完成后再注册一次事件，防止丢失
             jbCefClient.addLoadHandler(new CefLoadHandler() {
                 @Override
@@ -137,6 +143,7 @@ public class AIToolTabFactory implements ToolWindowFactory {
                 }
             }, browser.getCefBrowser());
 
+            ProjectFileResource.allowPageOrigin(targetUrl);
             browser.loadURL(targetUrl);
             LOG.info("VoidMuse tool window content created successfully");
         } catch (Exception e) {
@@ -1,4 +1,5 @@
 package com.voidmuse.idea.plugin.factory;
+import org.cef.CefApp;
 import org.cef.browser.CefBrowser;
 import org.cef.browser.CefFrame;
 import org.cef.callback.CefSchemeHandlerFactory;
@@ -6,6 +7,26 @@ import org.cef.handler.CefResourceHandler;
 import org.cef.network.CefRequest;
 
 public class DataSchemeHandlerFactory implements CefSchemeHandlerFactory {
+    private static volatile boolean registered = false;
+
+    /**
+     * 注册 http://voidmuse 的scheme handler，重复调用只注册一次
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        CefApp.getInstance().registerSchemeHandlerFactory("http", "voidmuse", new DataSchemeHandlerFactory());
+        registered = true;
+    }
+
+    /**
+     * scheme handler注册成功后，前端才能通过 http://voidmuse/blob/ 等地址取数据
+     */
+    public static boolean isRegistered() {
+        return registered;
+    }
+
     public CefResourceHandler create(CefBrowser cefBrowser, CefFrame cefFrame, String s, CefRequest cefRequest) {
         return new WebResourceHandler();
     }
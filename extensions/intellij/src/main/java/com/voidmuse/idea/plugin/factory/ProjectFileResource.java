@@ -0,0 +1,337 @@
+package com.voidmuse.idea.plugin.factory;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 处理 http://voidmuse/fs/&lt;path&gt; 请求，让前端直接按需读取项目文件，不再经过JS桥做Base64。
+ * <ul>
+ *     <li>未保存的文件从内存中的Document读取，其余直接从VFS流式读取</li>
+ *     <li>支持 Range: bytes=a-b 以及 Range: lines=a-b（行号从1开始，闭区间），也可以用 ?startLine=&amp;endLine= 参数</li>
+ *     <li>ETag由修改戳生成，If-None-Match命中时返回304</li>
+ * </ul>
+ * 只允许访问已打开项目内容范围内的文件。scheme handler对所有JCEF页面生效，跨域读取只对插件自己的页面来源放行，
+ * 其它页面加载的内容读不到项目源码。
+ *
+ * @author zhangdaguan
+ */
+class ProjectFileResource {
+    private static final Logger LOG = Logger.getInstance(ProjectFileResource.class);
+
+    static final String FS_URL_PREFIX = "http://voidmuse/fs/";
+
+    /**
+     * 插件页面的来源，开发模式和自定义服务器的页面不是 http://voidmuse，需要跨域读取
+     */
+    private static final Set<String> ALLOWED_ORIGINS = ConcurrentHashMap.newKeySet();
+
+    private ProjectFileResource() {
+    }
+
+    /**
+     * 登记插件页面的地址，只有该来源的页面可以跨域读取项目文件
+     */
+    static void allowPageOrigin(String pageUrl) {
+        if (StringUtils.isBlank(pageUrl)) {
+            return;
+        }
+        try {
+            URI uri = URI.create(pageUrl);
+            if (uri.getScheme() != null && uri.getHost() != null) {
+                ALLOWED_ORIGINS.add(uri.getScheme() + "://" + uri.getHost() + (uri.getPort() >= 0 ? ":" + uri.getPort() : ""));
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid page url: " + pageUrl, e);
+        }
+    }
+
+    static ResourceHandlerState open(String method, String url, Map<String, String> requestHeaders) {
+        String origin = requestHeaders.get("Origin");
+        String allowOrigin = origin != null && ALLOWED_ORIGINS.contains(origin) ? origin : null;
+        if ("OPTIONS".equalsIgnoreCase(method)) {
+            // 开发模式跨域时 Range: lines=... 和 If-None-Match 会触发预检
+            if (allowOrigin == null) {
+                return status(403, null);
+            }
+            return status(204, allowOrigin)
+                    .header("Access-Control-Allow-Methods", "GET, HEAD, OPTIONS")
+                    .header("Access-Control-Allow-Headers", "Range, If-None-Match");
+        }
+        return serve(url, requestHeaders, allowOrigin);
+    }
+
+    private static StreamedResponse serve(String url, Map<String, String> requestHeaders, String allowOrigin) {
+        String rawPath = url.substring(FS_URL_PREFIX.length());
+        Map<String, String> queryParams = new HashMap<>();
+        int queryIndex = rawPath.indexOf('?');
+        if (queryIndex >= 0) {
+            parseQuery(rawPath.substring(queryIndex + 1), queryParams);
+            rawPath = rawPath.substring(0, queryIndex);
+        }
+        String path = toFilePath(URLDecoder.decode(rawPath, StandardCharsets.UTF_8));
+
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+        if (file == null || file.isDirectory() || !isInOpenProject(file)) {
+            return status(404, allowOrigin);
+        }
+
+        Document unsavedDocument = ReadAction.compute(() -> {
+            FileDocumentManager documentManager = FileDocumentManager.getInstance();
+            Document document = documentManager.getCachedDocument(file);
+            return document != null && documentManager.isDocumentUnsaved(document) ? document : null;
+        });
+        String etag = unsavedDocument != null
+                ? "\"d" + unsavedDocument.getModificationStamp() + "\""
+                : "\"f" + file.getModificationStamp() + "-" + file.getTimeStamp() + "\"";
+        if (etag.equals(requestHeaders.get("If-None-Match"))) {
+            return status(304, allowOrigin).header("ETag", etag);
+        }
+
+        String mimeType = file.getFileType().isBinary() ? "application/octet-stream" : "text/plain; charset=" + file.getCharset().name();
+        try {
+            String range = requestHeaders.get("Range");
+            if (queryParams.containsKey("startLine")) {
+                range = "lines=" + queryParams.get("startLine") + "-" + StringUtils.defaultString(queryParams.get("endLine"));
+            }
+            if (StringUtils.startsWith(range, "lines=")) {
+                return lineRange(file, unsavedDocument, range.substring("lines=".length()), mimeType, etag, allowOrigin);
+            }
+            if (StringUtils.startsWith(range, "bytes=")) {
+                return byteRange(file, unsavedDocument, range.substring("bytes=".length()), mimeType, etag, allowOrigin);
+            }
+            if (unsavedDocument != null) {
+                byte[] bytes = documentText(unsavedDocument).getBytes(file.getCharset());
+                return stream(200, allowOrigin, mimeType, new ByteArrayInputStream(bytes), bytes.length)
+                        .header("ETag", etag).header("Accept-Ranges", "bytes").header("Cache-Control", "no-cache");
+            }
+            return stream(200, allowOrigin, mimeType, file.getInputStream(), file.getLength())
+                    .header("ETag", etag).header("Accept-Ranges", "bytes").header("Cache-Control", "no-cache");
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("Failed to serve project file: " + path, e);
+            return status(416, allowOrigin);
+        }
+    }
+
+    private static StreamedResponse byteRange(VirtualFile file, Document unsavedDocument, String spec,
+                                              String mimeType, String etag, String allowOrigin) throws IOException {
+        byte[] documentBytes = unsavedDocument != null ? documentText(unsavedDocument).getBytes(file.getCharset()) : null;
+        long total = documentBytes != null ? documentBytes.length : file.getLength();
+        long[] range = parseRange(spec, total, false);
+        if (range == null) {
+            return status(416, allowOrigin).header("Content-Range", "bytes */" + total);
+        }
+        long start = range[0];
+        long length = range[1] - range[0] + 1;
+
+        InputStream inputStream;
+        if (documentBytes != null) {
+            inputStream = new ByteArrayInputStream(documentBytes, (int) start, (int) length);
+        } else {
+            inputStream = file.getInputStream();
+            inputStream.skipNBytes(start);
+            inputStream = new BoundedInputStream(inputStream, length);
+        }
+        return stream(206, allowOrigin, mimeType, inputStream, length)
+                .header("ETag", etag)
+                .header("Accept-Ranges", "bytes")
+                .header("Cache-Control", "no-cache")
+                .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + total);
+    }
+
+    private static StreamedResponse lineRange(VirtualFile file, Document unsavedDocument, String spec,
+                                              String mimeType, String etag, String allowOrigin) throws IOException {
+        LineWindow window = unsavedDocument != null ? documentLines(unsavedDocument, spec) : fileLines(file, spec);
+        long[] range = window.range();
+        if (range == null) {
+            return status(416, allowOrigin).header("Content-Range", "lines */" + window.lineCount());
+        }
+        byte[] bytes = window.text().getBytes(file.getCharset());
+        return stream(206, allowOrigin, mimeType, new ByteArrayInputStream(bytes), bytes.length)
+                .header("ETag", etag)
+                .header("Cache-Control", "no-cache")
+                .header("Content-Range", "lines " + (range[0] + 1) + "-" + (range[1] + 1) + "/" + window.lineCount());
+    }
+
+    /**
+     * 解析 "a-b"、"a-"、"-n" 形式的区间，返回0开始的闭区间，非法时返回null。
+     * 行区间的请求从1开始，oneBased为true时在这里统一转换。
+     */
+    private static long[] parseRange(String spec, long total, boolean oneBased) {
+        if (spec.contains(",")) {
+            // 不支持多段range
+            return null;
+        }
+        String[] parts = spec.trim().split("-", -1);
+        if (parts.length != 2 || total <= 0) {
+            return null;
+        }
+        long base = oneBased ? 1 : 0;
+        long start;
+        long end;
+        if (parts[0].isEmpty()) {
+            long suffixLength = Long.parseLong(parts[1]);
+            start = Math.max(0, total - suffixLength);
+            end = total - 1;
+        } else {
+            start = Long.parseLong(parts[0]) - base;
+            end = parts[1].isEmpty() ? total - 1 : Math.min(Long.parseLong(parts[1]) - base, total - 1);
+        }
+        return start < 0 || start > end || start >= total ? null : new long[]{start, end};
+    }
+
+    /**
+     * 请求区间内的文本，行保留行尾换行符
+     *
+     * @param range 0开始的闭区间，区间非法时为null
+     */
+    private record LineWindow(long lineCount, long[] range, String text) {
+    }
+
+    /**
+     * 未保存的文档按行偏移直接截取，不复制整个文本
+     */
+    private static LineWindow documentLines(Document document, String spec) {
+        return ReadAction.compute(() -> {
+            // 空文档也算一行，和文件的行数规则一致
+            int lineCount = Math.max(1, document.getLineCount());
+            long[] range = parseRange(spec, lineCount, true);
+            if (range == null) {
+                return new LineWindow(lineCount, null, null);
+            }
+            int startOffset = document.getLineStartOffset((int) range[0]);
+            int endOffset = range[1] + 1 < document.getLineCount()
+                    ? document.getLineStartOffset((int) range[1] + 1) : document.getTextLength();
+            String text = document.getImmutableCharSequence().subSequence(startOffset, endOffset).toString();
+            return new LineWindow(lineCount, range, text);
+        });
+    }
+
+    /**
+     * 逐行读取文件，只保留请求区间内的行，其余行只计数。
+     * "-n" 形式的区间读到结尾前不知道起点，保留最后n行
+     */
+    private static LineWindow fileLines(VirtualFile file, String spec) throws IOException {
+        boolean fromEnd = spec.trim().startsWith("-");
+        long maxLines = fromEnd ? Long.parseLong(spec.trim().substring(1)) : Long.MAX_VALUE;
+        // 总行数未知，先按不限行数解析起止行；区间非法时只计数，读完后按总行数返回416
+        long[] requested = fromEnd ? null : parseRange(spec, Long.MAX_VALUE, true);
+        Deque<String> lines = new ArrayDeque<>();
+        long lineCount = 0;
+        try (InputStream inputStream = file.getInputStream()) {
+            byte[] bom = file.getBOM();
+            if (bom != null) {
+                inputStream.skipNBytes(bom.length);
+            }
+            Reader reader = new BufferedReader(new InputStreamReader(inputStream, file.getCharset()));
+            StringBuilder line = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    boolean keep = keepLine(fromEnd, requested, lineCount);
+                    if (keep) {
+                        line.append(buffer[i]);
+                    }
+                    if (buffer[i] == '\n') {
+                        if (keep) {
+                            addLine(lines, line, maxLines);
+                        }
+                        lineCount++;
+                    }
+                }
+            }
+            // 最后一行没有换行符，文件以换行结尾时是一个空行
+            if (keepLine(fromEnd, requested, lineCount)) {
+                addLine(lines, line, maxLines);
+            }
+            lineCount++;
+        }
+        long[] range = parseRange(spec, lineCount, true);
+        return new LineWindow(lineCount, range, range != null ? String.join("", lines) : null);
+    }
+
+    private static boolean keepLine(boolean fromEnd, long[] requested, long line) {
+        return fromEnd || requested != null && line >= requested[0] && line <= requested[1];
+    }
+
+    private static void addLine(Deque<String> lines, StringBuilder line, long maxLines) {
+        lines.addLast(line.toString());
+        line.setLength(0);
+        if (lines.size() > maxLines) {
+            lines.removeFirst();
+        }
+    }
+
+    private static String documentText(Document document) {
+        return ReadAction.compute(() -> document.getText());
+    }
+
+    private static boolean isInOpenProject(VirtualFile file) {
+        return ReadAction.compute(() -> {
+            for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+                if (!project.isDisposed() && ProjectFileIndex.getInstance(project).isInContent(file)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private static String toFilePath(String path) {
+        // windows盘符路径形如 C:/xxx，其余按绝对路径处理
+        if (path.length() > 1 && path.charAt(1) == ':') {
+            return path;
+        }
+        return path.startsWith("/") ? path : "/" + path;
+    }
+
+    private static void parseQuery(String query, Map<String, String> params) {
+        for (String pair : query.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, index), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static StreamedResponse stream(int status, String allowOrigin, String mimeType, InputStream inputStream, long length) {
+        return cors(new StreamedResponse(status, mimeType, inputStream, length, allowOrigin), allowOrigin);
+    }
+
+    private static StreamedResponse status(int status, String allowOrigin) {
+        return cors(new StreamedResponse(status, "text/plain", null, 0, allowOrigin), allowOrigin);
+    }
+
+    private static StreamedResponse cors(StreamedResponse response, String allowOrigin) {
+        // 响应随请求来源不同，缓存时要区分Origin
+        response.header("Vary", "Origin");
+        return allowOrigin == null ? response
+                : response.header("Access-Control-Expose-Headers", "ETag, Content-Range, Accept-Ranges");
+    }
+}
@@ -0,0 +1,78 @@
+package com.voidmuse.idea.plugin.factory;
+
+import org.cef.callback.CefCallback;
+import org.cef.misc.IntRef;
+import org.cef.misc.StringRef;
+import org.cef.network.CefResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 已知长度的流式响应，按CEF请求的块大小分段读取，不会一次性拷贝整个内容
+ */
+class StreamedResponse extends ResourceHandlerState {
+    private final int status;
+    private final String mimeType;
+    private final InputStream inputStream;
+    private final long length;
+    private final Map<String, String> headers = new HashMap<>();
+
+    /**
+     * @param allowOrigin 允许跨域读取的来源，为null时不返回CORS头，只有同源页面能读取
+     */
+    StreamedResponse(int status, String mimeType, InputStream inputStream, long length, String allowOrigin) {
+        this.status = status;
+        this.mimeType = mimeType;
+        this.inputStream = inputStream;
+        this.length = length;
+        if (allowOrigin != null) {
+            headers.put("Access-Control-Allow-Origin", allowOrigin);
+        }
+    }
+
+    StreamedResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override
+    public void getResponseHeaders(CefResponse response, IntRef responseLength, StringRef redirectUrl) {
+        response.setStatus(status);
+        response.setMimeType(mimeType);
+        response.setHeaderMap(headers);
+        responseLength.set((int) Math.min(length, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public boolean readResponse(byte[] dataOut, int bytesToRead, IntRef bytesRead, CefCallback callback) {
+        if (inputStream == null) {
+            return false;
+        }
+        try {
+            int readCount = inputStream.read(dataOut, 0, bytesToRead);
+            if (readCount > 0) {
+                bytesRead.set(readCount);
+                return true;
+            }
+            close();
+            return false;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package com.voidmuse.idea.plugin.factory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.JarURLConnection;
 import java.net.URLConnection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.voidmuse.idea.plugin.service.BridgeBlobStore;
 import org.cef.callback.CefCallback;
 import org.cef.handler.CefLoadHandler;
 import org.cef.handler.CefResourceHandler;
@@ -13,6 +18,8 @@ import org.cef.network.CefRequest;
 import org.cef.network.CefResponse;
 
 public class WebResourceHandler implements CefResourceHandler {
+    public static final String BLOB_URL_PREFIX = "http://voidmuse/blob/";
+
     private ResourceHandlerState state = new ClosedConnection();
 
     public WebResourceHandler(){
@@ -26,6 +33,13 @@ public class WebResourceHandler implements CefResourceHandler {
             return false;
         }
 
+        if (url.startsWith(BLOB_URL_PREFIX)) {
+            return processBlobRequest(url, callback);
+        }
+        if (url.startsWith(ProjectFileResource.FS_URL_PREFIX)) {
+            return processFileRequest(request, url, callback);
+        }
+
         String pathToResource = url.replace("http://voidmuse", "static");
         java.net.URL newUrl = getClass().getClassLoader().getResource(pathToResource);
         if (newUrl == null) {
@@ -43,6 +57,31 @@ public class WebResourceHandler implements CefResourceHandler {
         }
     }
 
+    private boolean processBlobRequest(String url, CefCallback callback) {
+        String blobId = url.substring(BLOB_URL_PREFIX.length());
+        int queryIndex = blobId.indexOf('?');
+        if (queryIndex >= 0) {
+            blobId = blobId.substring(0, queryIndex);
+        }
+        BridgeBlobStore.Blob blob = BridgeBlobStore.getInstance().take(blobId);
+        if (blob == null) {
+            return false;
+        }
+        // blobId随机且只能读取一次，开发模式下页面来自localhost，允许跨域读取
+        state = new StreamedResponse(200, blob.mimeType(), new ByteArrayInputStream(blob.data()), blob.data().length, "*");
+        callback.Continue();
+        return true;
+    }
+
+    private boolean processFileRequest(CefRequest request, String url, CefCallback callback) {
+        // header名大小写不固定，统一按忽略大小写查找
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        request.getHeaderMap(headers);
+        state = ProjectFileResource.open(request.getMethod(), url, headers);
+        callback.Continue();
+        return true;
+    }
+
     @Override
     public void getResponseHeaders(CefResponse response, IntRef responseLength, StringRef redirectUrl) {
         state.getResponseHeaders(response, responseLength, redirectUrl);
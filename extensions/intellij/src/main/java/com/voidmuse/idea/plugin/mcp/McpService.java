@@ -1,18 +1,25 @@
 package com.voidmuse.idea.plugin.mcp;
 
 import cn.hutool.json.JSONUtil;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.Service;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.voidmuse.idea.plugin.common.PluginDataPersistent;
+import com.voidmuse.idea.plugin.util.CancellationUtils;
 import io.modelcontextprotocol.spec.McpSchema;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 //@Service(Service.Level.PROJECT)
 public final class McpService {
     private static final Logger LOGGER = Logger.getLogger(McpService.class.getName());
     private static McpService instance;
+    private static final long MCP_TOOL_TIMEOUT_SECONDS = 60;
     private final Map<String, MCPClient> clients = new ConcurrentHashMap<>();
 
     private McpService() {
@@ -138,8 +145,19 @@ public final class McpService {
             throw new Exception(errorMsg);
         }
 
+        // 在独立线程中调用，等待期间响应请求取消；取消后不再等待工具返回
+        Future<Object> future = ApplicationManager.getApplication().executeOnPooledThread(() -> client.callTool(toolName, params));
         try {
-            return client.callTool(toolName, params);
+            return CancellationUtils.awaitWithCheckCanceled(future, MCP_TOOL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ProcessCanceledException e) {
+            LOGGER.info("Call MCP tool cancelled: " + serviceName + "." + toolName);
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            String errorMsg = "Call MCP tool failed: " + serviceName + "." + toolName + " - " + cause.getMessage();
+            LOGGER.severe(errorMsg);
+            throw new Exception(errorMsg, cause);
         } catch (Exception e) {
             String errorMsg = "Call MCP tool failed: " + serviceName + "." + toolName + " - " + e.getMessage();
             LOGGER.severe(errorMsg);
@@ -6,6 +6,7 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.difflib.patch.PatchFailedException;
 import com.google.common.collect.Lists;
 import com.intellij.codeInsight.navigation.NavigationUtil;
 import com.intellij.openapi.application.ApplicationManager;
@@ -15,6 +16,8 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
@@ -24,6 +27,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.DynamicBundle;
+import com.voidmuse.idea.plugin.autocomplete.AutocompleteService;
+import com.voidmuse.idea.plugin.autocomplete.CompletionLatencyTracker;
 import com.voidmuse.idea.plugin.call.CallJavaReq;
 import com.voidmuse.idea.plugin.codebase.embedding.EmbeddingsService;
 import com.voidmuse.idea.plugin.codebase.embedding.FindNearFileInfo;
@@ -31,7 +36,12 @@ import com.voidmuse.idea.plugin.codebase.task.CodebaseIndexingAllTask;
 import com.voidmuse.idea.plugin.codebase.vector.LuceneVectorStore;
 import com.voidmuse.idea.plugin.common.AlarmInfo;
 import com.voidmuse.idea.plugin.common.PluginDataPersistent;
+import com.voidmuse.idea.plugin.editor.DiffStreamHandler;
+import com.voidmuse.idea.plugin.editor.DiffStreamService;
+import com.voidmuse.idea.plugin.editor.FileReviewQueue;
+import com.voidmuse.idea.plugin.editor.MultiFileWriteTransaction;
 import com.voidmuse.idea.plugin.editor.ToggleToolWindowAction;
+import com.voidmuse.idea.plugin.editor.diff.PatchApplier;
 import com.voidmuse.idea.plugin.file.FileInfo;
 import com.voidmuse.idea.plugin.mcp.McpService;
 import com.voidmuse.idea.plugin.service.CallJavaScriptService;
@@ -45,6 +55,7 @@ import org.apache.commons.lang3.StringUtils;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
@@ -55,6 +66,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 import java.nio.charset.StandardCharsets;
 
 import static com.voidmuse.idea.plugin.protocol.CallJavaProtocol.*;
@@ -187,6 +199,39 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
                 writeFileWithDiff(project, arg);
                 return "success";
             }
+            if (applyPatch.name().equals(callJavaReq.getMethodName())) {
+                //按unified diff或SEARCH/REPLACE补丁修改文件，支持diff展示
+                return JSONUtil.toJsonStr(applyPatch(project, arg));
+            }
+            if (getDiffHistory.name().equals(callJavaReq.getMethodName())) {
+                //最近结束的diff会话，不返回文件内容
+                List<Map<String, Object>> history = Lists.newArrayList();
+                for (DiffStreamService.FinishedDiff finished : project.getService(DiffStreamService.class).getHistory()) {
+                    Map<String, Object> item = new HashMap<>();
+                    item.put("id", finished.id());
+                    item.put("filePath", finished.filePath());
+                    item.put("finishedAt", finished.finishedAt());
+                    history.add(item);
+                }
+                return JSONUtil.toJsonStr(history);
+            }
+            if (undoDiff.name().equals(callJavaReq.getMethodName())) {
+                //撤销整次diff修改，文件之后又被修改过时返回false
+                String id = arg.get("id").toString();
+                boolean[] undone = {false};
+                ApplicationManager.getApplication().invokeAndWait(
+                        () -> undone[0] = project.getService(DiffStreamService.class).undo(id), ModalityState.defaultModalityState());
+                return String.valueOf(undone[0]);
+            }
+            if (writeFiles.name().equals(callJavaReq.getMethodName())) {
+                //批量写文件，全部成功或全部回滚
+                return JSONUtil.toJsonStr(writeFiles(project, arg));
+            }
+            if (writeFileStream.name().equals(callJavaReq.getMethodName())) {
+                //流式写文件，模型边生成边展示diff
+                writeFileStream(project, arg);
+                return "success";
+            }
             if (getUrlContent.name().equals(callJavaReq.getMethodName())) {
                 String url = arg.get("url").toString();
                 return getUrlContent(url);
@@ -213,7 +258,27 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
                 String requestId = arg.get("requestId").toString();
                 return stopScript(requestId);
             }
+
+            if (completionChunk.name().equals(callJavaReq.getMethodName())) {
+                //流式补全的片段，追加到当前的ghost text
+                String requestId = arg.get("requestId").toString();
+                String chunk = String.valueOf(ObjectUtils.defaultIfNull(arg.get("chunk"), ""));
+                project.getService(AutocompleteService.class).onCompletionChunk(requestId, chunk);
+                return "success";
+            }
+
+            if (getCompletionLatencyStats.name().equals(callJavaReq.getMethodName())) {
+                //补全各阶段耗时的p50/p95/p99，reset为true时统计后清空
+                CompletionLatencyTracker tracker = CompletionLatencyTracker.getInstance();
+                String stats = JSONUtil.toJsonStr(tracker.snapshot());
+                if (Boolean.parseBoolean(String.valueOf(arg.get("reset")))) {
+                    tracker.reset();
+                }
+                return stats;
+            }
             return "";
+        } catch (ProcessCanceledException e) {
+            throw e;
         } catch (Exception e) {
             LOG.error("handleCallJava error for method: " + callJavaReq.getMethodName(), e);
             throw new RuntimeException("处理Java调用失败: " + e.getMessage(), e);
@@ -386,6 +451,8 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
             // 可选参数：是否显示diff（默认true）
             boolean showDiff = arg.containsKey("showDiff") ?
                     Boolean.parseBoolean(arg.get("showDiff").toString()) : true;
+            // 可选参数：是否跳过逐行动画直接展示diff（默认false，大diff会自动跳过）
+            boolean instant = arg.containsKey("instant") && Boolean.parseBoolean(arg.get("instant").toString());
 
             // 可选参数：指定行范围（如果不指定则处理整个文件）
             Integer startLine = arg.containsKey("startLine") ?
@@ -393,63 +460,251 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
             Integer endLine = arg.containsKey("endLine") ?
                     Integer.parseInt(arg.get("endLine").toString()) : null;
 
-            ApplicationManager.getApplication().invokeLater(() -> {
-                // 打开文件
-                VirtualFile virtualFile = LocalFileSystem.getInstance().findFileByPath(filePath);
-                if (virtualFile != null) {
-                    FileEditorManager fileEditorManager = FileEditorManager.getInstance(project);
-                    Editor editor = fileEditorManager.openTextEditor(
-                            new com.intellij.openapi.fileEditor.OpenFileDescriptor(project, virtualFile), true);
-
-                    if (editor != null) {
-                        if (showDiff) {
-                            // 获取当前文件内容
-                            String currentContent = editor.getDocument().getText();
-
-                            // 如果指定了行范围，只处理指定范围的内容
-                            String originalContent = currentContent;
-                            if (startLine != null && endLine != null) {
-                                int startOffset = editor.getDocument().getLineStartOffset(startLine - 1);
-                                int endOffset = editor.getDocument().getLineEndOffset(endLine - 1);
-                                originalContent = editor.getDocument().getText(
-                                        new com.intellij.openapi.util.TextRange(startOffset, endOffset));
-                            }
-
-                            // 创建DiffStreamHandler来展示diff
-                            int diffStartLine = startLine != null ? startLine - 1 : 0;
-                            int diffEndLine = endLine != null ? endLine - 1 : editor.getDocument().getLineCount() - 1;
-
-                            com.voidmuse.idea.plugin.editor.DiffStreamHandler diffStreamHandler =
-                                    new com.voidmuse.idea.plugin.editor.DiffStreamHandler(
-                                            project, editor, diffStartLine, diffEndLine,
-                                            () -> {
-                                            }, // onClose
-                                            () -> {
-                                            }  // onFinish
-                                    );
-
-                            // 使用新添加的方法处理外部diff结果
-                            diffStreamHandler.handleExternalDiffResult(filePath, originalContent, newContent);
-                        } else {
-                            // 直接写入文件，不显示diff
-                            WriteCommandAction.runWriteCommandAction(project, () -> {
-                                if (startLine != null && endLine != null) {
-                                    // 替换指定行范围
-                                    int startOffset = editor.getDocument().getLineStartOffset(startLine - 1);
-                                    int endOffset = editor.getDocument().getLineEndOffset(endLine - 1);
-                                    editor.getDocument().replaceString(startOffset, endOffset, newContent);
-                                } else {
-                                    // 替换整个文件
-                                    editor.getDocument().setText(newContent);
-                                }
-                            });
-                        }
+            ApplicationManager.getApplication().invokeLater(() -> writeFileWithDiff(project, filePath,
+                    originalContent -> newContent, showDiff, instant, startLine, endLine));
+        } catch (Exception e) {
+            LOG.error("Error writing file with diff", e);
+        }
+    }
+
+    /**
+     * 在EDT上调用。新内容在拒绝同一编辑器上一次的diff之后，按当时的原内容计算，不会基于写了一半的文档
+     *
+     * @param contentOf 由原内容（指定行范围时为范围内的内容）计算新内容，返回null时不写入
+     * @return 文件不存在或不是文本文件时返回false
+     */
+    private boolean writeFileWithDiff(Project project, String filePath, UnaryOperator<String> contentOf,
+                                      boolean showDiff, boolean instant, Integer startLine, Integer endLine) {
+        // 打开文件
+        VirtualFile virtualFile = LocalFileSystem.getInstance().findFileByPath(filePath);
+        if (virtualFile == null) {
+            return false;
+        }
+        FileEditorManager fileEditorManager = FileEditorManager.getInstance(project);
+        Editor editor = fileEditorManager.openTextEditor(
+                new com.intellij.openapi.fileEditor.OpenFileDescriptor(project, virtualFile), true);
+        if (editor == null) {
+            return false;
+        }
+        Document document = editor.getDocument();
+        if (!showDiff) {
+            // 直接写入文件，不显示diff
+            String newContent = contentOf.apply(rangeText(document, startLine, endLine));
+            if (newContent != null) {
+                WriteCommandAction.runWriteCommandAction(project, () -> {
+                    if (startLine != null && endLine != null) {
+                        // 替换指定行范围
+                        int startOffset = document.getLineStartOffset(startLine - 1);
+                        int endOffset = document.getLineEndOffset(endLine - 1);
+                        document.replaceString(startOffset, endOffset, newContent);
+                    } else {
+                        // 替换整个文件
+                        document.setText(newContent);
+                    }
+                });
+            }
+            return true;
+        }
+
+        // 同一编辑器上一次未处理完的diff先拒绝，恢复内容后再以当前内容为基准
+        DiffStreamService diffStreamService = project.getService(DiffStreamService.class);
+        diffStreamService.reject(editor);
+        // 获取当前文件内容
+        String currentContent = document.getText();
+        // 如果指定了行范围，只处理指定范围的内容
+        String originalContent = rangeText(document, startLine, endLine);
+        String newContent = contentOf.apply(originalContent);
+        if (newContent == null) {
+            return true;
+        }
+
+        // 创建DiffStreamHandler来展示diff
+        int diffStartLine = startLine != null ? startLine - 1 : 0;
+        int diffEndLine = endLine != null ? endLine - 1 : document.getLineCount() - 1;
+
+        DiffStreamHandler diffStreamHandler = new DiffStreamHandler(
+                project, editor, diffStartLine, diffEndLine,
+                () -> {
+                }, // onClose
+                () -> {
+                }  // onFinish
+        );
+
+        // 注册会话：编辑器关闭时清理，结束后记录历史用于undoDiff
+        diffStreamService.register(diffStreamHandler, editor, currentContent);
+        // 使用新添加的方法处理外部diff结果
+        diffStreamHandler.handleExternalDiffResult(filePath, originalContent, newContent, instant);
+        return true;
+    }
+
+    private static String rangeText(Document document, Integer startLine, Integer endLine) {
+        if (startLine == null || endLine == null) {
+            return document.getText();
+        }
+        int startOffset = document.getLineStartOffset(startLine - 1);
+        int endOffset = document.getLineEndOffset(endLine - 1);
+        return document.getText(new com.intellij.openapi.util.TextRange(startOffset, endOffset));
+    }
+
+    /**
+     * arg: {filePath, patch, showDiff?, instant?}。在EDT上先拒绝同一文件上一次未处理完的diff，再把补丁应用到当时的文档内容，
+     * 补丁定位失败时返回错误信息，方便模型重新生成
+     */
+    private Map<String, Object> applyPatch(Project project, Map<String, Object> arg) {
+        Map<String, Object> result = new HashMap<>();
+        String filePath = arg.get("filePath").toString();
+        String patch = arg.get("patch").toString();
+        boolean showDiff = !arg.containsKey("showDiff") || Boolean.parseBoolean(arg.get("showDiff").toString());
+        boolean instant = arg.containsKey("instant") && Boolean.parseBoolean(arg.get("instant").toString());
+
+        String[] error = {null};
+        boolean[] found = {false};
+        ApplicationManager.getApplication().invokeAndWait(() -> found[0] = writeFileWithDiff(project, filePath,
+                original -> {
+                    try {
+                        return PatchApplier.apply(original, patch);
+                    } catch (PatchFailedException e) {
+                        error[0] = e.getMessage();
+                        return null;
                     }
+                }, showDiff, instant, null, null));
+        if (!found[0]) {
+            result.put("success", false);
+            result.put("error", "file not found or not a text file: " + filePath);
+            return result;
+        }
+        if (error[0] != null) {
+            result.put("success", false);
+            result.put("error", error[0]);
+            return result;
+        }
+        result.put("success", true);
+        return result;
+    }
+
+    /**
+     * arg: {files: [{filePath, content, startLine?, endLine?}], review?}。
+     * review为true时写入后逐个打开文件审阅diff，否则不打开编辑器
+     */
+    private Map<String, Object> writeFiles(Project project, Map<String, Object> arg) {
+        Map<String, Object> result = new HashMap<>();
+        if (ApplicationManager.getApplication().isDispatchThread()) {
+            result.put("success", false);
+            result.put("error", "writeFiles must be called asynchronously");
+            return result;
+        }
+        List<MultiFileWriteTransaction.FileEdit> edits = Lists.newArrayList();
+        for (Map<String, Object> file : (List<Map<String, Object>>) arg.get("files")) {
+            edits.add(new MultiFileWriteTransaction.FileEdit(
+                    file.get("filePath").toString(),
+                    String.valueOf(ObjectUtils.defaultIfNull(file.get("content"), "")),
+                    file.containsKey("startLine") ? Integer.parseInt(file.get("startLine").toString()) : null,
+                    file.containsKey("endLine") ? Integer.parseInt(file.get("endLine").toString()) : null));
+        }
+        boolean review = Boolean.parseBoolean(String.valueOf(arg.get("review")));
+
+        List<MultiFileWriteTransaction.FileChange> changes;
+        try {
+            changes = new MultiFileWriteTransaction(project, edits).apply(applied -> {
+                // VFS刷新完成后再打开文件，避免读到旧内容
+                if (review && !project.isDisposed()) {
+                    FileReviewQueue.getInstance(project).enqueue(applied);
                 }
             });
-        } catch (Exception e) {
-            LOG.error("Error writing file with diff", e);
+        } catch (IOException e) {
+            LOG.warn("writeFiles failed, all changes rolled back", e);
+            result.put("success", false);
+            result.put("error", e.getMessage());
+            return result;
+        }
+        List<Map<String, Object>> files = Lists.newArrayList();
+        for (MultiFileWriteTransaction.FileChange change : changes) {
+            Map<String, Object> file = new HashMap<>();
+            file.put("filePath", change.filePath());
+            file.put("created", change.created());
+            files.add(file);
+        }
+        result.put("success", true);
+        result.put("files", files);
+        return result;
+    }
+
+    /**
+     * arg: {streamId, seq, chunk, done, filePath, startLine?, endLine?}。每个片段是独立的请求，在不同线程里分发，
+     * 按seq顺序应用：seq为0的片段打开文件并开始流式diff，之后的片段按streamId追加，done为true时结束
+     */
+    private void writeFileStream(Project project, Map<String, Object> arg) {
+        String streamId = arg.get("streamId").toString();
+        Integer seq = arg.get("seq") != null ? Integer.parseInt(arg.get("seq").toString()) : null;
+        String chunk = String.valueOf(ObjectUtils.defaultIfNull(arg.get("chunk"), ""));
+        boolean done = Boolean.parseBoolean(String.valueOf(arg.get("done")));
+        DiffStreamService diffStreamService = project.getService(DiffStreamService.class);
+        DiffStreamService.StreamChunk streamChunk = new DiffStreamService.StreamChunk(seq, chunk, done, arg);
+
+        ApplicationManager.getApplication().invokeLater(() -> {
+            for (DiffStreamService.StreamChunk ready : diffStreamService.takeInOrder(streamId, streamChunk)) {
+                applyStreamChunk(project, diffStreamService, streamId, ready);
+            }
+        });
+    }
+
+    private void applyStreamChunk(Project project, DiffStreamService diffStreamService, String streamId,
+                                  DiffStreamService.StreamChunk chunk) {
+        DiffStreamHandler handler = diffStreamService.getStream(streamId);
+        if (handler == null) {
+            // 会话已被拒绝或编辑器已关闭时，后续片段不再重新打开
+            boolean first = chunk.seq() == null || chunk.seq() == 0;
+            handler = first ? startDiffStream(project, diffStreamService, streamId, chunk.arg()) : null;
+            if (handler == null) {
+                // 丢弃之后的片段，不再缓存
+                diffStreamService.endStream(streamId);
+                return;
+            }
+        }
+        if (!chunk.text().isEmpty()) {
+            handler.onStreamChunk(chunk.text());
+        }
+        if (chunk.done()) {
+            handler.finishStream();
+            diffStreamService.endStream(streamId);
+        }
+    }
+
+    private DiffStreamHandler startDiffStream(Project project, DiffStreamService diffStreamService,
+                                              String streamId, Map<String, Object> arg) {
+        String filePath = arg.get("filePath").toString();
+        VirtualFile virtualFile = LocalFileSystem.getInstance().findFileByPath(filePath);
+        if (virtualFile == null) {
+            LOG.warn("writeFileStream file not found: " + filePath);
+            return null;
+        }
+        Editor editor = FileEditorManager.getInstance(project).openTextEditor(
+                new com.intellij.openapi.fileEditor.OpenFileDescriptor(project, virtualFile), true);
+        if (editor == null) {
+            return null;
+        }
+        // 同一编辑器上一次未处理完的diff先拒绝，恢复内容后再以当前内容为基准，避免注册时才回滚打乱新会话
+        diffStreamService.reject(editor);
+        Document document = editor.getDocument();
+        Integer startLine = arg.containsKey("startLine") ? Integer.parseInt(arg.get("startLine").toString()) : null;
+        Integer endLine = arg.containsKey("endLine") ? Integer.parseInt(arg.get("endLine").toString()) : null;
+        String originalContent = document.getText();
+        if (startLine != null && endLine != null) {
+            originalContent = document.getText(new com.intellij.openapi.util.TextRange(
+                    document.getLineStartOffset(startLine - 1), document.getLineEndOffset(endLine - 1)));
         }
+        int diffStartLine = startLine != null ? startLine - 1 : 0;
+        int diffEndLine = endLine != null ? endLine - 1 : document.getLineCount() - 1;
+
+        DiffStreamHandler handler = new DiffStreamHandler(project, editor, diffStartLine, diffEndLine,
+                () -> {
+                }, // onClose
+                () -> {
+                }  // onFinish
+        );
+        handler.startStream(originalContent);
+        diffStreamService.startStream(streamId, handler, editor);
+        return handler;
     }
 
     private String getFileContent(Project project, String path) {
@@ -480,6 +735,7 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
             // 使用站点根作为通用 Referer，有助于绕过部分拦截
             connection.setRequestProperty("Referer", url.getProtocol() + "://" + url.getHost() + "/");
 
+            ProgressManager.checkCanceled();
             int status = connection.getResponseCode();
             InputStream stream = (status >= 200 && status < 300)
                     ? connection.getInputStream()
@@ -504,6 +760,7 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
                 StringBuilder content = new StringBuilder();
                 String line;
                 while ((line = reader.readLine()) != null) {
+                    ProgressManager.checkCanceled();
                     content.append(line).append("\n");
                 }
                 if (status >= 200 && status < 300) {
@@ -515,6 +772,8 @@ public class CallJavaHandlerImpl implements CallJavaHandler {
                     result =  "Error: HTTP " + status + " " + content.toString();
                 }
             }
+        } catch (ProcessCanceledException e) {
+            throw e;
         } catch (Exception e) {
             LOG.error("Error getting URL content: " + urlString, e);
             result = "Error: " + e.getMessage();
@@ -28,5 +28,14 @@ public enum CallJavaProtocol {
     executeCommand,
     executeScript,
     getScriptStatus,
-    stopScript
+    stopScript,
+    batchCallJava,
+    cancelCallJava,
+    getCompletionLatencyStats,
+    completionChunk,
+    writeFileStream,
+    writeFiles,
+    applyPatch,
+    getDiffHistory,
+    undoDiff
 }
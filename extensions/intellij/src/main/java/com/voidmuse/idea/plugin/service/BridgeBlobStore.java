@@ -0,0 +1,73 @@
+package com.voidmuse.idea.plugin.service;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 大响应的内存暂存区。回调里只携带blobId，前端再通过 http://voidmuse/blob/&lt;id&gt; 取回内容，
+ * 避免把大字符串转义后拼进executeJavaScript。每个blob只能读取一次，未读取的在TTL后清除。
+ *
+ * @author zhangdaguan
+ */
+@Service
+public final class BridgeBlobStore {
+    private static final Logger LOG = Logger.getInstance(BridgeBlobStore.class);
+
+    /**
+     * 超过该字符数的响应走blob通道
+     */
+    public static final int SPILL_THRESHOLD = 256 * 1024;
+    private static final long TTL_MILLIS = 60_000;
+
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+
+    public static BridgeBlobStore getInstance() {
+        return ApplicationManager.getApplication().getService(BridgeBlobStore.class);
+    }
+
+    public static boolean shouldSpill(String response) {
+        return response != null && response.length() > SPILL_THRESHOLD;
+    }
+
+    /**
+     * 暂存内容并返回blobId
+     */
+    public String put(String content, String mimeType) {
+        evictExpired();
+        String id = UUID.randomUUID().toString();
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        blobs.put(id, new Blob(data, mimeType, System.currentTimeMillis() + TTL_MILLIS));
+        return id;
+    }
+
+    /**
+     * 取出并移除blob，不存在或已过期返回null
+     */
+    public Blob take(String id) {
+        Blob blob = blobs.remove(id);
+        if (blob == null || blob.expireAt() < System.currentTimeMillis()) {
+            return null;
+        }
+        return blob;
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        blobs.entrySet().removeIf(entry -> {
+            boolean expired = entry.getValue().expireAt() < now;
+            if (expired) {
+                LOG.warn("Bridge blob expired before it was fetched, id: " + entry.getKey());
+            }
+            return expired;
+        });
+    }
+
+    public record Blob(byte[] data, String mimeType, long expireAt) {
+    }
+}
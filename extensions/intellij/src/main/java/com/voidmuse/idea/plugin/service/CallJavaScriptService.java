@@ -1,25 +1,30 @@
 package com.voidmuse.idea.plugin.service;
 
-import cn.hutool.json.JSONUtil;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.application.ApplicationManager;
-import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.ui.jcef.JBCefBrowser;
+import com.voidmuse.idea.plugin.bridge.JsBridge;
 import com.voidmuse.idea.plugin.call.CallJavaReq;
 import com.voidmuse.idea.plugin.call.CallJavaScriptReq;
 import org.apache.commons.lang3.StringUtils;
 
-import javax.swing.*;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Java调用前端的通道。异步调用按{@link Priority}分道排队，各自限制并发数：
+ * 交互请求（代码补全）总是优先发送，有交互请求排队或未返回时批量请求（索引时的embedding）暂停发送，
+ * 避免补全排在成千上万个embedding请求后面超时。超时从入队开始计算，排队和等待返回的请求都会超时并回调{@link Callback#timeout()}。
+ *
  * @author zhangdaguan
  */
 @Service(Service.Level.PROJECT)
@@ -33,13 +38,44 @@ public final class CallJavaScriptService {
         }
     }
 
+    /**
+     * 请求优先级，maxInFlight为该通道同时等待前端返回的最大请求数
+     */
+    public enum Priority {
+        INTERACTIVE(4),
+        NORMAL(8),
+        BULK(4);
+
+        private final int maxInFlight;
+
+        Priority(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    private static final long CALLBACK_TIMEOUT_SECONDS = 30;
+    /**
+     * 单次EDT泵最多发送的请求数，剩余的重新排到下一次，避免长时间占用EDT
+     */
+    private static final int MAX_DISPATCH_PER_PUMP = 16;
 
     private final Project project;
     private final ConcurrentHashMap<String, Callback> callbacks = new ConcurrentHashMap<>();
     private final DelayQueue<DelayedTask> delayQueue = new DelayQueue<>();
+    private final Map<Priority, ConcurrentLinkedDeque<PendingCall>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, AtomicInteger> inFlightCounts = new EnumMap<>(Priority.class);
+    /**
+     * 已发送、等待前端返回的请求及其所属通道
+     */
+    private final ConcurrentHashMap<String, Priority> inFlight = new ConcurrentHashMap<>();
+    private final AtomicBoolean pumpScheduled = new AtomicBoolean(false);
 
     public CallJavaScriptService(Project project) {
         this.project = project;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ConcurrentLinkedDeque<>());
+            inFlightCounts.put(priority, new AtomicInteger());
+        }
         startCallbackCleaner();
     }
 
@@ -47,15 +83,25 @@ public final class CallJavaScriptService {
         return project.getService(CallJavaScriptService.class);
     }
 
-    public void callJavaScriptAsync(String methodName, Map<String, Object> args, Callback callback) {
+    /**
+     * 异步调用前端方法，返回本次调用的requestId，可用于{@link #cancelCallback(String)}
+     */
+    public String callJavaScriptAsync(String methodName, Map<String, Object> args, Callback callback) {
+        return callJavaScriptAsync(methodName, args, Priority.NORMAL, callback);
+    }
+
+    /**
+     * 按指定优先级异步调用前端方法，请求先进入对应通道排队，由EDT泵按优先级发送
+     */
+    public String callJavaScriptAsync(String methodName, Map<String, Object> args, Priority priority, Callback callback) {
         try {
-            JBCefBrowser browser = ProjectBeanService.getInstance(project).getBrowser();
-            if (browser == null) {
+            JsBridge bridge = ProjectBeanService.getInstance(project).getJsBridge();
+            if (bridge == null) {
                 LOG.error("Browser is null, cannot execute JavaScript asynchronously");
                 if (callback != null) {
                     callback.timeout();
                 }
-                return;
+                return null;
             }
             //添加唯一id
             String requestId = UUID.randomUUID().toString();
@@ -63,31 +109,139 @@ public final class CallJavaScriptService {
             CallJavaScriptReq callJavaScriptReq = new CallJavaScriptReq(methodName, args);
             // Store the callback and set a timeout
             callbacks.put(requestId, callback);
-            
-            // 确保在EDT中执行JCEF操作
-            ApplicationManager.getApplication().invokeLater(() -> {
-                try {
-                    browser.getCefBrowser().executeJavaScript("callJavaScript('" + JSONUtil.toJsonStr(callJavaScriptReq) + "')", null, 0);
-                    delayQueue.offer(new DelayedTask(requestId, 30, TimeUnit.SECONDS));
-                } catch (Exception e) {
-                    LOG.error("executeJavaScript error in callJavaScriptAsync", e);
-                    Callback removedCallback = callbacks.remove(requestId);
-                    if (removedCallback != null) {
-                        removedCallback.timeout();
-                    }
-                }
-            });
+            queues.get(priority).offer(new PendingCall(requestId, priority, callJavaScriptReq));
+            // 超时从入队开始计算，排队中的请求同样会超时
+            delayQueue.offer(new DelayedTask(requestId, CALLBACK_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            schedulePump();
+            return requestId;
         } catch (Exception e) {
             LOG.error("callJavaScriptAsync error", e);
             if (callback != null) {
                 callback.timeout();
             }
         }
+        return null;
+    }
+
+    /**
+     * 调用方已不再需要结果时移除回调，后续到达的结果会被直接丢弃；仍在排队的请求不会再发送
+     */
+    public void cancelCallback(String requestId) {
+        if (StringUtils.isNotBlank(requestId)) {
+            callbacks.remove(requestId);
+            releaseOrDequeue(requestId);
+        }
+    }
+
+    private void releaseOrDequeue(String requestId) {
+        if (!release(requestId)) {
+            for (ConcurrentLinkedDeque<PendingCall> queue : queues.values()) {
+                queue.removeIf(call -> call.requestId().equals(requestId));
+            }
+        }
+    }
+
+    private void schedulePump() {
+        if (pumpScheduled.compareAndSet(false, true)) {
+            // 确保在EDT中执行JCEF操作，多次入队只合并成一次invokeLater
+            ApplicationManager.getApplication().invokeLater(this::pump);
+        }
+    }
+
+    private void pump() {
+        pumpScheduled.set(false);
+        if (project.isDisposed()) {
+            return;
+        }
+        JsBridge bridge = ProjectBeanService.getInstance(project).getJsBridge();
+        if (bridge == null) {
+            failQueued();
+            return;
+        }
+        int dispatched = 0;
+        for (Priority priority : Priority.values()) {
+            if (priority == Priority.BULK && interactivePending()) {
+                // 补全请求未完成前，批量请求让路
+                break;
+            }
+            ConcurrentLinkedDeque<PendingCall> queue = queues.get(priority);
+            AtomicInteger inFlightCount = inFlightCounts.get(priority);
+            while (dispatched < MAX_DISPATCH_PER_PUMP && inFlightCount.get() < priority.maxInFlight) {
+                PendingCall call = queue.poll();
+                if (call == null) {
+                    break;
+                }
+                if (!callbacks.containsKey(call.requestId())) {
+                    // 排队期间已被取消
+                    continue;
+                }
+                dispatch(bridge, call);
+                dispatched++;
+            }
+        }
+        if (dispatched >= MAX_DISPATCH_PER_PUMP) {
+            schedulePump();
+        }
+    }
+
+    private void dispatch(JsBridge bridge, PendingCall call) {
+        String requestId = call.requestId();
+        try {
+            if (bridge == null) {
+                throw new IllegalStateException("Browser is null");
+            }
+            inFlight.put(requestId, call.priority());
+            inFlightCounts.get(call.priority()).incrementAndGet();
+            bridge.callJavaScript(call.req());
+        } catch (Exception e) {
+            LOG.error("executeJavaScript error in callJavaScriptAsync", e);
+            release(requestId);
+            Callback removedCallback = callbacks.remove(requestId);
+            if (removedCallback != null) {
+                removedCallback.timeout();
+            }
+        }
+    }
+
+    /**
+     * 浏览器已关闭时，排队中的请求不会再发送，全部按超时结束
+     */
+    private void failQueued() {
+        LOG.warn("Browser is null, fail queued JavaScript calls");
+        for (ConcurrentLinkedDeque<PendingCall> queue : queues.values()) {
+            PendingCall call;
+            while ((call = queue.poll()) != null) {
+                Callback callback = callbacks.remove(call.requestId());
+                if (callback != null) {
+                    callback.timeout();
+                }
+            }
+        }
+    }
+
+    private boolean interactivePending() {
+        return !queues.get(Priority.INTERACTIVE).isEmpty() || inFlightCounts.get(Priority.INTERACTIVE).get() > 0;
+    }
+
+    /**
+     * 请求返回、超时或取消后释放所在通道的并发名额，并唤醒排队的请求
+     */
+    private boolean release(String requestId) {
+        Priority priority = inFlight.remove(requestId);
+        if (priority == null) {
+            return false;
+        }
+        inFlightCounts.get(priority).decrementAndGet();
+        boolean hasQueued = queues.values().stream().anyMatch(queue -> !queue.isEmpty());
+        if (hasQueued) {
+            schedulePump();
+        }
+        return true;
     }
 
     public void callJavaScript(Project project, String methodName, Map<String, Object> arg) {
-        JBCefBrowser browser = ProjectBeanService.getInstance(project).getBrowser();
-        if (browser == null) {
+        JsBridge bridge = ProjectBeanService.getInstance(project).getJsBridge();
+        if (bridge == null) {
             LOG.warn("Browser is null, cannot execute JavaScript");
             return;
         }
@@ -95,7 +249,7 @@ public final class CallJavaScriptService {
         ApplicationManager.getApplication().invokeLater(() -> {
             try {
                 CallJavaScriptReq callJavaScriptReq = new CallJavaScriptReq(methodName, arg);
-                browser.getCefBrowser().executeJavaScript("callJavaScript('" + JSONUtil.toJsonStr(callJavaScriptReq) + "')", null, 0);
+                bridge.callJavaScript(callJavaScriptReq);
             } catch (Exception e) {
                 LOG.error("callJavaScript error", e);
             }
@@ -106,6 +260,7 @@ public final class CallJavaScriptService {
         Map<String, Object> args = callJavaReq.getArg();
         String requestId = args.get("requestId").toString();
         if (StringUtils.isNotBlank(requestId)) {
+            release(requestId);
             Callback callback = callbacks.remove(requestId);
             if (callback != null) {
                 callback.run(args);
@@ -118,7 +273,12 @@ public final class CallJavaScriptService {
             while (true) {
                 try {
                     DelayedTask task = delayQueue.take();
-                    callbacks.remove(task.getRequestId());
+                    // 已发送的释放并发名额，仍在排队的移出队列
+                    releaseOrDequeue(task.getRequestId());
+                    Callback callback = callbacks.remove(task.getRequestId());
+                    if (callback != null) {
+                        callback.timeout();
+                    }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -127,6 +287,9 @@ public final class CallJavaScriptService {
         }).start();
     }
 
+    private record PendingCall(String requestId, Priority priority, CallJavaScriptReq req) {
+    }
+
     private static class DelayedTask implements Delayed {
         private final String requestId;
         private final long expirationTime;
@@ -3,15 +3,28 @@ package com.voidmuse.idea.plugin.service;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.util.StrUtil;
 import com.google.common.collect.Lists;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+import com.intellij.openapi.vcs.VcsListener;
 import com.intellij.openapi.vcs.changes.ChangeListManager;
 import com.intellij.openapi.vcs.changes.VcsIgnoreManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.messages.MessageBusConnection;
 import com.voidmuse.idea.plugin.file.FileInfo;
 import com.voidmuse.idea.plugin.util.FileUtils;
 import org.jetbrains.annotations.NotNull;
@@ -20,23 +33,54 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+/**
+ * 项目文件目录缓存。
+ * <ul>
+ *     <li>启动时全量扫描一次，之后根据VFS事件增量维护，空闲时不再定时扫描</li>
+ *     <li>单批事件过多（切分支、大量生成文件）、.gitignore变化、VCS配置变化以及启动后VCS状态第一次更新完成时重新全量扫描</li>
+ *     <li>增量更新和全量扫描在后台串行执行，读取方拿到的是不可变快照</li>
+ * </ul>
+ */
 @Service(Service.Level.PROJECT)
-public final class FileService {
+public final class FileService implements Disposable {
     private final Project project;
-    private List<FileInfo> cachedFileInfoList = Lists.newArrayList();
+    /**
+     * 按路径排序，目录删除或移动时可以按前缀范围删除子文件
+     */
+    private final ConcurrentSkipListMap<String, FileInfo> catalog = new ConcurrentSkipListMap<>();
+    private volatile List<FileInfo> cachedFileInfoList = List.of();
+    /**
+     * 待更新的路径，后台合并处理
+     */
+    private final Set<String> pendingPaths = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean reconcileScheduled = new AtomicBoolean(false);
+    private final Object updateLock = new Object();
+    private volatile String rootPath;
     private final VcsIgnoreManager ignoreManager;
     private final ChangeListManager changeListManager;
     private static final Logger LOG = Logger.getInstance(FileService.class);
     private static final int FIND_FILE_MAX_SIZE = 500;
+    /**
+     * 单批事件超过该数量时直接全量扫描
+     */
+    private static final int RECONCILE_EVENT_THRESHOLD = 1000;
+    private static final long DRAIN_DELAY_MS = 300;
+    private static final long RECONCILE_DELAY_MS = 2000;
 
     public FileService(Project project) {
         this.project = project;
@@ -49,7 +93,18 @@ public final class FileService {
     }
 
     public void startCacheUpdater() {
-        ProjectScheduledService.getInstance(project).scheduleAtFixedRate(this::updateFileCache, 2, 10, TimeUnit.SECONDS);
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                onVfsEvents(events);
+            }
+        });
+        // VCS根目录变化会影响忽略规则
+        connection.subscribe(ProjectLevelVcsManager.VCS_CONFIGURATION_CHANGED, (VcsListener) this::scheduleReconcile);
+        scheduleReconcile();
+        // 启动时ChangeListManager还没准备好，isIgnoredFile不准确，第一次更新完成后再全量扫描一次
+        changeListManager.invokeAfterUpdate(false, this::scheduleReconcile);
     }
 
     public List<FileInfo> findFile(String keyword) {
@@ -134,37 +189,186 @@ public final class FileService {
                 lowerPath.endsWith(".go") || lowerPath.endsWith(".php") || lowerPath.endsWith(".kt");
     }
 
-    private void updateFileCache() {
-        long startTime = System.currentTimeMillis();
-        LOG.info("Updating file cache start...");
-        Map<String, String> fileMap = new HashMap<>();
-        if (project == null) {
-            throw new IllegalArgumentException("Project cannot be null.");
+    private void onVfsEvents(List<? extends VFileEvent> events) {
+        String root = rootPath;
+        // 首次全量扫描前的事件由扫描覆盖
+        if (root == null) {
+            return;
+        }
+        if (events.size() > RECONCILE_EVENT_THRESHOLD) {
+            scheduleReconcile();
+            return;
+        }
+        String prefix = root + "/";
+        for (VFileEvent event : events) {
+            if (isGitIgnoreEvent(event, prefix)) {
+                // 忽略规则变化，已缓存的文件可能需要加入或移除
+                scheduleReconcile();
+            }
+            if (event instanceof VFileCreateEvent || event instanceof VFileDeleteEvent) {
+                addPendingPath(prefix, event.getPath());
+            } else if (event instanceof VFileCopyEvent copyEvent) {
+                addPendingPath(prefix, copyEvent.getNewParent().getPath() + "/" + copyEvent.getNewChildName());
+            } else if (event instanceof VFileMoveEvent moveEvent) {
+                addPendingPath(prefix, moveEvent.getOldPath());
+                addPendingPath(prefix, moveEvent.getNewPath());
+            } else if (event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+                addPendingPath(prefix, propertyEvent.getOldPath());
+                addPendingPath(prefix, propertyEvent.getNewPath());
+            }
+        }
+        if (pendingPaths.size() > RECONCILE_EVENT_THRESHOLD) {
+            scheduleReconcile();
+        } else if (!pendingPaths.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            ProjectScheduledService.getInstance(project).schedule(this::drainPendingPaths, DRAIN_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * .gitignore的创建、删除、移动、改名和内容修改
+     */
+    private static boolean isGitIgnoreEvent(VFileEvent event, String prefix) {
+        if (event instanceof VFileMoveEvent moveEvent) {
+            return isGitIgnorePath(moveEvent.getOldPath(), prefix) || isGitIgnorePath(moveEvent.getNewPath(), prefix);
+        }
+        if (event instanceof VFilePropertyChangeEvent propertyEvent) {
+            return propertyEvent.isRename()
+                    && (isGitIgnorePath(propertyEvent.getOldPath(), prefix) || isGitIgnorePath(propertyEvent.getNewPath(), prefix));
+        }
+        if (event instanceof VFileCopyEvent copyEvent) {
+            return isGitIgnorePath(copyEvent.getNewParent().getPath() + "/" + copyEvent.getNewChildName(), prefix);
+        }
+        return isGitIgnorePath(event.getPath(), prefix);
+    }
+
+    private static boolean isGitIgnorePath(String path, String prefix) {
+        return path.startsWith(prefix) && path.endsWith("/.gitignore");
+    }
+
+    private void addPendingPath(String prefix, String path) {
+        if (path.startsWith(prefix)) {
+            pendingPaths.add(path);
+        }
+    }
+
+    private void scheduleReconcile() {
+        if (reconcileScheduled.compareAndSet(false, true)) {
+            ProjectScheduledService.getInstance(project).schedule(this::reconcileFileCache, RECONCILE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 按文件系统当前状态更新待处理的路径，同一路径的多次事件只处理一次
+     */
+    private void drainPendingPaths() {
+        drainScheduled.set(false);
+        if (project.isDisposed()) {
+            return;
+        }
+        try {
+            synchronized (updateLock) {
+                boolean changed = false;
+                Iterator<String> iterator = pendingPaths.iterator();
+                while (iterator.hasNext()) {
+                    String path = iterator.next();
+                    iterator.remove();
+                    changed |= refreshPath(path);
+                }
+                if (changed) {
+                    publishSnapshot();
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to update file cache", e);
+        }
+    }
+
+    private boolean refreshPath(String path) {
+        // 路径原来可能是目录，先删掉它和它下面的文件。'0'是'/'的下一个字符
+        boolean changed = catalog.remove(path) != null;
+        ConcurrentNavigableMap<String, FileInfo> children = catalog.subMap(path + "/", path + "0");
+        if (!children.isEmpty()) {
+            children.clear();
+            changed = true;
+        }
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+        if (file == null || !file.isValid() || !isCatalogued(file)) {
+            return changed;
         }
-        var projectDirectory = ProjectUtil.guessProjectDir(project);
         List<VirtualFile> fileList = Lists.newArrayList();
-        if (projectDirectory != null) {
-            traverseDirectory(fileList, projectDirectory);
+        if (file.isDirectory()) {
+            traverseDirectory(fileList, file);
+        } else {
+            fileList.add(file);
+        }
+        for (VirtualFile child : fileList) {
+            catalog.put(child.getPath(), new FileInfo(child.getName(), child.getPath()));
         }
+        return changed || !fileList.isEmpty();
+    }
 
+    /**
+     * 和全量扫描的过滤规则一致：项目根目录下第一层以.开头的不要，自身或上级目录被忽略的不要
+     */
+    private boolean isCatalogued(VirtualFile file) {
+        String root = rootPath;
+        if (root == null || !file.getPath().startsWith(root + "/")) {
+            return false;
+        }
+        if (file.getPath().substring(root.length() + 1).startsWith(".")) {
+            return false;
+        }
+        for (VirtualFile current = file; current != null && !current.getPath().equals(root); current = current.getParent()) {
+            if (isIgnoreFile(current)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        String basePath = project.getBasePath();
-        Path baseDirPath = Paths.get(basePath).toAbsolutePath().normalize();
-        List<VirtualFile> files = fileList.stream()
-                .filter(file -> !isIgnoreFile(file))
-                .filter(file -> {
-                    String filePath = baseDirPath.relativize(Paths.get(file.getPath())).toString();
-                    return !filePath.startsWith(".");
-                })
-                .toList();
+    private void publishSnapshot() {
+        cachedFileInfoList = List.copyOf(catalog.values());
+    }
 
-        for (VirtualFile file : files) {
-            fileMap.put(file.getPath().replace("\\", "/"), file.getName());
+    private void reconcileFileCache() {
+        reconcileScheduled.set(false);
+        if (project.isDisposed()) {
+            return;
+        }
+        try {
+            synchronized (updateLock) {
+                updateFileCache();
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to reconcile file cache", e);
         }
+    }
 
-        cachedFileInfoList = fileMap.entrySet().stream()
-                .map(entry -> new FileInfo(entry.getValue(), entry.getKey()))
-                .collect(Collectors.toList());
+    private void updateFileCache() {
+        long startTime = System.currentTimeMillis();
+        LOG.info("Updating file cache start...");
+        var projectDirectory = ProjectUtil.guessProjectDir(project);
+        if (projectDirectory == null) {
+            return;
+        }
+        rootPath = projectDirectory.getPath();
+        // 扫描期间到达的事件在扫描结束后再按当前状态处理
+        pendingPaths.clear();
+        List<VirtualFile> fileList = Lists.newArrayList();
+        traverseDirectory(fileList, projectDirectory);
+
+        Map<String, FileInfo> fileMap = new HashMap<>();
+        int rootLength = rootPath.length() + 1;
+        for (VirtualFile file : fileList) {
+            String path = file.getPath();
+            if (path.length() > rootLength && path.substring(rootLength).startsWith(".")) {
+                continue;
+            }
+            fileMap.put(path, new FileInfo(file.getName(), path));
+        }
+        catalog.clear();
+        catalog.putAll(fileMap);
+        publishSnapshot();
         LOG.info("File cache updated fileSize: " + cachedFileInfoList.size());
         LOG.info("File cache updated successfully. Time taken: " + (System.currentTimeMillis() - startTime) + " ms");
     }
@@ -251,6 +455,13 @@ public final class FileService {
         ).toList();
     }
 
+    @Override
+    public void dispose() {
+        pendingPaths.clear();
+        catalog.clear();
+        cachedFileInfoList = List.of();
+    }
+
     public String getFileContent(String path) {
         return FileUtil.readUtf8String(path);
     }
@@ -4,6 +4,9 @@ package com.voidmuse.idea.plugin.service;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.project.Project;
 import com.intellij.ui.jcef.JBCefBrowser;
+import com.voidmuse.idea.plugin.bridge.InProcessJsBridge;
+import com.voidmuse.idea.plugin.bridge.JcefJsBridge;
+import com.voidmuse.idea.plugin.bridge.JsBridge;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -12,6 +15,12 @@ import java.util.Map;
 public final class ProjectBeanService {
 
     public static final String BROWSER_BEAN = "BROWSER_BEAN";
+    public static final String JS_BRIDGE_BEAN = "JS_BRIDGE_BEAN";
+
+    /**
+     * 设置该系统属性后，没有浏览器时使用进程内替身，便于无界面压测
+     */
+    private static final String IN_PROCESS_BRIDGE_PROPERTY = "voidmuse.bridge.inProcess";
 
     private final Project project;
 
@@ -27,6 +36,20 @@ public final class ProjectBeanService {
 
     public void setBrowser(JBCefBrowser browser) {
         beans.put(BROWSER_BEAN, browser);
+        setJsBridge(new JcefJsBridge(browser));
+    }
+
+    public synchronized JsBridge getJsBridge() {
+        JsBridge bridge = (JsBridge) beans.get(JS_BRIDGE_BEAN);
+        if (bridge == null && Boolean.getBoolean(IN_PROCESS_BRIDGE_PROPERTY)) {
+            bridge = new InProcessJsBridge(req -> CallJavaScriptService.getInstance(project).handleCallback(req));
+            beans.put(JS_BRIDGE_BEAN, bridge);
+        }
+        return bridge;
+    }
+
+    public synchronized void setJsBridge(JsBridge bridge) {
+        beans.put(JS_BRIDGE_BEAN, bridge);
     }
 
     public static ProjectBeanService getInstance(Project project) {
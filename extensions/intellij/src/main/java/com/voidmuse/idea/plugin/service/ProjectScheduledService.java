@@ -30,4 +30,8 @@ public final class ProjectScheduledService {
         this.scheduler.scheduleAtFixedRate(command, initialDelay, period, unit);
 
     }
+
+    public void schedule(Runnable command, long delay, TimeUnit unit) {
+        this.scheduler.schedule(command, delay, unit);
+    }
 }
@@ -4,13 +4,20 @@ import cn.hutool.json.JSONUtil;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.application.ModalityState;
-import com.intellij.ui.jcef.JBCefBrowser;
+import com.voidmuse.idea.plugin.call.CallJavaBatchReq;
 import com.voidmuse.idea.plugin.call.CallJavaCallbackReq;
 import com.voidmuse.idea.plugin.call.CallJavaReq;
+import com.voidmuse.idea.plugin.bridge.BridgeCodec;
+import com.voidmuse.idea.plugin.bridge.JsBridge;
 import com.voidmuse.idea.plugin.protocol.CallJavaHandlerImpl;
+import com.voidmuse.idea.plugin.protocol.CallJavaProtocol;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.cef.browser.CefBrowser;
@@ -18,9 +25,16 @@ import org.cef.browser.CefFrame;
 import org.cef.callback.CefQueryCallback;
 import org.cef.handler.CefMessageRouterHandlerAdapter;
 
-import javax.swing.*;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author zhangdaguan
@@ -29,7 +43,41 @@ import java.util.Map;
 @Service(Service.Level.PROJECT)
 public final class ProtocDispatchService extends CefMessageRouterHandlerAdapter {
     private static final Logger LOG = Logger.getInstance(ProtocDispatchService.class);
+
+    /**
+     * 小于该长度的请求只按采样率打印内容，大请求只打印方法名和长度
+     */
+    private static final int SMALL_PAYLOAD_LENGTH = 4 * 1024;
+    private static final int SMALL_PAYLOAD_LOG_SAMPLE_RATE = 50;
+
+    /**
+     * 有副作用、需要保持调用顺序的方法，以及读取这些方法所写状态的方法。
+     * 批量请求中这些方法按提交顺序串行执行，读能看到同一批中前面的写；其余方法并行执行
+     */
+    private static final Set<CallJavaProtocol> ORDERED_METHODS = EnumSet.of(
+            CallJavaProtocol.persistentState,
+            CallJavaProtocol.getPersistentState,
+            CallJavaProtocol.codeToInsert,
+            CallJavaProtocol.writeFile,
+            CallJavaProtocol.writeFileStream,
+            CallJavaProtocol.writeFiles,
+            CallJavaProtocol.applyPatch,
+            CallJavaProtocol.undoDiff,
+            CallJavaProtocol.getDiffHistory,
+            CallJavaProtocol.executeScript,
+            CallJavaProtocol.getScriptStatus,
+            CallJavaProtocol.stopScript
+    );
+
+    private static final String CANCELLED_RESPONSE = "{\"error\":\"cancelled\"}";
+
     private final Project project;
+    private final AtomicLong requestCounter = new AtomicLong();
+    private final Map<String, ProgressIndicator> runningRequests = new ConcurrentHashMap<>();
+    private final Map<Long, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+
+    private record PendingQuery(CefQueryCallback callback, List<String> requestIds) {
+    }
 
     public ProtocDispatchService(Project project) {
         this.project = project;
@@ -42,22 +90,25 @@ public final class ProtocDispatchService extends CefMessageRouterHandlerAdapter
     @Override
     public boolean onQuery(CefBrowser browser, CefFrame frame, long queryId, String request, boolean persistent, CefQueryCallback callback) {
         try {
-            CallJavaReq callJavaReq = JSONUtil.toBean(request, CallJavaReq.class);
-            LOG.info("callJavaReq:" + callJavaReq);
+            CallJavaReq callJavaReq = BridgeCodec.decodeRequest(request);
+            logRequest(callJavaReq, request);
 
             String requestId = callJavaReq.getRequestId();
-            if (StringUtils.isNotBlank(requestId)) {
-                callback.success("");
+            if (CallJavaProtocol.cancelCallJava.name().equals(callJavaReq.getMethodName())) {
+                cancelRequests(JSONUtil.parseObj(request).getJSONObject("arg").getBeanList("requestIds", String.class));
+                callback.success("success");
+            } else if (CallJavaProtocol.batchCallJava.name().equals(callJavaReq.getMethodName())) {
+                CallJavaBatchReq batchReq = JSONUtil.parseObj(request).getJSONObject("arg").toBean(CallJavaBatchReq.class);
+                dispatchBatch(queryId, callback, requestId, batchReq);
+            } else if (StringUtils.isNotBlank(requestId)) {
+                //异步请求在处理完成前保持query挂起，这样前端调用callJavaCancel时会触发onQueryCanceled
+                ProgressIndicator indicator = registerRequest(requestId);
+                pendingQueries.put(queryId, new PendingQuery(callback, List.of(requestId)));
                 //这里进行异步处理，得到结果response再调用calJavaCallback去回调请求
                 ApplicationManager.getApplication().executeOnPooledThread(() -> {
-                    try {
-                        String response = CallJavaHandlerImpl.getInstance().handleCallJava(project, callJavaReq);
-                        callJavaCallback(project, requestId, response);
-                    } catch (Exception e) {
-                        LOG.error("handleCallJava error", e);
-                        // 发生错误时也要回调JavaScript，避免界面卡住
-                        callJavaCallback(project, requestId, "{\"error\":\"" + e.getMessage() + "\"}");
-                    }
+                    String response = invokeCancellable(callJavaReq, indicator);
+                    completeQuery(queryId);
+                    callJavaCallback(project, requestId, response);
                 });
             } else {
                 String response = CallJavaHandlerImpl.getInstance().handleCallJava(project, callJavaReq);
@@ -71,21 +122,200 @@ public final class ProtocDispatchService extends CefMessageRouterHandlerAdapter
         return false;
     }
 
+    @Override
+    public void onQueryCanceled(CefBrowser browser, CefFrame frame, long queryId) {
+        PendingQuery pendingQuery = pendingQueries.remove(queryId);
+        if (pendingQuery != null) {
+            cancelRequests(pendingQuery.requestIds());
+        }
+    }
+
+    /**
+     * 取消正在执行的请求，对应线程里的ProgressManager.checkCanceled()会抛出ProcessCanceledException
+     */
+    public void cancelRequests(List<String> requestIds) {
+        if (requestIds == null) {
+            return;
+        }
+        for (String requestId : requestIds) {
+            ProgressIndicator indicator = runningRequests.get(requestId);
+            if (indicator != null) {
+                LOG.info("cancel callJava request: " + requestId);
+                indicator.cancel();
+            }
+        }
+    }
+
+    /**
+     * 执行批量请求：有序方法在同一个线程里按顺序执行，其余方法各自在线程池中并行执行。
+     * stream模式下每个子请求完成就按自己的requestId回调，否则收集全部结果后按批次requestId回调一次。
+     */
+    private void dispatchBatch(long queryId, CefQueryCallback callback, String batchRequestId, CallJavaBatchReq batchReq) {
+        List<CallJavaReq> requests = batchReq.getRequests() == null ? new ArrayList<>() : batchReq.getRequests();
+        boolean stream = Boolean.TRUE.equals(batchReq.getStream());
+        if (!stream && StringUtils.isBlank(batchRequestId)) {
+            LOG.warn("batchCallJava without requestId must use stream mode, size: " + requests.size());
+            callback.failure(-1, "batchCallJava without requestId must use stream mode");
+            return;
+        }
+
+        if (requests.isEmpty()) {
+            callback.success("");
+            if (!stream) {
+                callJavaCallback(project, batchRequestId, "{}");
+            }
+            return;
+        }
+
+        Map<String, String> results = new ConcurrentHashMap<>();
+        AtomicInteger remaining = new AtomicInteger(requests.size());
+        List<CallJavaReq> orderedRequests = new ArrayList<>();
+        List<CallJavaReq> parallelRequests = new ArrayList<>();
+        List<String> requestIds = new ArrayList<>();
+        Map<String, ProgressIndicator> indicators = new HashMap<>();
+        for (CallJavaReq req : requests) {
+            if (StringUtils.isBlank(req.getRequestId())) {
+                req.setRequestId(UUID.randomUUID().toString());
+            }
+            requestIds.add(req.getRequestId());
+            indicators.put(req.getRequestId(), registerRequest(req.getRequestId()));
+            if (isOrdered(req.getMethodName())) {
+                orderedRequests.add(req);
+            } else {
+                parallelRequests.add(req);
+            }
+        }
+        //取消整个批次的query会取消其中所有子请求
+        pendingQueries.put(queryId, new PendingQuery(callback, requestIds));
+
+        if (!orderedRequests.isEmpty()) {
+            ApplicationManager.getApplication().executeOnPooledThread(() -> {
+                for (CallJavaReq req : orderedRequests) {
+                    onBatchItemDone(queryId, batchRequestId, req, invokeCancellable(req, indicators.get(req.getRequestId())),
+                            stream, results, remaining);
+                }
+            });
+        }
+        for (CallJavaReq req : parallelRequests) {
+            ApplicationManager.getApplication().executeOnPooledThread(
+                    () -> onBatchItemDone(queryId, batchRequestId, req, invokeCancellable(req, indicators.get(req.getRequestId())),
+                            stream, results, remaining));
+        }
+    }
+
+    private void onBatchItemDone(long queryId, String batchRequestId, CallJavaReq req, String response, boolean stream,
+                                 Map<String, String> results, AtomicInteger remaining) {
+        if (stream) {
+            callJavaCallback(project, req.getRequestId(), response);
+        } else {
+            results.put(req.getRequestId(), StringUtils.defaultString(response));
+        }
+        if (remaining.decrementAndGet() == 0) {
+            completeQuery(queryId);
+            if (!stream) {
+                callJavaCallback(project, batchRequestId, JSONUtil.toJsonStr(results));
+            }
+        }
+    }
+
+    private void completeQuery(long queryId) {
+        PendingQuery pendingQuery = pendingQueries.remove(queryId);
+        if (pendingQuery != null) {
+            pendingQuery.callback().success("");
+        }
+    }
+
+    /**
+     * 在提交到线程池之前登记请求，任务开始执行前到达的取消也不会丢失
+     */
+    private ProgressIndicator registerRequest(String requestId) {
+        ProgressIndicator indicator = new EmptyProgressIndicator();
+        runningRequests.put(requestId, indicator);
+        return indicator;
+    }
+
+    /**
+     * 在预先登记的ProgressIndicator下执行请求，requestId被取消时返回取消结果
+     */
+    private String invokeCancellable(CallJavaReq callJavaReq, ProgressIndicator indicator) {
+        String requestId = callJavaReq.getRequestId();
+        try {
+            if (indicator.isCanceled()) {
+                LOG.info("callJava request cancelled before start, method: " + callJavaReq.getMethodName() + ", requestId: " + requestId);
+                return CANCELLED_RESPONSE;
+            }
+            return ProgressManager.getInstance().runProcess((Computable<String>) () -> invoke(callJavaReq), indicator);
+        } catch (ProcessCanceledException e) {
+            LOG.info("callJava request cancelled, method: " + callJavaReq.getMethodName() + ", requestId: " + requestId);
+            return CANCELLED_RESPONSE;
+        } finally {
+            runningRequests.remove(requestId, indicator);
+        }
+    }
+
+    private String invoke(CallJavaReq callJavaReq) {
+        try {
+            return CallJavaHandlerImpl.getInstance().handleCallJava(project, callJavaReq);
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.error("handleCallJava error", e);
+            // 发生错误时也要回调JavaScript，避免界面卡住
+            return "{\"error\":\"" + e.getMessage() + "\"}";
+        }
+    }
+
+    private static boolean isOrdered(String methodName) {
+        for (CallJavaProtocol protocol : ORDERED_METHODS) {
+            if (protocol.name().equals(methodName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 请求日志：大请求只打印方法名和长度；小请求按采样率打印内容，debug级别下全量打印
+     */
+    private void logRequest(CallJavaReq callJavaReq, String request) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("callJavaReq:" + callJavaReq);
+            return;
+        }
+        if (request.length() > SMALL_PAYLOAD_LENGTH) {
+            LOG.info("callJavaReq method:" + callJavaReq.getMethodName() + ", requestId:" + callJavaReq.getRequestId()
+                    + ", length:" + request.length());
+        } else if (requestCounter.incrementAndGet() % SMALL_PAYLOAD_LOG_SAMPLE_RATE == 0) {
+            LOG.info("callJavaReq(sampled):" + callJavaReq);
+        }
+    }
 
     private static void callJavaCallback(Project project, String requestId, String response) {
-        JBCefBrowser browser = ProjectBeanService.getInstance(project).getBrowser();
+        JsBridge bridge = ProjectBeanService.getInstance(project).getJsBridge();
+        if (bridge == null) {
+            LOG.warn("Browser is null, cannot execute callJavaCallback");
+            return;
+        }
+        // 大响应先放进blob store，回调里只带blobId，前端再通过scheme handler流式读取
+        String blobId = null;
+        if (BridgeBlobStore.shouldSpill(response) && bridge.supportsBlobFetch()) {
+            blobId = BridgeBlobStore.getInstance().put(response, "text/plain; charset=utf-8");
+        }
+        String finalBlobId = blobId;
+        // spill之后不再让lambda持有原始字符串
+        String inlineResponse = blobId == null ? response : null;
         // 使用IDEA的invokeLater确保在EDT中执行
         ApplicationManager.getApplication().invokeLater(() -> {
             try {
                 Map<String, Object> args = new HashMap<>();
-                //要处理两层解析的转义符
-                String transResponse = JSONUtil.quote(response);
-                if (transResponse.length() >= 2) {
-                    transResponse = transResponse.substring(1, transResponse.length() - 1);
+                if (finalBlobId != null) {
+                    args.put("blobId", finalBlobId);
+                } else {
+                    //要处理两层解析的转义符
+                    args.put("response", BridgeCodec.escapeResponse(inlineResponse));
                 }
-                args.put("response", transResponse);
                 CallJavaCallbackReq callJavaCallbackReq = new CallJavaCallbackReq(requestId, args);
-                browser.getCefBrowser().executeJavaScript("callJavaCallback('" + JSONUtil.toJsonStr(callJavaCallbackReq) + "')", null, 0);
+                bridge.callJavaCallback(callJavaCallbackReq);
             } catch (Exception e) {
                 LOG.error("callJavaCallback error", e);
             }
@@ -0,0 +1,42 @@
+package com.voidmuse.idea.plugin.util;
+
+import com.intellij.openapi.progress.ProgressManager;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 在等待异步结果时响应当前线程ProgressIndicator的取消。
+ * 桥接请求都在ProtocDispatchService分配的indicator下运行，前端取消请求后这里会抛出ProcessCanceledException。
+ *
+ * @author zhangdaguan
+ */
+public final class CancellationUtils {
+
+    private static final long POLL_INTERVAL_MS = 50;
+
+    private CancellationUtils() {
+    }
+
+    /**
+     * 等待future完成，期间定期检查取消状态；超过timeout抛出TimeoutException
+     */
+    public static <T> T awaitWithCheckCanceled(Future<T> future, long timeout, TimeUnit unit)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            ProgressManager.checkCanceled();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            try {
+                return future.get(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1, POLL_INTERVAL_MS), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 继续轮询，检查取消状态
+            }
+        }
+    }
+}
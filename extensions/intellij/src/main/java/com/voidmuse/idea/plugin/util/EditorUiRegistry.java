@@ -0,0 +1,156 @@
+package com.voidmuse.idea.plugin.util;
+
+import com.intellij.injected.editor.DocumentWindow;
+import com.intellij.injected.editor.VirtualFileWindow;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.Inlay;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 记录插件在编辑器里添加的inlay和highlighter，挂在editor的user data上。
+ * 增删只操作自己记录的对象，不再遍历整个文档的inlay或markupModel的全部highlighter，也不会误删IDE或其他插件的。
+ * 只在EDT中使用。
+ */
+public final class EditorUiRegistry {
+    private static final Key<EditorUiRegistry> KEY = Key.create("VoidMuse.EditorUiRegistry");
+
+    public enum Kind {
+        /**
+         * 补全的ghost text
+         */
+        COMPLETION,
+        /**
+         * 补全请求中的gutter spinner
+         */
+        SPINNER,
+        /**
+         * diff展示的新增行、当前行、未完成范围等
+         */
+        DIFF
+    }
+
+    private final Editor editor;
+    private final Map<Kind, Set<Inlay<?>>> inlays = new EnumMap<>(Kind.class);
+    private final Map<Kind, Set<RangeHighlighter>> highlighters = new EnumMap<>(Kind.class);
+    private Boolean injected;
+
+    private EditorUiRegistry(Editor editor) {
+        this.editor = editor;
+        for (Kind kind : Kind.values()) {
+            inlays.put(kind, new LinkedHashSet<>());
+            highlighters.put(kind, new LinkedHashSet<>());
+        }
+    }
+
+    public static EditorUiRegistry getInstance(Editor editor) {
+        EditorUiRegistry registry = editor.getUserData(KEY);
+        if (registry == null) {
+            // 随editor一起回收
+            registry = new EditorUiRegistry(editor);
+            editor.putUserData(KEY, registry);
+        }
+        return registry;
+    }
+
+    public <T extends Inlay<?>> T add(Kind kind, T inlay) {
+        if (inlay != null) {
+            inlays.get(kind).add(inlay);
+        }
+        return inlay;
+    }
+
+    public RangeHighlighter add(Kind kind, RangeHighlighter highlighter) {
+        if (highlighter != null) {
+            highlighters.get(kind).add(highlighter);
+        }
+        return highlighter;
+    }
+
+    /**
+     * 移除该类型已有的inlay，再加入新的
+     */
+    public <T extends Inlay<?>> T replace(Kind kind, T inlay) {
+        removeInlays(kind);
+        return add(kind, inlay);
+    }
+
+    /**
+     * 移除该类型已有的highlighter，再加入新的
+     */
+    public RangeHighlighter replace(Kind kind, RangeHighlighter highlighter) {
+        removeHighlighters(kind);
+        return add(kind, highlighter);
+    }
+
+    public void remove(Kind kind, Inlay<?> inlay) {
+        if (inlay != null && inlays.get(kind).remove(inlay)) {
+            inlay.dispose();
+        }
+    }
+
+    public void remove(Kind kind, RangeHighlighter highlighter) {
+        if (highlighter != null && highlighters.get(kind).remove(highlighter)) {
+            highlighter.dispose();
+        }
+    }
+
+    public void removeInlays(Kind kind) {
+        Set<Inlay<?>> owned = inlays.get(kind);
+        if (owned.isEmpty()) {
+            return;
+        }
+        List<Inlay<?>> toDispose = new ArrayList<>(owned);
+        owned.clear();
+        for (Inlay<?> inlay : toDispose) {
+            inlay.dispose();
+        }
+    }
+
+    public void removeHighlighters(Kind kind) {
+        Set<RangeHighlighter> owned = highlighters.get(kind);
+        if (owned.isEmpty()) {
+            return;
+        }
+        List<RangeHighlighter> toDispose = new ArrayList<>(owned);
+        owned.clear();
+        for (RangeHighlighter highlighter : toDispose) {
+            highlighter.dispose();
+        }
+    }
+
+    public void removeAll(Kind kind) {
+        removeInlays(kind);
+        removeHighlighters(kind);
+    }
+
+    /**
+     * 该类型仍然有效的inlay，失效的顺便清理掉
+     */
+    public List<Inlay<?>> getInlays(Kind kind) {
+        Set<Inlay<?>> owned = inlays.get(kind);
+        owned.removeIf(inlay -> !inlay.isValid());
+        return owned.isEmpty() ? Collections.emptyList() : new ArrayList<>(owned);
+    }
+
+    /**
+     * 是否为注入语言的片段编辑器，editor的文档不会变，只判断一次，不需要读锁
+     */
+    public boolean isInjected() {
+        if (injected == null) {
+            VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+            injected = editor.getDocument() instanceof DocumentWindow || file instanceof VirtualFileWindow;
+        }
+        return injected;
+    }
+}
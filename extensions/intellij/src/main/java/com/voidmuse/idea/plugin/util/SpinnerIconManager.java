@@ -10,7 +10,6 @@ import com.intellij.ui.AnimatedIcon;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
-import java.util.Objects;
 
 public class SpinnerIconManager {
 
@@ -26,12 +25,6 @@ public class SpinnerIconManager {
         int endOffset = document.getLineEndOffset(lineNumber);
 
         MarkupModel markupModel = editor.getMarkupModel();
-        for (RangeHighlighter highlighter : markupModel.getAllHighlighters()) {
-            if (highlighter.getGutterIconRenderer() != null &&
-                    Objects.equals(SPINNER_ICON, highlighter.getGutterIconRenderer().getIcon())) {
-                markupModel.removeHighlighter(highlighter);
-            }
-        }
         RangeHighlighter highlighter = markupModel.addRangeHighlighter(
                 startOffset,
                 endOffset,
@@ -55,18 +48,14 @@ public class SpinnerIconManager {
                 return System.identityHashCode(this);
             }
         });
+        // 同一编辑器只保留一个spinner
+        EditorUiRegistry.getInstance(editor).replace(EditorUiRegistry.Kind.SPINNER, highlighter);
     }
 
     public static void hideSpinnerIcon(Editor editor) {
         if (editor == null) {
             return;
         }
-        MarkupModel markupModel = editor.getMarkupModel();
-        for (RangeHighlighter highlighter : markupModel.getAllHighlighters()) {
-            if (highlighter.getGutterIconRenderer() != null &&
-                    Objects.equals(SPINNER_ICON, highlighter.getGutterIconRenderer().getIcon())) {
-                markupModel.removeHighlighter(highlighter);
-            }
-        }
+        EditorUiRegistry.getInstance(editor).removeHighlighters(EditorUiRegistry.Kind.SPINNER);
     }
 }
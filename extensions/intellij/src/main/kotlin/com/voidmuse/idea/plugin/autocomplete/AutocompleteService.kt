@@ -6,20 +6,26 @@ import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.application.ModalityState
 import com.intellij.openapi.application.WriteAction
 import com.intellij.openapi.application.invokeLater
-import com.intellij.openapi.application.runReadAction
+import com.intellij.openapi.Disposable
 import com.intellij.openapi.components.Service
 import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.editor.EditorFactory
+import com.intellij.openapi.editor.Inlay
 import com.intellij.openapi.editor.InlayProperties
+import com.intellij.openapi.editor.event.DocumentEvent
+import com.intellij.openapi.editor.event.DocumentListener
 import com.intellij.openapi.fileEditor.FileDocumentManager
 import com.intellij.openapi.project.Project
-import com.intellij.psi.PsiDocumentManager
 import com.intellij.psi.PsiElement
+import com.intellij.util.Alarm
 import com.voidmuse.idea.plugin.completion.CompletionType
+import com.voidmuse.idea.plugin.completion.InfillRequest
 import com.voidmuse.idea.plugin.completion.InfillRequestUtil
 import com.voidmuse.idea.plugin.domain.EditCodeContext
 import com.voidmuse.idea.plugin.service.CallJavaScriptService
+import com.voidmuse.idea.plugin.util.EditorUiRegistry
 import com.voidmuse.idea.plugin.util.SpinnerIconManager
-import java.util.*
+import java.util.concurrent.atomic.AtomicBoolean
 
 data class PendingCompletion(
     val editor: Editor,
@@ -35,23 +41,72 @@ fun PsiElement.isInjectedText(): Boolean {
 }
 
 @Service(Service.Level.PROJECT)
-class AutocompleteService(private val project: Project) {
+class AutocompleteService(private val project: Project) : Disposable {
     var pendingCompletion: PendingCompletion? = null;
 
+    private val completionCache = CompletionCache()
+
+    /**
+     * 流式返回时按帧合并重绘，同一时间最多排一次
+     */
+    private val streamAlarm = Alarm(Alarm.ThreadToUse.SWING_THREAD, this)
+    private val streamFlushScheduled = AtomicBoolean(false)
+
+    /**
+     * 在EDT上重绘时写入，流式回调线程排下一帧时读取
+     */
+    @Volatile
+    private var lastStreamFlushAt = 0L
+
+    companion object {
+        /**
+         * 流式重绘的最小间隔，约一帧
+         */
+        private const val STREAM_FRAME_MS = 16L
+    }
+
     init {
+        // 输入内容与当前建议一致时直接展示剩余部分，不重新请求
+        EditorFactory.getInstance().eventMulticaster.addDocumentListener(object : DocumentListener {
+            override fun documentChanged(event: DocumentEvent) {
+                onDocumentChanged(event)
+            }
+        }, this)
     }
 
     fun triggerCompletion(editor: Editor) {
-        if (pendingCompletion != null) {
-            clearCompletions(pendingCompletion!!.editor)
+        val offset = editor.caretModel.primaryCaret.offset
+        // 同一位置的请求还在进行，或者已输入的内容是缓存建议的开头，直接复用
+        val match = completionCache.find(editor.document, offset)
+        pendingCompletion?.let {
+            // 被取代的请求在前端取消，复用的会话保留
+            clearCompletions(it.editor, it.completionId != match?.session?.id)
+        }
+        if (match != null) {
+            showSession(editor, match, offset)
+            return
         }
 
-        val completionId = UUID.randomUUID().toString()
-        val offset = editor.caretModel.primaryCaret.offset
         val lineNumber = editor.document.getLineNumber(offset);
-        pendingCompletion = PendingCompletion(editor, offset, completionId, null)
+        val session = completionCache.start(editor.document, offset)
+        session.timeline = CompletionTimeline(
+            FileDocumentManager.getInstance().getFile(editor.document)?.fileType?.name ?: "unknown"
+        )
+        pendingCompletion = PendingCompletion(editor, offset, session.id, null)
+
+        SpinnerIconManager.showSpinnerIcon(editor, lineNumber);
+        // 上下文在后台解析，不阻塞EDT和写操作
+        InfillRequestUtil.buildInfillRequestAsync(editor, CompletionType.MULTI_LINE) { requestDetails ->
+            session.timeline?.contextReady(requestDetails.context?.contextElements?.size ?: 0)
+            sendCompletionRequest(editor, session, requestDetails)
+        }
+    }
 
-        val requestDetails = InfillRequestUtil.buildInfillRequest(editor, CompletionType.MULTI_LINE)
+    private fun sendCompletionRequest(editor: Editor, session: CompletionCache.Session, requestDetails: InfillRequest) {
+        if (!completionCache.contains(session)) {
+            // 解析上下文期间已被取消
+            return
+        }
         val virtualFile = FileDocumentManager.getInstance().getFile(editor.document)
 
         val contextElements = requestDetails.context?.contextElements?.map { contextElement ->
@@ -67,31 +122,166 @@ class AutocompleteService(private val project: Project) {
             put("suffix", Base64.encode(requestDetails.suffix))
             virtualFile?.fileType?.name?.let { put("language", it) }
             put("contexts", contextElements)
+            // 前端通过completionChunk边生成边返回
+            put("stream", true)
         }
 
-        SpinnerIconManager.showSpinnerIcon(editor, lineNumber);
-        CallJavaScriptService.getInstance(project).callJavaScriptAsync(
-            "codeCompletion", paramMap,
+        session.timeline?.requestSent()
+        session.requestId = CallJavaScriptService.getInstance(project).callJavaScriptAsync(
+            "codeCompletion", paramMap, CallJavaScriptService.Priority.INTERACTIVE,
             object : CallJavaScriptService.Callback {
                 override fun run(args: Map<String, Any>) {
+                    session.timeline?.responseReceived((args["providerMs"] as? Number)?.toLong() ?: -1L)
                     val result: String = args["data"].toString().trimStart()
+                    completionCache.complete(session, result)
                     ApplicationManager.getApplication().invokeLater({
-                        SpinnerIconManager.hideSpinnerIcon(editor)
-                        renderCompletion(editor, offset, result)
-                        pendingCompletion = pendingCompletion?.copy(text = result)
+                        onSessionCompleted(session)
                     }, ModalityState.NON_MODAL)
                 }
 
                 override fun timeout() {
+                    CompletionLatencyTracker.getInstance().finish(session.timeline, CompletionOutcome.TIMEOUT)
+                    completionCache.remove(session)
                     ApplicationManager.getApplication().invokeLater({
-                        SpinnerIconManager.hideSpinnerIcon(editor)
+                        if (pendingCompletion?.completionId == session.id) {
+                            SpinnerIconManager.hideSpinnerIcon(editor)
+                        }
                     }, ModalityState.NON_MODAL)
                 }
             }
         )
     }
 
-    private fun renderCompletion(editor: Editor, offset: Int, completion: String) {
+    /**
+     * 请求返回时，只有仍在等待该会话且输入内容仍与建议一致才展示
+     */
+    private fun onSessionCompleted(session: CompletionCache.Session) {
+        val tracker = CompletionLatencyTracker.getInstance()
+        if (session.text.isNullOrEmpty()) {
+            tracker.finish(session.timeline, CompletionOutcome.EMPTY)
+        }
+        val pending = pendingCompletion
+        if (pending == null || pending.completionId != session.id) {
+            tracker.finish(session.timeline, CompletionOutcome.DISCARDED)
+            return
+        }
+        val editor = pending.editor
+        SpinnerIconManager.hideSpinnerIcon(editor)
+        if (editor.isDisposed) return
+        val match = completionCache.find(editor.document, editor.caretModel.offset)
+        if (match != null && match.session === session) {
+            showSession(editor, match, editor.caretModel.offset)
+        } else {
+            tracker.finish(session.timeline, CompletionOutcome.DISCARDED)
+        }
+    }
+
+    /**
+     * 前端流式返回的片段，可能在任意线程调用。只追加文本，按帧合并后在EDT上更新同一个inlay
+     */
+    fun onCompletionChunk(requestId: String, chunk: String) {
+        if (chunk.isEmpty()) return
+        val session = completionCache.findByRequestId(requestId) ?: return
+        if (session.text != null) return
+        session.appendStreamed(chunk)
+        scheduleStreamFlush()
+    }
+
+    private fun scheduleStreamFlush() {
+        if (!streamFlushScheduled.compareAndSet(false, true)) return
+        val delay = (STREAM_FRAME_MS - (System.currentTimeMillis() - lastStreamFlushAt)).coerceAtLeast(0)
+        streamAlarm.addRequest({ flushStream() }, delay, ModalityState.NON_MODAL)
+    }
+
+    private fun flushStream() {
+        // 先记录时间再放开排队，下一次排帧时读到的是本次的时间
+        lastStreamFlushAt = System.currentTimeMillis()
+        streamFlushScheduled.set(false)
+        val pending = pendingCompletion ?: return
+        // 完整结果已展示
+        if (pending.text != null) return
+        val editor = pending.editor
+        if (editor.isDisposed || isInjectedFile(editor)) return
+        val session = completionCache.get(pending.completionId) ?: return
+        if (session.text != null) return
+        val offset = editor.caretModel.offset
+        val match = completionCache.find(editor.document, offset)
+        if (match == null || match.session !== session) return
+        val remainder = match.streamedRemainder
+        if (remainder.isEmpty()) {
+            hideCompletions(editor)
+            return
+        }
+        pending.offset = offset
+        SpinnerIconManager.hideSpinnerIcon(editor)
+        updateLiveInlay(editor, offset, remainder)
+        session.timeline?.firstChunkRendered()
+    }
+
+    /**
+     * 文本没有换行时用行内inlay，出现换行后换成块inlay；类型不变时只替换文本并重新计算尺寸
+     */
+    private fun updateLiveInlay(editor: Editor, offset: Int, text: String) {
+        val inlay = EditorUiRegistry.getInstance(editor).getInlays(EditorUiRegistry.Kind.COMPLETION).singleOrNull()
+        if (inlay != null && inlay.isValid && inlay.offset == offset) {
+            val multiline = text.contains('\n')
+            when (val renderer = inlay.renderer) {
+                is CustomElementRenderer -> if (!multiline) {
+                    renderer.text = text
+                    inlay.update()
+                    inlay.repaint()
+                    return
+                }
+
+                is MultilineCustomElementRenderer -> if (multiline) {
+                    renderer.text = text
+                    inlay.update()
+                    inlay.repaint()
+                    return
+                }
+            }
+        }
+        hideCompletions(editor)
+        addCompletionInlay(editor, offset, text)
+    }
+
+    private fun showSession(editor: Editor, match: CompletionCache.Match, offset: Int) {
+        val remainder = match.remainder
+        pendingCompletion = PendingCompletion(editor, offset, match.session.id, remainder)
+        if (remainder == null) {
+            // 请求还在进行，等结果返回后再展示，已流式收到的部分先画出来
+            SpinnerIconManager.showSpinnerIcon(editor, editor.document.getLineNumber(offset))
+            scheduleStreamFlush()
+            return
+        }
+        renderCompletion(editor, offset, remainder, match.session.timeline)
+    }
+
+    private fun onDocumentChanged(event: DocumentEvent) {
+        val pending = pendingCompletion ?: return
+        if (pending.editor.document != event.document) return
+        // caret在文档变更后才移动，放到之后再判断
+        ApplicationManager.getApplication().invokeLater({
+            val current = pendingCompletion ?: return@invokeLater
+            if (current.completionId != pending.completionId) return@invokeLater
+            val editor = current.editor
+            if (editor.isDisposed) return@invokeLater
+            val offset = editor.caretModel.offset
+            val match = completionCache.find(editor.document, offset)
+            if (match == null || match.session.id != current.completionId) {
+                clearCompletions(editor, true)
+                return@invokeLater
+            }
+            if (match.remainder == null) {
+                // 流式返回中，输入与已收到的部分一致，在新位置继续展示
+                scheduleStreamFlush()
+            } else if (offset != current.offset) {
+                showSession(editor, match, offset)
+            }
+        }, ModalityState.NON_MODAL)
+    }
+
+    private fun renderCompletion(editor: Editor, offset: Int, completion: String, timeline: CompletionTimeline?) {
         if (completion.isEmpty()) {
             return
         }
@@ -101,33 +291,42 @@ class AutocompleteService(private val project: Project) {
             WriteAction.run<Throwable> {
                 // Clear existing completions
                 hideCompletions(editor)
-
-                val properties = InlayProperties()
-                properties.relatesToPrecedingText(true)
-                properties.disableSoftWrapping(true)
-
-                if (completion.lines().size > 1) {
-                    editor.inlayModel.addBlockElement(
-                        offset,
-                        properties,
-                        MultilineCustomElementRenderer(editor, completion)
-                    )
-                } else {
-                    editor.inlayModel.addInlineElement(
-                        offset,
-                        properties,
-                        CustomElementRenderer(editor, completion)
-                    )
-                }
+                addCompletionInlay(editor, offset, completion)
+                timeline?.rendered()
+                CompletionLatencyTracker.getInstance().finish(timeline, CompletionOutcome.RENDERED)
             }
         }
     }
 
+    private fun addCompletionInlay(editor: Editor, offset: Int, completion: String): Inlay<*>? {
+        val properties = InlayProperties()
+        properties.relatesToPrecedingText(true)
+        properties.disableSoftWrapping(true)
+
+        val inlay = if (completion.lines().size > 1) {
+            editor.inlayModel.addBlockElement(
+                offset,
+                properties,
+                MultilineCustomElementRenderer(editor, completion)
+            )
+        } else {
+            editor.inlayModel.addInlineElement(
+                offset,
+                properties,
+                CustomElementRenderer(editor, completion)
+            )
+        }
+        return EditorUiRegistry.getInstance(editor).add(EditorUiRegistry.Kind.COMPLETION, inlay)
+    }
+
     fun accept() {
         val completion = pendingCompletion ?: return
         val text = completion.text ?: return
         val editor = completion.editor
         val offset = completion.offset
+        // 先结束当前会话，插入文本不再触发type-through
+        pendingCompletion = null
+        completionCache.invalidate(editor.document)
         editor.document.insertString(offset, text)
 
         editor.caretModel.moveToOffset(offset + text.length)
@@ -137,41 +336,46 @@ class AutocompleteService(private val project: Project) {
         }
     }
 
-    private fun cancelCompletion(completion: PendingCompletion) {
+    private fun cancelCompletion(completion: PendingCompletion, cancelRequest: Boolean) {
         SpinnerIconManager.hideSpinnerIcon(completion.editor);
+        if (cancelRequest) {
+            completionCache.get(completion.completionId)?.let { cancelSession(it) }
+        }
+    }
+
+    /**
+     * 取消还未返回的请求：移除回调并通知前端中止模型调用。已有结果的会话保留，供type-through复用
+     */
+    private fun cancelSession(session: CompletionCache.Session) {
+        if (session.text != null) return
+        CompletionLatencyTracker.getInstance().finish(session.timeline, CompletionOutcome.CANCELLED)
+        completionCache.remove(session)
+        val requestId = session.requestId ?: return
+        val callJavaScriptService = CallJavaScriptService.getInstance(project)
+        callJavaScriptService.cancelCallback(requestId)
+        callJavaScriptService.callJavaScript(project, "cancelRequest", hashMapOf<String, Any>("requestIds" to listOf(requestId)))
     }
 
-    fun clearCompletions(editor: Editor) {
+    @JvmOverloads
+    fun clearCompletions(editor: Editor, cancelRequest: Boolean = true) {
         if (isInjectedFile(editor)) return
 
         if (pendingCompletion != null) {
-            cancelCompletion(pendingCompletion!!)
+            cancelCompletion(pendingCompletion!!, cancelRequest)
             pendingCompletion = null
         }
         hideCompletions(editor)
     }
 
-    private fun isInjectedFile(editor: Editor): Boolean {
-        val psiFile = runReadAction { PsiDocumentManager.getInstance(project).getPsiFile(editor.document) }
-        if (psiFile == null) {
-            return false
-        }
-        val response = runReadAction { psiFile.isInjectedText() }
-        return response
-    }
+    private fun isInjectedFile(editor: Editor): Boolean = EditorUiRegistry.getInstance(editor).isInjected()
 
     private fun hideCompletions(editor: Editor) {
         if (isInjectedFile(editor)) return
 
-        editor.inlayModel.getInlineElementsInRange(0, editor.document.textLength).forEach {
-            if (it.renderer is CustomElementRenderer) {
-                it.dispose()
-            }
-        }
-        editor.inlayModel.getBlockElementsInRange(0, editor.document.textLength).forEach {
-            if (it.renderer is MultilineCustomElementRenderer) {
-                it.dispose()
-            }
-        }
+        EditorUiRegistry.getInstance(editor).removeInlays(EditorUiRegistry.Kind.COMPLETION)
+    }
+
+    override fun dispose() {
+        pendingCompletion = null
     }
 }
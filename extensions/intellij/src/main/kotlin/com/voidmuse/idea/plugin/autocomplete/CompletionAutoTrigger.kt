@@ -0,0 +1,190 @@
+package com.voidmuse.idea.plugin.autocomplete
+
+import com.intellij.codeInsight.lookup.LookupManager
+import com.intellij.idea.ActionsBundle
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.actionSystem.IdeActions
+import com.intellij.openapi.application.ModalityState
+import com.intellij.openapi.command.CommandProcessor
+import com.intellij.openapi.command.undo.UndoManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.editor.EditorBundle
+import com.intellij.openapi.editor.EditorFactory
+import com.intellij.openapi.editor.event.CaretEvent
+import com.intellij.openapi.editor.event.CaretListener
+import com.intellij.openapi.editor.event.DocumentEvent
+import com.intellij.openapi.editor.event.DocumentListener
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.fileEditor.FileEditorManager
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.util.Alarm
+import com.voidmuse.idea.plugin.completion.CompletionConstant
+import com.voidmuse.idea.plugin.editor.DiffStreamService
+import com.voidmuse.idea.plugin.setting.ConfigurationSettings
+
+/**
+ * 输入时自动触发补全。
+ * <ul>
+ *     <li>自适应防抖：按最近的按键间隔估计输入节奏，停顿超过平时间隔后才触发</li>
+ *     <li>限流：滑动窗口内的触发次数有上限，超出后推迟</li>
+ *     <li>只响应用户输入：撤销/重做、插件自己写入的diff和其它命令引起的文档变化不触发</li>
+ *     <li>抑制：标识符中间、有选区、索引中、补全弹窗打开、多光标、不支持的文件类型、编辑器上有diff会话</li>
+ * </ul>
+ * 被新输入取代的请求由[AutocompleteService]在前端取消。
+ */
+@Service(Service.Level.PROJECT)
+class CompletionAutoTrigger(private val project: Project) : Disposable {
+
+    companion object {
+        private const val MIN_DEBOUNCE_MS = 75L
+        private const val MAX_DEBOUNCE_MS = 400L
+
+        /**
+         * 单次改动超过该长度（粘贴、格式化等）不自动触发
+         */
+        private const val MAX_TYPED_LENGTH = 64
+
+        private const val RATE_LIMIT_WINDOW_MS = 10_000L
+        private const val RATE_LIMIT_MAX_TRIGGERS = 20
+
+        @JvmStatic
+        fun getInstance(project: Project): CompletionAutoTrigger = project.service()
+    }
+
+    private val alarm = Alarm(Alarm.ThreadToUse.SWING_THREAD, this)
+    private val triggerTimes = ArrayDeque<Long>()
+
+    @Volatile
+    private var started = false
+    private var averageIntervalMs = MIN_DEBOUNCE_MS.toDouble()
+    private var lastKeystrokeAt = 0L
+
+    /**
+     * 最近一次输入后预期的光标位置，用于区分输入引起的光标移动和用户主动移动光标
+     */
+    private var expectedCaretOffset = -1
+    private var expectedStamp = -1L
+
+    fun start() {
+        if (started) return
+        started = true
+        val multicaster = EditorFactory.getInstance().eventMulticaster
+        multicaster.addDocumentListener(object : DocumentListener {
+            override fun documentChanged(event: DocumentEvent) {
+                onDocumentChanged(event)
+            }
+        }, this)
+        multicaster.addCaretListener(object : CaretListener {
+            override fun caretPositionChanged(event: CaretEvent) {
+                onCaretMoved(event)
+            }
+        }, this)
+    }
+
+    private fun onDocumentChanged(event: DocumentEvent) {
+        if (!ConfigurationSettings.getState().autoTriggerCompletion) return
+        val editor = findSelectedEditor(event.document) ?: return
+        if (!isTypingCommand() || UndoManager.getInstance(project).isUndoOrRedoInProgress
+            || event.newLength > MAX_TYPED_LENGTH || event.oldLength > MAX_TYPED_LENGTH
+        ) {
+            alarm.cancelAllRequests()
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        val interval = now - lastKeystrokeAt
+        lastKeystrokeAt = now
+        if (interval < MAX_DEBOUNCE_MS * 2) {
+            averageIntervalMs = averageIntervalMs * 0.7 + interval * 0.3
+        }
+        expectedCaretOffset = event.offset + event.newLength
+        expectedStamp = event.document.modificationStamp
+
+        alarm.cancelAllRequests()
+        val stamp = event.document.modificationStamp
+        alarm.addRequest({ fire(editor, stamp) }, debounceDelay(), ModalityState.NON_MODAL)
+    }
+
+    private fun onCaretMoved(event: CaretEvent) {
+        val editor = event.editor
+        if (editor.project != project) return
+        val offset = editor.logicalPositionToOffset(event.newPosition)
+        if (editor.document.modificationStamp == expectedStamp && offset == expectedCaretOffset) {
+            // 输入引起的光标移动
+            return
+        }
+        alarm.cancelAllRequests()
+        val autocompleteService = project.service<AutocompleteService>()
+        val pending = autocompleteService.pendingCompletion ?: return
+        if (pending.editor == editor && pending.offset != offset) {
+            autocompleteService.clearCompletions(editor)
+        }
+    }
+
+    private fun fire(editor: Editor, stamp: Long) {
+        if (editor.isDisposed || editor.document.modificationStamp != stamp) return
+        if (isSuppressed(editor)) return
+
+        val now = System.currentTimeMillis()
+        while (triggerTimes.isNotEmpty() && now - triggerTimes.first() > RATE_LIMIT_WINDOW_MS) {
+            triggerTimes.removeFirst()
+        }
+        if (triggerTimes.size >= RATE_LIMIT_MAX_TRIGGERS) {
+            // 超出限流，等窗口内最早的一次过期后再试
+            val waitMs = RATE_LIMIT_WINDOW_MS - (now - triggerTimes.first()) + 1
+            alarm.addRequest({ fire(editor, stamp) }, waitMs, ModalityState.NON_MODAL)
+            return
+        }
+        triggerTimes.addLast(now)
+        project.service<AutocompleteService>().triggerCompletion(editor)
+    }
+
+    /**
+     * 停顿超过平时按键间隔的1.5倍才认为输入暂停
+     */
+    private fun debounceDelay(): Long {
+        return (averageIntervalMs * 1.5).toLong().coerceIn(MIN_DEBOUNCE_MS, MAX_DEBOUNCE_MS)
+    }
+
+    /**
+     * 当前文档变化是否来自用户在编辑器里输入、退格或删除
+     */
+    private fun isTypingCommand(): Boolean {
+        val commandName = CommandProcessor.getInstance().currentCommandName ?: return false
+        return commandName == EditorBundle.message("typing.in.editor.command.name")
+                || commandName == ActionsBundle.actionText(IdeActions.ACTION_EDITOR_BACKSPACE)
+                || commandName == ActionsBundle.actionText(IdeActions.ACTION_EDITOR_DELETE)
+                || commandName == ActionsBundle.actionText(IdeActions.ACTION_EDITOR_ENTER)
+    }
+
+    private fun isSuppressed(editor: Editor): Boolean {
+        if (DumbService.isDumb(project)) return true
+        if (project.service<DiffStreamService>().hasSession(editor)) return true
+        if (editor.isViewer || !editor.document.isWritable) return true
+        if (editor.selectionModel.hasSelection()) return true
+        if (editor.caretModel.caretCount > 1) return true
+        if (LookupManager.getActiveLookup(editor) != null) return true
+
+        val extension = FileDocumentManager.getInstance().getFile(editor.document)?.extension ?: return true
+        if (!CompletionConstant.CodeCompletionSupportFileTypes.contains(extension.lowercase())) return true
+
+        // 光标在标识符中间时不触发
+        val offset = editor.caretModel.offset
+        val text = editor.document.charsSequence
+        return offset < text.length && Character.isJavaIdentifierPart(text[offset])
+    }
+
+    private fun findSelectedEditor(document: Document): Editor? {
+        if (project.isDisposed) return null
+        val editor = FileEditorManager.getInstance(project).selectedTextEditor ?: return null
+        return if (editor.document == document) editor else null
+    }
+
+    override fun dispose() {
+        triggerTimes.clear()
+    }
+}
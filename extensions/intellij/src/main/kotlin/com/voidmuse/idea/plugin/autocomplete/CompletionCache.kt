@@ -0,0 +1,206 @@
+package com.voidmuse.idea.plugin.autocomplete
+
+import com.intellij.openapi.editor.Document
+import java.util.*
+
+/**
+ * 补全会话缓存，按文档、锚点位置和锚点前文本的滚动hash记录补全请求及其结果。
+ * 用户继续输入的内容与建议开头一致时直接复用剩余部分；同一位置重复触发时复用进行中的请求。
+ * 需要在有读权限的线程（通常是EDT）中调用。
+ */
+class CompletionCache(private val maxSessions: Int = 32) {
+
+    class Session(
+        val id: String,
+        val document: Document,
+        val anchorOffset: Int,
+        val prefixHash: Long,
+        val lineSuffix: String
+    ) {
+        /**
+         * 补全结果，为null表示请求还未返回
+         */
+        @Volatile
+        var text: String? = null
+
+        @Volatile
+        var requestId: String? = null
+
+        /**
+         * 本次请求的耗时时间线，type-through复用时不再记录
+         */
+        @Volatile
+        var timeline: CompletionTimeline? = null
+
+        /**
+         * 流式返回时已收到的部分结果，完整结果返回后以[text]为准
+         */
+        private val streamed = StringBuilder()
+
+        /**
+         * 和完整结果一样去掉开头的空白，否则流式展示的内容和最终结果不一致，inlay会跳动
+         */
+        fun appendStreamed(chunk: String): String = synchronized(streamed) {
+            streamed.append(if (streamed.isEmpty()) chunk.trimStart() else chunk)
+            streamed.toString()
+        }
+
+        fun streamedText(): String = synchronized(streamed) { streamed.toString() }
+    }
+
+    data class Match(val session: Session, val typedLength: Int) {
+        /**
+         * 去掉已输入部分后剩余的建议，请求未返回时为null
+         */
+        val remainder: String?
+            get() = session.text?.substring(typedLength)
+
+        /**
+         * 请求未返回时，已流式收到的部分去掉已输入部分后的剩余
+         */
+        val streamedRemainder: String
+            get() = session.streamedText().let { if (it.length > typedLength) it.substring(typedLength) else "" }
+    }
+
+    private val sessions = LinkedHashMap<String, Session>(16, 0.75f, true)
+
+    /**
+     * 查找caret处可复用的会话：锚点前文本和caret后本行内容未变，且从锚点到caret输入的内容是建议的开头
+     */
+    @Synchronized
+    fun find(document: Document, caretOffset: Int): Match? {
+        if (caretOffset > document.textLength) return null
+        var best: Match? = null
+        // caret后本行内容和锚点前文本的前缀hash每次查找只计算一次，各会话共用
+        var caretLineSuffix: String? = null
+        var prefixHashes: PrefixHashes? = null
+        for (session in sessions.values) {
+            if (session.document !== document) continue
+            val typedLength = caretOffset - session.anchorOffset
+            if (typedLength < 0 || typedLength > MAX_TYPE_THROUGH_LENGTH) continue
+            val lineSuffix = caretLineSuffix ?: lineSuffix(document, caretOffset).also { caretLineSuffix = it }
+            if (lineSuffix != session.lineSuffix) continue
+            val hashes = prefixHashes ?: PrefixHashes(document, caretOffset).also { prefixHashes = it }
+            if (hashes.windowHash(session.anchorOffset) != session.prefixHash) continue
+
+            val typed = document.charsSequence.subSequence(session.anchorOffset, caretOffset).toString()
+            val text = session.text
+            if (text != null && (!text.startsWith(typed) || text.length == typed.length)) continue
+            // 流式返回中，输入的内容与已收到的部分不一致时不再复用
+            if (text == null && typedLength > 0) {
+                val streamed = session.streamedText()
+                if (!streamed.startsWith(typed) && !typed.startsWith(streamed)) continue
+            }
+            // 离caret最近的锚点最精确
+            if (best == null || typedLength < best.typedLength) {
+                best = Match(session, typedLength)
+            }
+        }
+        if (best != null) {
+            // 访问一次以更新LRU顺序
+            sessions[best.session.id]
+        }
+        return best
+    }
+
+    @Synchronized
+    fun start(document: Document, anchorOffset: Int): Session {
+        val session = Session(
+            UUID.randomUUID().toString(),
+            document,
+            anchorOffset,
+            prefixHash(document, anchorOffset),
+            lineSuffix(document, anchorOffset)
+        )
+        sessions[session.id] = session
+        while (sessions.size > maxSessions) {
+            sessions.remove(sessions.keys.first())
+        }
+        return session
+    }
+
+    @Synchronized
+    fun complete(session: Session, text: String) {
+        session.text = text
+    }
+
+    @Synchronized
+    fun get(id: String): Session? = sessions[id]
+
+    @Synchronized
+    fun findByRequestId(requestId: String): Session? = sessions.values.firstOrNull { it.requestId == requestId }
+
+    @Synchronized
+    fun contains(session: Session): Boolean = sessions.containsKey(session.id)
+
+    @Synchronized
+    fun remove(session: Session) {
+        sessions.remove(session.id)
+    }
+
+    @Synchronized
+    fun invalidate(document: Document) {
+        sessions.values.removeIf { it.document === document }
+    }
+
+    /**
+     * caret前可能作为锚点的范围内各位置的多项式前缀hash，任意锚点前窗口的hash都能O(1)算出
+     */
+    private class PrefixHashes(document: Document, caretOffset: Int) {
+        private val start = maxOf(0, caretOffset - MAX_TYPE_THROUGH_LENGTH - PREFIX_HASH_WINDOW)
+        private val hashes = LongArray(caretOffset - start + 1)
+
+        init {
+            val text = document.immutableCharSequence
+            for (i in start until caretOffset) {
+                hashes[i - start + 1] = hashes[i - start] * HASH_BASE + text[i].code
+            }
+        }
+
+        fun windowHash(anchorOffset: Int): Long {
+            val windowStart = maxOf(0, anchorOffset - PREFIX_HASH_WINDOW)
+            return hashes[anchorOffset - start] - hashes[windowStart - start] * POWERS[anchorOffset - windowStart]
+        }
+    }
+
+    companion object {
+        /**
+         * 参与hash的锚点前文本长度
+         */
+        private const val PREFIX_HASH_WINDOW = 2048
+
+        /**
+         * 超过该长度的连续输入不再复用
+         */
+        private const val MAX_TYPE_THROUGH_LENGTH = 512
+
+        private const val HASH_BASE = 1_000_003L
+
+        /**
+         * HASH_BASE的各次幂，按2^64取模（Long溢出）
+         */
+        private val POWERS = LongArray(PREFIX_HASH_WINDOW + 1).also {
+            it[0] = 1
+            for (i in 1 until it.size) {
+                it[i] = it[i - 1] * HASH_BASE
+            }
+        }
+
+        /**
+         * 与[PrefixHashes.windowHash]算法一致
+         */
+        private fun prefixHash(document: Document, offset: Int): Long {
+            val text = document.immutableCharSequence
+            var hash = 0L
+            for (i in maxOf(0, offset - PREFIX_HASH_WINDOW) until offset) {
+                hash = hash * HASH_BASE + text[i].code
+            }
+            return hash
+        }
+
+        private fun lineSuffix(document: Document, offset: Int): String {
+            val lineEnd = document.getLineEndOffset(document.getLineNumber(offset))
+            return document.charsSequence.subSequence(offset, lineEnd).toString()
+        }
+    }
+}
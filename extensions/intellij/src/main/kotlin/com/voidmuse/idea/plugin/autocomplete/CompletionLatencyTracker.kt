@@ -0,0 +1,260 @@
+package com.voidmuse.idea.plugin.autocomplete
+
+import cn.hutool.json.JSONUtil
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.voidmuse.idea.plugin.setting.ConfigurationSettings
+import com.voidmuse.idea.plugin.util.EditorUtils
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 补全耗时的各个阶段
+ * <ul>
+ *     <li>CONTEXT：触发到前后缀和上下文准备好</li>
+ *     <li>BRIDGE：请求发出到结果返回，去掉模型调用的时间，包括通道排队和JCEF往返</li>
+ *     <li>PROVIDER：前端调用模型的时间</li>
+ *     <li>FIRST_CHUNK：触发到流式返回的第一段画出来</li>
+ *     <li>RENDER：结果返回到ghost text画出来</li>
+ *     <li>TOTAL：触发到画出来</li>
+ * </ul>
+ */
+enum class CompletionPhase { CONTEXT, BRIDGE, PROVIDER, FIRST_CHUNK, RENDER, TOTAL }
+
+enum class CompletionOutcome { RENDERED, EMPTY, DISCARDED, CANCELLED, TIMEOUT }
+
+/**
+ * 单次补全的时间线，各时间点为System.nanoTime()，为0表示还没到达该阶段
+ */
+class CompletionTimeline(val language: String) {
+    val triggeredAt: Long = System.nanoTime()
+
+    @Volatile
+    var contextReadyAt = 0L
+        private set
+
+    @Volatile
+    var requestSentAt = 0L
+        private set
+
+    @Volatile
+    var responseAt = 0L
+        private set
+
+    @Volatile
+    var firstChunkAt = 0L
+        private set
+
+    @Volatile
+    var renderedAt = 0L
+        private set
+
+    /**
+     * 前端上报的模型调用耗时，-1表示未上报
+     */
+    @Volatile
+    var providerMs = -1L
+        private set
+
+    @Volatile
+    var contextElements = 0
+        private set
+
+    internal val finished = AtomicBoolean(false)
+
+    fun contextReady(contextElements: Int) {
+        this.contextElements = contextElements
+        contextReadyAt = System.nanoTime()
+    }
+
+    fun requestSent() {
+        requestSentAt = System.nanoTime()
+    }
+
+    fun responseReceived(providerMs: Long) {
+        this.providerMs = providerMs
+        responseAt = System.nanoTime()
+    }
+
+    fun firstChunkRendered() {
+        if (firstChunkAt == 0L) {
+            firstChunkAt = System.nanoTime()
+        }
+    }
+
+    fun rendered() {
+        if (renderedAt == 0L) {
+            renderedAt = System.nanoTime()
+        }
+    }
+
+    /**
+     * 各阶段耗时（微秒），只包含已经到达的阶段
+     */
+    fun phaseDurations(): Map<CompletionPhase, Long> {
+        val durations = linkedMapOf<CompletionPhase, Long>()
+        if (contextReadyAt > 0) {
+            durations[CompletionPhase.CONTEXT] = micros(contextReadyAt - triggeredAt)
+        }
+        if (requestSentAt > 0 && responseAt > 0) {
+            val roundTrip = micros(responseAt - requestSentAt)
+            if (providerMs >= 0) {
+                durations[CompletionPhase.PROVIDER] = providerMs * 1000
+                durations[CompletionPhase.BRIDGE] = (roundTrip - providerMs * 1000).coerceAtLeast(0)
+            } else {
+                durations[CompletionPhase.BRIDGE] = roundTrip
+            }
+        }
+        if (firstChunkAt > 0) {
+            durations[CompletionPhase.FIRST_CHUNK] = micros(firstChunkAt - triggeredAt)
+        }
+        if (responseAt > 0 && renderedAt > 0) {
+            durations[CompletionPhase.RENDER] = micros(renderedAt - responseAt)
+            durations[CompletionPhase.TOTAL] = micros(renderedAt - triggeredAt)
+        }
+        return durations
+    }
+
+    private fun micros(nanos: Long): Long = TimeUnit.NANOSECONDS.toMicros(nanos)
+}
+
+/**
+ * 补全耗时统计：按语言、阶段保留最近的样本，计算p50/p95/p99，通过getCompletionLatencyStats提供给前端。
+ * 开启设置后每次补全的时间线追加写入~/.VoidMuse/completion-trace.jsonl，便于线上排查耗时回退。
+ */
+@Service
+class CompletionLatencyTracker {
+    private val log: Logger = Logger.getInstance(CompletionLatencyTracker::class.java)
+
+    companion object {
+        /**
+         * 全部语言合计
+         */
+        const val ALL_LANGUAGES = "*"
+
+        /**
+         * 每个语言、阶段保留的最近样本数
+         */
+        private const val WINDOW_SIZE = 512
+
+        private const val TRACE_FILE_NAME = "completion-trace.jsonl"
+        private const val MAX_TRACE_FILE_BYTES = 10L * 1024 * 1024
+
+        @JvmStatic
+        fun getInstance(): CompletionLatencyTracker = service()
+    }
+
+    private class LanguageStats {
+        val phases = HashMap<CompletionPhase, SampleWindow>()
+        val outcomes = HashMap<CompletionOutcome, Long>()
+    }
+
+    /**
+     * 定长环形缓冲区，满了之后覆盖最早的样本
+     */
+    private class SampleWindow {
+        private val samples = LongArray(WINDOW_SIZE)
+        private var size = 0
+        private var next = 0
+        var total = 0L
+            private set
+
+        fun add(value: Long) {
+            samples[next] = value
+            next = (next + 1) % WINDOW_SIZE
+            if (size < WINDOW_SIZE) size++
+            total++
+        }
+
+        fun percentiles(): Map<String, Any> {
+            val sorted = samples.copyOf(size)
+            sorted.sort()
+            return linkedMapOf(
+                "count" to total,
+                "p50" to percentile(sorted, 0.50),
+                "p95" to percentile(sorted, 0.95),
+                "p99" to percentile(sorted, 0.99)
+            )
+        }
+
+        /**
+         * nearest-rank，单位毫秒
+         */
+        private fun percentile(sorted: LongArray, p: Double): Double {
+            if (sorted.isEmpty()) return 0.0
+            val rank = Math.ceil(p * sorted.size).toInt().coerceIn(1, sorted.size)
+            return Math.round(sorted[rank - 1] / 100.0) / 10.0
+        }
+    }
+
+    private val stats = HashMap<String, LanguageStats>()
+    private val traceExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("VoidMuse.CompletionTrace", 1)
+
+    /**
+     * 记录一次补全的结果，同一时间线只记录一次
+     */
+    fun finish(timeline: CompletionTimeline?, outcome: CompletionOutcome) {
+        if (timeline == null || !timeline.finished.compareAndSet(false, true)) return
+        val durations = timeline.phaseDurations()
+        synchronized(stats) {
+            for (language in listOf(timeline.language, ALL_LANGUAGES)) {
+                val languageStats = stats.getOrPut(language) { LanguageStats() }
+                languageStats.outcomes.merge(outcome, 1L, Long::plus)
+                durations.forEach { (phase, micros) ->
+                    languageStats.phases.getOrPut(phase) { SampleWindow() }.add(micros)
+                }
+            }
+        }
+        if (ConfigurationSettings.getState().completionLatencyTrace) {
+            traceExecutor.execute { appendTrace(timeline, outcome, durations) }
+        }
+    }
+
+    /**
+     * 按语言汇总的统计，耗时单位毫秒
+     */
+    fun snapshot(): Map<String, Any> {
+        synchronized(stats) {
+            return stats.entries.associate { (language, languageStats) ->
+                language to linkedMapOf(
+                    "outcomes" to languageStats.outcomes.mapKeys { it.key.name },
+                    "phases" to CompletionPhase.values()
+                        .filter { languageStats.phases.containsKey(it) }
+                        .associate { it.name to languageStats.phases[it]!!.percentiles() }
+                )
+            }
+        }
+    }
+
+    fun reset() {
+        synchronized(stats) {
+            stats.clear()
+        }
+    }
+
+    private fun appendTrace(timeline: CompletionTimeline, outcome: CompletionOutcome, durations: Map<CompletionPhase, Long>) {
+        try {
+            val file = File(EditorUtils.getPluginGlobalPath(), TRACE_FILE_NAME)
+            if (file.length() > MAX_TRACE_FILE_BYTES) {
+                // 只保留上一个文件
+                val previous = File(file.path + ".1")
+                previous.delete()
+                file.renameTo(previous)
+            }
+            val record = linkedMapOf<String, Any>(
+                "timestamp" to System.currentTimeMillis(),
+                "language" to timeline.language,
+                "outcome" to outcome.name,
+                "contextElements" to timeline.contextElements
+            )
+            durations.forEach { (phase, micros) -> record[phase.name.lowercase() + "Ms"] = micros / 1000.0 }
+            file.appendText(JSONUtil.toJsonStr(record) + "\n", StandardCharsets.UTF_8)
+        } catch (e: Exception) {
+            log.warn("append completion trace error", e)
+        }
+    }
+}
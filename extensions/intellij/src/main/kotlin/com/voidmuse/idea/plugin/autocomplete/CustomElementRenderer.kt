@@ -16,7 +16,7 @@ import kotlin.math.ceil
 
 class CustomElementRenderer(
     val editor: Editor,
-    val text: String,
+    var text: String,
 ) : EditorCustomElementRenderer {
     override fun calcWidthInPixels(inlay: Inlay<*>): Int {
         val width = (inlay.editor as EditorImpl).getFontMetrics(Font.PLAIN).stringWidth(this.text)
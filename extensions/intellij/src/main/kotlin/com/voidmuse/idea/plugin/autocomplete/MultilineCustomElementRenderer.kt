@@ -17,7 +17,7 @@ import kotlin.math.max
 
 class MultilineCustomElementRenderer(
     val editor: Editor,
-    val text: String,
+    var text: String,
 ) : EditorCustomElementRenderer {
     override fun calcWidthInPixels(inlay: Inlay<*>): Int {
         val lines = text.lines()
@@ -0,0 +1,150 @@
+package com.voidmuse.idea.plugin.completion
+
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.editor.event.DocumentEvent
+import com.intellij.openapi.editor.event.DocumentListener
+import com.intellij.openapi.util.Key
+import com.voidmuse.idea.plugin.common.EncodingManager
+
+/**
+ * 文档按行的token数索引，随DocumentListener事件增量更新，只重新编码变化的行。
+ * 补全时从光标向前/向后累加行token数切出窗口，只需遍历窗口内的行，不再对整个文档编码、装箱再解码。
+ * 行token数按行单独编码（包含行尾换行符），与整体编码会有少量误差，用于窗口切分足够。
+ */
+class DocumentTokenIndex private constructor(private val document: Document) : DocumentListener {
+
+    /**
+     * 每行的token数，为null表示需要重建
+     */
+    private var lineTokens: IntArray? = null
+    private var changeStartLine = -1
+    private var changeOldEndLine = -1
+
+    /**
+     * 光标前最多maxTokens个token的文本
+     */
+    @Synchronized
+    fun prefixWindow(offset: Int, maxTokens: Int): String {
+        if (offset <= 0) return ""
+        val counts = ensureLineTokens()
+        val text = document.immutableCharSequence
+        val caretLine = document.getLineNumber(offset)
+        val head = text.subSequence(document.getLineStartOffset(caretLine), offset).toString()
+        var budget = maxTokens - countTokens(head)
+        if (budget <= 0) {
+            return EncodingManager.getInstance().truncateText(head, maxTokens, false)
+        }
+        var line = caretLine - 1
+        while (line >= 0 && counts[line] <= budget) {
+            budget -= counts[line]
+            line--
+        }
+        val windowStart = if (line < 0) 0 else document.getLineStartOffset(line + 1)
+        val window = EncodingManager.removeSpecialTokens(text.subSequence(windowStart, offset).toString())
+        if (line < 0 || budget <= 0) {
+            return window
+        }
+        // 放不下的那一行只保留末尾部分
+        val partial = text.subSequence(document.getLineStartOffset(line), windowStart).toString()
+        return EncodingManager.getInstance().truncateText(partial, budget, false) + window
+    }
+
+    /**
+     * 光标后最多maxTokens个token的文本
+     */
+    @Synchronized
+    fun suffixWindow(offset: Int, maxTokens: Int): String {
+        if (offset >= document.textLength) return ""
+        val counts = ensureLineTokens()
+        val text = document.immutableCharSequence
+        val caretLine = document.getLineNumber(offset)
+        val tail = text.subSequence(offset, lineEndWithSeparator(caretLine)).toString()
+        var budget = maxTokens - countTokens(tail)
+        if (budget <= 0) {
+            return EncodingManager.getInstance().truncateText(tail, maxTokens, true)
+        }
+        var line = caretLine + 1
+        while (line < counts.size && counts[line] <= budget) {
+            budget -= counts[line]
+            line++
+        }
+        val windowEnd = if (line >= counts.size) document.textLength else document.getLineStartOffset(line)
+        val window = EncodingManager.removeSpecialTokens(text.subSequence(offset, windowEnd).toString())
+        if (line >= counts.size || budget <= 0) {
+            return window
+        }
+        // 放不下的那一行只保留开头部分
+        val partial = text.subSequence(windowEnd, lineEndWithSeparator(line)).toString()
+        return window + EncodingManager.getInstance().truncateText(partial, budget, true)
+    }
+
+    @Synchronized
+    override fun beforeDocumentChanged(event: DocumentEvent) {
+        if (lineTokens == null || document.isInBulkUpdate) {
+            lineTokens = null
+            return
+        }
+        changeStartLine = document.getLineNumber(event.offset)
+        changeOldEndLine = document.getLineNumber(event.offset + event.oldLength)
+    }
+
+    @Synchronized
+    override fun documentChanged(event: DocumentEvent) {
+        val old = lineTokens ?: return
+        if (document.isInBulkUpdate || changeStartLine < 0) {
+            lineTokens = null
+            return
+        }
+        val newEndLine = document.getLineNumber(event.offset + event.newLength)
+        val oldCount = changeOldEndLine - changeStartLine + 1
+        val newCount = newEndLine - changeStartLine + 1
+        val updated = IntArray(old.size - oldCount + newCount)
+        System.arraycopy(old, 0, updated, 0, changeStartLine)
+        val text = document.immutableCharSequence
+        for (line in changeStartLine..newEndLine) {
+            updated[line] = countLine(text, line)
+        }
+        System.arraycopy(old, changeOldEndLine + 1, updated, newEndLine + 1, old.size - changeOldEndLine - 1)
+        changeStartLine = -1
+        // 行数对不上时退回全量重建
+        lineTokens = if (updated.size == document.lineCount) updated else null
+    }
+
+    private fun ensureLineTokens(): IntArray {
+        lineTokens?.let { return it }
+        val text = document.immutableCharSequence
+        val counts = IntArray(document.lineCount)
+        for (line in counts.indices) {
+            counts[line] = countLine(text, line)
+        }
+        lineTokens = counts
+        return counts
+    }
+
+    private fun countLine(text: CharSequence, line: Int): Int {
+        return countTokens(text.subSequence(document.getLineStartOffset(line), lineEndWithSeparator(line)).toString())
+    }
+
+    private fun lineEndWithSeparator(line: Int): Int {
+        return if (line + 1 < document.lineCount) document.getLineStartOffset(line + 1) else document.textLength
+    }
+
+    private fun countTokens(text: String): Int = EncodingManager.getInstance().countTokens(text)
+
+    companion object {
+        private val KEY = Key.create<DocumentTokenIndex>("VoidMuse.DocumentTokenIndex")
+
+        @JvmStatic
+        fun getInstance(document: Document): DocumentTokenIndex {
+            document.getUserData(KEY)?.let { return it }
+            synchronized(KEY) {
+                document.getUserData(KEY)?.let { return it }
+                val index = DocumentTokenIndex(document)
+                // 索引只被document引用，随document一起回收，不需要单独注销
+                document.addDocumentListener(index)
+                document.putUserData(KEY, index)
+                return index
+            }
+        }
+    }
+}
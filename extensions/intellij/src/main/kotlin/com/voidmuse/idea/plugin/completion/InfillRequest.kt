@@ -3,7 +3,6 @@ package com.voidmuse.idea.plugin.completion
 import com.intellij.openapi.components.service
 import com.intellij.openapi.editor.Document
 import com.intellij.openapi.editor.Editor
-import com.intellij.openapi.util.TextRange
 import com.intellij.psi.PsiElement
 import com.voidmuse.idea.plugin.common.EncodingManager
 import com.voidmuse.idea.plugin.completion.psi.filePath
@@ -21,7 +20,10 @@ class InfillRequest private constructor(
     val editor: Editor,
 ) {
 
-    data class FileDetails(val fileContent: String, val fileExtension: String? = null)
+    /**
+     * @param fileContent 文档的不可变快照，不复制整个文本，需要时再按范围截取
+     */
+    data class FileDetails(val fileContent: CharSequence, val fileExtension: String? = null)
 
     class Builder {
         private val prefix: String
@@ -40,12 +42,10 @@ class InfillRequest private constructor(
             type: CompletionType = CompletionType.MULTI_LINE
         ) {
             this.editor = editor
-            prefix =
-                document.getText(TextRange(0, caretOffset))
-                    .truncateText(MAX_PROMPT_TOKENS, false)
-            suffix =
-                document.getText(TextRange(caretOffset, document.textLength))
-                    .truncateText(MAX_PROMPT_TOKENS)
+            // 按行token索引切窗口，只处理窗口内的文本
+            val tokenIndex = DocumentTokenIndex.getInstance(document)
+            prefix = tokenIndex.prefixWindow(caretOffset, MAX_PROMPT_TOKENS)
+            suffix = tokenIndex.suffixWindow(caretOffset, MAX_PROMPT_TOKENS)
             this.caretOffset = caretOffset
             this.stopTokens = getStopTokens(type)
         }
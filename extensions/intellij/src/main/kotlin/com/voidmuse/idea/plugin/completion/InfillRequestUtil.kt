@@ -3,52 +3,64 @@ package com.voidmuse.idea.plugin.completion
 import com.intellij.openapi.components.service
 import com.intellij.openapi.diagnostic.thisLogger
 import com.intellij.openapi.editor.Editor
-import com.voidmuse.idea.plugin.common.EncodingManager
 import com.voidmuse.idea.plugin.completion.psi.CompletionContextService
-import com.voidmuse.idea.plugin.completion.psi.readText
+import org.jetbrains.concurrency.CancellablePromise
 
 object InfillRequestUtil {
     private val logger = thisLogger()
 
     fun buildInfillRequest(editor: Editor, type: CompletionType): InfillRequest {
         val caretOffset = editor.caretModel.offset
-        val infillRequestBuilder = InfillRequest.Builder(editor.document, editor, caretOffset, type)
-            .fileDetails(
-                InfillRequest.FileDetails(
-                    editor.document.text,
-                    editor.virtualFile.extension
-                )
-            )
+        val infillRequestBuilder = newInfillRequestBuilder(editor, caretOffset, type)
 
         editor.project ?: return infillRequestBuilder.build()
 
-        getInfillContext(editor, caretOffset)?.let { infillRequestBuilder.context(it) }
+        service<CompletionContextService>().findContext(editor, caretOffset)
+            ?.let { infillRequestBuilder.context(truncateContext(it)) }
 
         return infillRequestBuilder.build()
     }
 
-    private fun getInfillContext(
+    /**
+     * 在EDT上同步截取前后缀，上下文在后台non-blocking解析，完成后得到完整请求。
+     * 上下文解析失败或被取消时，请求不带上下文
+     */
+    fun buildInfillRequestAsync(
         editor: Editor,
-        caretOffset: Int
-    ): InfillContext? {
-        val infillContext = service<CompletionContextService>().findContext(editor, caretOffset) ?: return null
-        val caretInEnclosingElement =
-            caretOffset - infillContext.enclosingElement.psiElement.textRange.startOffset
-        val entireText = infillContext.enclosingElement.psiElement.readText()
-        val prefix = entireText.take(caretInEnclosingElement)
-        val suffix =
-            if (entireText.length < caretInEnclosingElement) "" else entireText.takeLast(
-                entireText.length - caretInEnclosingElement
+        type: CompletionType,
+        onReady: (InfillRequest) -> Unit
+    ): CancellablePromise<InfillContext?>? {
+        val caretOffset = editor.caretModel.offset
+        val infillRequestBuilder = newInfillRequestBuilder(editor, caretOffset, type)
+        if (editor.project == null) {
+            onReady(infillRequestBuilder.build())
+            return null
+        }
+        val promise = service<CompletionContextService>().findContextAsync(editor, caretOffset)
+        promise.onProcessed { context ->
+            context?.let { infillRequestBuilder.context(truncateContext(it)) }
+            onReady(infillRequestBuilder.build())
+        }
+        return promise
+    }
+
+    private fun newInfillRequestBuilder(editor: Editor, caretOffset: Int, type: CompletionType): InfillRequest.Builder {
+        return InfillRequest.Builder(editor.document, editor, caretOffset, type)
+            .fileDetails(
+                InfillRequest.FileDetails(
+                    editor.document.immutableCharSequence,
+                    editor.virtualFile.extension
+                )
             )
-        return truncateContext(prefix + suffix, infillContext)
     }
 
-    private fun truncateContext(prompt: String, infillContext: InfillContext): InfillContext {
-        var promptTokens = EncodingManager.getInstance().countTokens(prompt)
+    private fun truncateContext(infillContext: InfillContext): InfillContext {
+        // prompt就是外层元素的完整文本，直接复用已缓存的token数
+        var promptTokens = infillContext.enclosingElement.tokens
         val truncatedContextElements = infillContext.contextElements.takeWhile {
             promptTokens += it.tokens
             promptTokens <= MAX_PROMPT_TOKENS
         }.toSet()
         return InfillContext(infillContext.enclosingElement, truncatedContextElements)
     }
-}
\ No newline at end of file
+}
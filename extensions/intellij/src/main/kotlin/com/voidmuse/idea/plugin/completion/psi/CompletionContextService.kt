@@ -4,18 +4,52 @@ import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.components.Service
 import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.util.Key
+import com.intellij.openapi.util.ModificationTracker
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiManager
+import com.intellij.psi.util.CachedValue
+import com.intellij.psi.util.CachedValueProvider
+import com.intellij.psi.util.CachedValuesManager
+import com.intellij.psi.util.PsiModificationTracker
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.voidmuse.idea.plugin.common.EncodingManager
 import com.voidmuse.idea.plugin.completion.InfillContext
+import org.jetbrains.concurrency.AsyncPromise
+import org.jetbrains.concurrency.CancellablePromise
 
 @Service(Service.Level.PROJECT)
 class CompletionContextService {
 
     companion object {
-        private val CONTEXT_FINDERS = mapOf(
-            "JAVA" to JavaContextFinder::class.java
+        private val CONTEXT_FINDERS: Map<String, Class<out LanguageContextFinder>> = mapOf(
+            "JAVA" to JavaContextFinder::class.java,
+            "kotlin" to ReferenceContextFinder::class.java,
+            "Python" to ReferenceContextFinder::class.java,
+            "JavaScript" to ReferenceContextFinder::class.java,
+            "ECMAScript 6" to ReferenceContextFinder::class.java,
+            "JSX Harmony" to ReferenceContextFinder::class.java,
+            "TypeScript" to ReferenceContextFinder::class.java,
+            "TypeScript JSX" to ReferenceContextFinder::class.java
         )
+
+        /**
+         * 单次上下文解析的时间上限，超出后使用已解析的部分
+         */
+        private const val CONTEXT_TIME_BUDGET_MS = 150L
+
+        private val TOKEN_COUNT_KEY = Key.create<CachedValue<Int>>("VoidMuse.ContextTokenCount")
+        private val CONTEXT_KEY = Key.create<CachedValue<InfillContext>>("VoidMuse.InfillContext")
+
+        /**
+         * 元素的token数，缓存在元素上，所在文件修改后失效；被引用的类很少变化，基本每次都能命中
+         */
+        fun cachedTokenCount(element: PsiElement): Int {
+            return CachedValuesManager.getCachedValue(element, TOKEN_COUNT_KEY) {
+                val dependency: Any = element.containingFile ?: PsiModificationTracker.MODIFICATION_COUNT
+                CachedValueProvider.Result.create(EncodingManager.getInstance().countTokens(element.text), dependency)
+            }
+        }
     }
 
     /**
@@ -24,23 +58,79 @@ class CompletionContextService {
      * and returns the context with the relevant enclosing [PsiElement] and a set of source code [PsiElement]s.
      */
     fun findContext(editor: Editor, offset: Int): InfillContext? {
-        return ReadAction.compute<InfillContext, Throwable> { val psiFile = PsiManager.getInstance(editor.project!!).findFile(editor.virtualFile!!)!!
-            val psiElement = psiFile.findElementAt(offset) ?: return@compute null
-            val contextFinderClass = CONTEXT_FINDERS[psiElement.language.id]
-                ?: // No context finder for the language implemented yet
-                return@compute null
-            val contextFinder = ApplicationManager.getApplication().getService(contextFinderClass)
-                ?: // A context finder for the language exists but not available in the used IDE
-                return@compute null
-            val context = contextFinder.findContext(psiElement)
-            val encodingManager = EncodingManager.getInstance()
-            context.enclosingElement.tokens =
-                encodingManager.countTokens(context.enclosingElement.psiElement.text)
-            context.contextElements.forEach {
-                it.tokens = encodingManager.countTokens(it.psiElement.text)
+        return ReadAction.compute<InfillContext, Throwable> {
+            findContextInReadAction(editor, offset)
+        }
+    }
+
+    /**
+     * 在后台以non-blocking read action解析上下文，不阻塞写操作；
+     * 文档发生变化或同一编辑器发起新的解析时，本次解析作废
+     */
+    fun findContextAsync(editor: Editor, offset: Int): CancellablePromise<InfillContext?> {
+        val project = editor.project ?: return AsyncPromise<InfillContext?>().apply { setResult(null) }
+        val document = editor.document
+        val modificationStamp = document.modificationStamp
+        return ReadAction.nonBlocking<InfillContext?> {
+            findContextInReadAction(editor, offset)
+        }
+            // 自动触发时文档通常还没提交，等PSI和文档一致后再按offset查找元素
+            .withDocumentsCommitted(project)
+            .expireWhen { editor.isDisposed || document.modificationStamp != modificationStamp }
+            .coalesceBy(this, editor)
+            .submit(AppExecutorUtil.getAppExecutorService())
+    }
+
+    private fun findContextInReadAction(editor: Editor, offset: Int): InfillContext? {
+        val project = editor.project ?: return null
+        val virtualFile = editor.virtualFile ?: return null
+        val psiFile = PsiManager.getInstance(project).findFile(virtualFile) ?: return null
+        val psiElement = psiFile.findElementAt(offset) ?: return null
+        val contextFinderClass = CONTEXT_FINDERS[psiElement.language.id]
+            ?: // No context finder for the language implemented yet
+            return null
+        val contextFinder = ApplicationManager.getApplication().getService(contextFinderClass)
+            ?: // A context finder for the language exists but not available in the used IDE
+            return null
+
+        // 解析结果按外层方法/类缓存，外层元素所在文件变化后失效；超出时间预算的部分结果不缓存。
+        // provider会在之后重新计算时复用，只能依赖外层元素本身，时间预算在每次计算时新建
+        val enclosingElement = contextFinder.findEnclosingElement(psiElement)
+        val context = CachedValuesManager.getCachedValue(enclosingElement, CONTEXT_KEY) {
+            val budget = ContextBudget(CONTEXT_TIME_BUDGET_MS)
+            val resolved = contextFinder.findEnclosedContext(enclosingElement, budget)
+            val dependency: Any = if (budget.exceeded) {
+                ModificationTracker.EVER_CHANGED
+            } else {
+                EnclosingElementTracker(enclosingElement, resolved.contextElements.map { it.psiElement })
             }
-            return@compute context
+            CachedValueProvider.Result.create(resolved, dependency)
         }
+        context.enclosingElement.tokens = cachedTokenCount(context.enclosingElement.psiElement)
+        context.contextElements.forEach {
+            it.tokens = cachedTokenCount(it.psiElement)
+        }
+        return context
+    }
+}
 
+/**
+ * 上下文缓存的失效依据，只看外层元素所在的文件，不用每次输入都会变化的全局PSI计数：
+ * 外层元素或已解析出的声明失效、所在文件修改后计数变化，编辑其它文件时缓存仍然有效。
+ */
+private class EnclosingElementTracker(
+    private val enclosingElement: PsiElement,
+    private val resolved: List<PsiElement>
+) : ModificationTracker {
+
+    override fun getModificationCount(): Long {
+        if (!enclosingElement.isValid || resolved.any { !it.isValid }) {
+            return INVALID
+        }
+        return enclosingElement.containingFile?.modificationStamp ?: INVALID
+    }
+
+    companion object {
+        private const val INVALID = -1L
     }
 }
@@ -0,0 +1,32 @@
+package com.voidmuse.idea.plugin.completion.psi
+
+import com.intellij.openapi.progress.ProgressManager
+import java.util.concurrent.TimeUnit
+
+/**
+ * 上下文解析的时间预算。遍历PSI时定期检查，超时后停止遍历并返回已收集的部分结果，
+ * 同时检查当前ProgressIndicator，文档变更或请求被取消时及时退出。
+ */
+class ContextBudget(timeoutMs: Long = UNLIMITED_MS) {
+
+    private val deadline: Long =
+        if (timeoutMs == UNLIMITED_MS) Long.MAX_VALUE else System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+
+    /**
+     * 是否因为超时而提前结束，此时结果不完整，不应缓存
+     */
+    var exceeded: Boolean = false
+        private set
+
+    fun isExhausted(): Boolean {
+        ProgressManager.checkCanceled()
+        if (!exceeded && deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            exceeded = true
+        }
+        return exceeded
+    }
+
+    companion object {
+        const val UNLIMITED_MS = Long.MAX_VALUE
+    }
+}
@@ -1,6 +1,7 @@
 package com.voidmuse.idea.plugin.completion.psi
 
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.roots.JdkUtils
 import com.intellij.psi.*
 import com.intellij.psi.impl.source.PsiClassReferenceType
@@ -20,10 +21,15 @@ class JavaContextFinder : LanguageContextFinder {
      * Finds enclosing [PsiMethod] or [PsiClass] of [psiElement] and
      * determines source code files of all referenced classes or methods.
      */
-    override fun findContext(psiElement: PsiElement): InfillContext {
-        val enclosingElement = findEnclosingElement(psiElement)
-        val relevantElements = findRelevantElements(enclosingElement, enclosingElement)
-        val psiTargets = relevantElements.map { findPsiTarget(it) }.flatten().distinct()
+    override fun findContext(psiElement: PsiElement): InfillContext = findContext(psiElement, ContextBudget())
+
+    override fun findEnclosedContext(enclosingElement: PsiElement, budget: ContextBudget): InfillContext {
+        val relevantElements = findRelevantElements(enclosingElement, enclosingElement, budget)
+        val psiTargets = mutableSetOf<PsiTarget>()
+        for (element in relevantElements) {
+            if (budget.isExhausted()) break
+            psiTargets.addAll(findPsiTarget(element))
+        }
         val sourceElements = psiTargets.mapNotNull { findSourceElement(it) }
         return InfillContext(
             ContextElement(enclosingElement),
@@ -31,7 +37,7 @@ class JavaContextFinder : LanguageContextFinder {
         )
     }
 
-    private fun findEnclosingElement(psiElement: PsiElement): PsiElement =
+    override fun findEnclosingElement(psiElement: PsiElement): PsiElement =
         findEnclosingContext(psiElement)
             ?: PsiTreeUtil.prevCodeLeaf(psiElement)?.let { findEnclosingContext(it) } ?: psiElement
 
@@ -41,18 +47,28 @@ class JavaContextFinder : LanguageContextFinder {
 
     private fun findRelevantElements(
         psiElement: Collection<PsiElement>,
-        rootElement: PsiElement
-    ): Set<PsiElement> = psiElement.map { findRelevantElements(it, rootElement) }.flatten()
+        rootElement: PsiElement,
+        budget: ContextBudget
+    ): Set<PsiElement> = psiElement.map { findRelevantElements(it, rootElement, budget) }.flatten()
         .distinctBy { it.text }.toSet()
 
     /**
      * Finds relevant [PsiTypeElement]s and [PsiMethodCallExpression]s that are used inside of [psiElement].
      * If [psiElement] is a [PsiMethod] inside of a [PsiClass] it also adds all class and instance fields.
      */
-    fun findRelevantElements(psiElement: PsiElement, rootElement: PsiElement): Set<PsiElement> {
+    fun findRelevantElements(
+        psiElement: PsiElement,
+        rootElement: PsiElement,
+        budget: ContextBudget = ContextBudget()
+    ): Set<PsiElement> {
         val resultSet = mutableSetOf<PsiElement>()
         psiElement.accept(object : PsiRecursiveElementWalkingVisitor() {
             override fun visitElement(element: PsiElement) {
+                if (budget.isExhausted()) {
+                    // 超出时间预算，返回已收集的部分
+                    stopWalking()
+                    return
+                }
                 when (element) {
                     is PsiTypeElement, is PsiMethodCallExpression -> resultSet.add(element)
                     is PsiMethod -> {
@@ -68,7 +84,8 @@ class JavaContextFinder : LanguageContextFinder {
                             resultSet.addAll(
                                 findRelevantElements(
                                     (element.parent as PsiClass).allFields.toSet(),
-                                    rootElement
+                                    rootElement,
+                                    budget
                                 )
                             )
                         }
@@ -78,6 +95,8 @@ class JavaContextFinder : LanguageContextFinder {
                     else -> {
                         try {
                             super.visitElement(element)
+                        } catch (e: ProcessCanceledException) {
+                            throw e
                         } catch (e: Throwable) {
                             log.warn("JavaContextFinder super.visitElement error.", e)
                             // Log or handle the exception accordingly
@@ -8,4 +8,22 @@ interface LanguageContextFinder {
      * Determines relevant enclosing [PsiElement] and [PsiElement]s relevant to the context and returns their source code [PsiElement].
      */
     fun findContext(psiElement: PsiElement): InfillContext
-}
\ No newline at end of file
+
+    /**
+     * Same as [findContext], but stops walking once [budget] is exhausted and returns what was collected so far.
+     */
+    fun findContext(psiElement: PsiElement, budget: ContextBudget): InfillContext =
+        findEnclosedContext(findEnclosingElement(psiElement), budget)
+
+    /**
+     * Resolves the context of an element returned by [findEnclosingElement]. Only depends on [enclosingElement],
+     * so the result can be cached on it.
+     */
+    fun findEnclosedContext(enclosingElement: PsiElement, budget: ContextBudget): InfillContext =
+        findContext(enclosingElement)
+
+    /**
+     * The element the context of [psiElement] depends on. Resolved contexts are cached per enclosing element.
+     */
+    fun findEnclosingElement(psiElement: PsiElement): PsiElement = psiElement
+}
@@ -0,0 +1,96 @@
+package com.voidmuse.idea.plugin.completion.psi
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.psi.*
+import com.voidmuse.idea.plugin.completion.ContextElement
+import com.voidmuse.idea.plugin.completion.InfillContext
+import com.voidmuse.idea.plugin.completion.MAX_PROMPT_TOKENS
+
+/**
+ * 不依赖具体语言PSI的上下文查找，用于Kotlin、Python、JavaScript/TypeScript等没有专门实现的语言。
+ * <ul>
+ *     <li>外层元素：最近的跨多行的具名声明（函数、类等）</li>
+ *     <li>上下文：外层元素内所有[PsiReference]解析到的、位于项目源码中的声明</li>
+ * </ul>
+ * 遍历和解析受[ContextBudget]的时间预算约束，收集的上下文累计token数不超过[MAX_PROMPT_TOKENS]。
+ */
+class ReferenceContextFinder : LanguageContextFinder {
+    private val log: Logger = Logger.getInstance(ReferenceContextFinder::class.java)
+
+    companion object {
+        /**
+         * 单个外层元素最多收集的上下文声明数
+         */
+        private const val MAX_CONTEXT_ELEMENTS = 32
+    }
+
+    override fun findContext(psiElement: PsiElement): InfillContext = findContext(psiElement, ContextBudget())
+
+    override fun findEnclosedContext(enclosingElement: PsiElement, budget: ContextBudget): InfillContext {
+        val fileIndex = ProjectFileIndex.getInstance(enclosingElement.project)
+        val enclosingRange = enclosingElement.textRange
+        val enclosingFile = enclosingElement.containingFile
+
+        var remainingTokens = MAX_PROMPT_TOKENS - CompletionContextService.cachedTokenCount(enclosingElement)
+        val targets = linkedSetOf<PsiElement>()
+        val visitedReferences = mutableSetOf<String>()
+
+        enclosingElement.accept(object : PsiRecursiveElementWalkingVisitor() {
+            override fun visitElement(element: PsiElement) {
+                if (budget.isExhausted() || remainingTokens <= 0 || targets.size >= MAX_CONTEXT_ELEMENTS) {
+                    stopWalking()
+                    return
+                }
+                for (reference in element.references) {
+                    // 同名引用只解析一次
+                    if (!visitedReferences.add(reference.canonicalText)) continue
+                    val target = resolve(reference)?.navigationElement ?: continue
+                    if (!target.isValid || targets.contains(target)) continue
+                    // 外层元素内部的局部声明已经在prompt里
+                    if (target.containingFile == enclosingFile && enclosingRange.contains(target.textRange ?: continue)) continue
+                    val virtualFile = target.containingFile?.virtualFile ?: continue
+                    if (!fileIndex.isInContent(virtualFile)) continue
+
+                    val tokens = CompletionContextService.cachedTokenCount(target)
+                    if (tokens > remainingTokens) continue
+                    remainingTokens -= tokens
+                    targets.add(target)
+                }
+                super.visitElement(element)
+            }
+        })
+
+        return InfillContext(
+            ContextElement(enclosingElement),
+            targets.map { ContextElement(it) }.toSet()
+        )
+    }
+
+    override fun findEnclosingElement(psiElement: PsiElement): PsiElement {
+        var current: PsiElement? = psiElement
+        while (current != null && current !is PsiFile) {
+            if (current is PsiNameIdentifierOwner && current.textContains('\n')) {
+                return current
+            }
+            current = current.parent
+        }
+        return psiElement
+    }
+
+    private fun resolve(reference: PsiReference): PsiElement? {
+        return try {
+            if (reference is PsiPolyVariantReference) {
+                reference.multiResolve(false).firstOrNull { it.isValidResult }?.element
+            } else {
+                reference.resolve()
+            }
+        } catch (e: ProcessCanceledException) {
+            throw e
+        } catch (e: Throwable) {
+            log.warn("ReferenceContextFinder resolve error.", e)
+            null
+        }
+    }
+}
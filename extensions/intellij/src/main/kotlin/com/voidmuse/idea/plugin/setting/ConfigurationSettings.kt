@@ -25,4 +25,6 @@ class ConfigurationSettingsState : BaseState() {
     var environmentMode: String? by string("auto") // auto, development, production
     var customDevUrl: String? by string("http://localhost:3002/")
     var customProdUrl: String? by string("http://voidmuse/index.html")
+    var autoTriggerCompletion by property(true)
+    var completionLatencyTrace by property(false)
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package com.voidmuse.idea.plugin.editor;
+
+import com.intellij.openapi.editor.Document;
+import com.voidmuse.idea.plugin.editor.diff.DiffLine;
+import com.voidmuse.idea.plugin.editor.diff.DiffLineType;
+import com.voidmuse.idea.plugin.editor.diff.HistogramDiff;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiffApplyEngineTest {
+
+    @Test
+    public void computeHunksTracksOldAndNewLines() {
+        List<DiffLine> diffLines = Arrays.asList(
+                new DiffLine(DiffLineType.SAME, "a"),
+                new DiffLine(DiffLineType.OLD, "b"),
+                new DiffLine(DiffLineType.NEW, "x"),
+                new DiffLine(DiffLineType.NEW, "y"),
+                new DiffLine(DiffLineType.SAME, "c"),
+                new DiffLine(DiffLineType.OLD, "d"),
+                new DiffLine(DiffLineType.SAME, "e"));
+
+        List<DiffApplyEngine.Hunk> hunks = DiffApplyEngine.computeHunks(diffLines, 10);
+
+        assertEquals(Arrays.asList(
+                new DiffApplyEngine.Hunk(11, 11, List.of("b"), List.of("x", "y")),
+                new DiffApplyEngine.Hunk(13, 14, List.of("d"), List.of())), hunks);
+    }
+
+    @Test
+    public void replacesMultipleHunks() {
+        assertEquals("a\nx\ny\nc\ne\n", apply("a\nb\nc\nd\ne\n", "a\nx\ny\nc\ne\n"));
+    }
+
+    @Test
+    public void insertsAfterLastLineWithoutTrailingNewline() {
+        assertEquals("a\nb\nc", apply("a\nb", "a\nb\nc"));
+    }
+
+    @Test
+    public void deletesLastLineWithoutTrailingNewline() {
+        assertEquals("a", apply("a\nb", "a"));
+        assertEquals("a", apply("a\nb\nc", "a"));
+    }
+
+    @Test
+    public void replacesLastLineWithoutTrailingNewline() {
+        assertEquals("a\nx\ny", apply("a\nb", "a\nx\ny"));
+    }
+
+    @Test
+    public void keepsTrailingNewlineWhenEditingLastLine() {
+        assertEquals("a\nb\nc\n", apply("a\nb\n", "a\nb\nc\n"));
+        assertEquals("a\n", apply("a\nb\n", "a\n"));
+    }
+
+    @Test
+    public void deletesFirstLine() {
+        assertEquals("b\nc", apply("a\nb\nc", "b\nc"));
+    }
+
+    @Test
+    public void appliesToEmptyDocument() {
+        assertEquals("x", apply("", "x"));
+        assertEquals("", apply("x", ""));
+    }
+
+    @Test
+    public void rejectRestoresOriginal() {
+        String[][] cases = {
+                {"a\nb", "a"},
+                {"a\nb", "a\nb\nc"},
+                {"a\nb", "a\nx\ny"},
+                {"a\nb\n", "a\n"},
+                {"a\nb\n", "a\nb\nc\n"},
+                {"a\nb\nc\nd\ne\n", "a\nx\ny\nc\ne\n"},
+                {"a\nb\nc", "b\nc"},
+                {"", "x"},
+                {"x", ""},
+        };
+        for (String[] pair : cases) {
+            List<DiffLine> diffLines = HistogramDiff.diff(Arrays.asList(pair[0].split("\n")),
+                    Arrays.asList(pair[1].split("\n")));
+            List<DiffApplyEngine.Hunk> hunks = DiffApplyEngine.computeHunks(diffLines, 0);
+            Document document = document(pair[0]);
+            DiffApplyEngine.replaceHunks(document, hunks);
+            assertEquals(pair[1], document.getText());
+
+            // 和逐块拒绝一样按块在新文档中的位置撤销，从后往前撤销时前面块的位置不变
+            for (int i = hunks.size() - 1; i >= 0; i--) {
+                DiffApplyEngine.Hunk hunk = hunks.get(i);
+                DiffApplyEngine.revert(document, hunk.newStartLine(), hunk.addedLines(), hunk.deletedLines());
+            }
+            assertEquals(pair[0] + " -> " + pair[1], pair[0], document.getText());
+        }
+    }
+
+    @Test
+    public void appliesWithinRangeStartingAtLine() {
+        String document = "head\na\nb\ntail";
+        List<DiffLine> diffLines = HistogramDiff.diff(List.of("a", "b"), List.of("a", "x"));
+
+        Document doc = document(document);
+        DiffApplyEngine.replaceHunks(doc, DiffApplyEngine.computeHunks(diffLines, 1));
+
+        assertEquals("head\na\nx\ntail", doc.getText());
+    }
+
+    /**
+     * 和DiffStreamHandler一样按行拆分后diff，再应用到原文
+     */
+    private static String apply(String original, String modified) {
+        List<DiffLine> diffLines = HistogramDiff.diff(Arrays.asList(original.split("\n")),
+                Arrays.asList(modified.split("\n")));
+        Document document = document(original);
+        DiffApplyEngine.replaceHunks(document, DiffApplyEngine.computeHunks(diffLines, 0));
+        return document.getText();
+    }
+
+    /**
+     * 只实现DiffApplyEngine用到的方法，行号规则和IDE的Document一致：末尾换行后还有一个空行
+     */
+    private static Document document(String initialText) {
+        StringBuilder text = new StringBuilder(initialText);
+        return (Document) Proxy.newProxyInstance(Document.class.getClassLoader(), new Class<?>[]{Document.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getText" -> text.toString();
+                    case "getTextLength" -> text.length();
+                    case "getLineCount" -> text.length() == 0 ? 0 : lineStarts(text).length;
+                    case "getLineStartOffset" -> lineStarts(text)[(int) args[0]];
+                    case "getLineEndOffset" -> lineEnd(text, (int) args[0]);
+                    case "replaceString" -> {
+                        text.replace((int) args[0], (int) args[1], args[2].toString());
+                        yield null;
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static int[] lineStarts(CharSequence text) {
+        return IntStream.concat(IntStream.of(0),
+                IntStream.range(0, text.length()).filter(i -> text.charAt(i) == '\n').map(i -> i + 1))
+                .toArray();
+    }
+
+    private static int lineEnd(CharSequence text, int line) {
+        int[] starts = lineStarts(text);
+        return line + 1 < starts.length ? starts[line + 1] - 1 : text.length();
+    }
+}
@@ -0,0 +1,124 @@
+package com.voidmuse.idea.plugin.editor.diff;
+
+import com.github.difflib.DiffUtils;
+import com.github.difflib.patch.DeltaType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramDiffTest {
+
+    @Test
+    public void matchesMyersEditCountOnSmallInputs() {
+        List<List<List<String>>> cases = List.of(
+                List.of(lines(), lines("a", "b")),
+                List.of(lines("a", "b"), lines()),
+                List.of(lines("a", "b", "c"), lines("a", "b", "c")),
+                List.of(lines("a", "b", "c"), lines("a", "x", "c")),
+                List.of(lines("a", "b", "c", "d"), lines("b", "c", "d", "e")),
+                List.of(lines("a", "b", "c", "d", "e"), lines("d", "e", "a", "b", "c")),
+                List.of(lines("x", "a", "b", "y", "c"), lines("a", "b", "z", "c", "w")),
+                List.of(lines("{", "a", "}", "{", "b", "}"), lines("{", "a", "}", "{", "c", "}", "{", "b", "}")),
+                List.of(lines("a", "b"), lines("c", "d")));
+        for (List<List<String>> pair : cases) {
+            List<String> oldLines = pair.get(0);
+            List<String> newLines = pair.get(1);
+
+            List<DiffLine> diff = HistogramDiff.diff(oldLines, newLines);
+
+            assertReconstructs(oldLines, newLines, diff);
+            assertEquals(oldLines + " -> " + newLines, myersDeleted(oldLines, newLines), count(diff, DiffLineType.OLD));
+            assertEquals(oldLines + " -> " + newLines, myersInserted(oldLines, newLines), count(diff, DiffLineType.NEW));
+        }
+    }
+
+    @Test
+    public void randomInputsReconstructAndNeverBeatMyers() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            List<String> oldLines = randomLines(random);
+            List<String> newLines = randomLines(random);
+
+            List<DiffLine> diff = HistogramDiff.diff(oldLines, newLines);
+
+            assertReconstructs(oldLines, newLines, diff);
+            assertTrue(count(diff, DiffLineType.OLD) >= myersDeleted(oldLines, newLines));
+        }
+    }
+
+    @Test
+    public void frequentLinesFallBackToMyers() {
+        List<String> oldLines = new ArrayList<>(Collections.nCopies(100, "}"));
+        List<String> newLines = new ArrayList<>(oldLines);
+        newLines.add(50, "{");
+        newLines.remove(10);
+
+        List<DiffLine> diff = HistogramDiff.diff(oldLines, newLines);
+
+        assertReconstructs(oldLines, newLines, diff);
+        assertEquals(myersDeleted(oldLines, newLines), count(diff, DiffLineType.OLD));
+        assertEquals(myersInserted(oldLines, newLines), count(diff, DiffLineType.NEW));
+    }
+
+    @Test
+    public void deletionComesBeforeInsertion() {
+        List<DiffLine> diff = HistogramDiff.diff(lines("a", "b", "c"), lines("a", "x", "c"));
+
+        assertEquals(Arrays.asList(
+                new DiffLine(DiffLineType.SAME, "a"),
+                new DiffLine(DiffLineType.OLD, "b"),
+                new DiffLine(DiffLineType.NEW, "x"),
+                new DiffLine(DiffLineType.SAME, "c")), diff);
+    }
+
+    private static List<String> lines(String... lines) {
+        return Arrays.asList(lines);
+    }
+
+    private static List<String> randomLines(Random random) {
+        int size = random.nextInt(8);
+        List<String> lines = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            lines.add(String.valueOf((char) ('a' + random.nextInt(4))));
+        }
+        return lines;
+    }
+
+    private static long myersDeleted(List<String> oldLines, List<String> newLines) {
+        return DiffUtils.diff(oldLines, newLines).getDeltas().stream()
+                .filter(delta -> delta.getType() != DeltaType.EQUAL)
+                .mapToLong(delta -> delta.getSource().size()).sum();
+    }
+
+    private static long myersInserted(List<String> oldLines, List<String> newLines) {
+        return DiffUtils.diff(oldLines, newLines).getDeltas().stream()
+                .filter(delta -> delta.getType() != DeltaType.EQUAL)
+                .mapToLong(delta -> delta.getTarget().size()).sum();
+    }
+
+    private static void assertReconstructs(List<String> oldLines, List<String> newLines, List<DiffLine> diff) {
+        List<String> oldSide = new ArrayList<>();
+        List<String> newSide = new ArrayList<>();
+        for (DiffLine line : diff) {
+            if (line.type() != DiffLineType.NEW) {
+                oldSide.add(line.line());
+            }
+            if (line.type() != DiffLineType.OLD) {
+                newSide.add(line.line());
+            }
+        }
+        assertEquals(oldLines, oldSide);
+        assertEquals(newLines, newSide);
+    }
+
+    private static long count(List<DiffLine> diff, DiffLineType type) {
+        return diff.stream().filter(line -> line.type() == type).count();
+    }
+}
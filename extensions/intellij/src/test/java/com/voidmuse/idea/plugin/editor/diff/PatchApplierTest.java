@@ -0,0 +1,168 @@
+package com.voidmuse.idea.plugin.editor.diff;
+
+import com.github.difflib.patch.PatchFailedException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class PatchApplierTest {
+
+    private static final String ORIGINAL = String.join("\n",
+            "class A {",
+            "    void a() {",
+            "        int x = 1;",
+            "    }",
+            "",
+            "    void b() {",
+            "        int y = 2;",
+            "    }",
+            "}",
+            "");
+
+    @Test
+    public void appliesUnifiedDiffAtShiftedPosition() throws PatchFailedException {
+        String patch = String.join("\n",
+                "--- a/A.java",
+                "+++ b/A.java",
+                "@@ -20,3 +20,3 @@",
+                "     void b() {",
+                "-        int y = 2;",
+                "+        int y = 3;",
+                "     }",
+                "");
+
+        String result = PatchApplier.apply(ORIGINAL, patch);
+
+        assertEquals(ORIGINAL.replace("int y = 2;", "int y = 3;"), result);
+    }
+
+    @Test
+    public void locatesHunkIgnoringWhitespaceAndKeepsIndent() throws PatchFailedException {
+        String patch = String.join("\n",
+                "@@ -2,3 +2,3 @@",
+                " void a() {",
+                "-    int x = 1;",
+                "+    int x = 10;",
+                " }");
+
+        String result = PatchApplier.apply(ORIGINAL, patch);
+
+        assertEquals(ORIGINAL.replace("int x = 1;", "int x = 10;"), result);
+    }
+
+    @Test
+    public void dropsUnmatchedOuterContextWithFuzz() throws PatchFailedException {
+        String patch = String.join("\n",
+                "@@ -6,4 +6,4 @@",
+                " void renamed() {",
+                "-        int y = 2;",
+                "+        int y = 4;",
+                "     }",
+                " // not in file");
+
+        String result = PatchApplier.apply(ORIGINAL, patch);
+
+        assertEquals(ORIGINAL.replace("int y = 2;", "int y = 4;"), result);
+    }
+
+    @Test
+    public void rejectsOverlappingHunks() {
+        String patch = String.join("\n",
+                "<<<<<<< SEARCH",
+                "        int x = 1;",
+                "    }",
+                "=======",
+                "        int x = 5;",
+                "    }",
+                ">>>>>>> REPLACE",
+                "<<<<<<< SEARCH",
+                "    }",
+                "",
+                "    void b() {",
+                "=======",
+                "    }",
+                "    void b() {",
+                ">>>>>>> REPLACE");
+
+        assertThrows(PatchFailedException.class, () -> PatchApplier.apply(ORIGINAL, patch));
+    }
+
+    @Test
+    public void appliesSearchReplaceBlocksOutOfOrder() throws PatchFailedException {
+        String patch = String.join("\n",
+                "<<<<<<< SEARCH",
+                "        int y = 2;",
+                "=======",
+                "        int y = 20;",
+                ">>>>>>> REPLACE",
+                "<<<<<<< SEARCH",
+                "        int x = 1;",
+                "=======",
+                "        int x = 10;",
+                ">>>>>>> REPLACE");
+
+        String result = PatchApplier.apply(ORIGINAL, patch);
+
+        assertEquals(ORIGINAL.replace("int x = 1;", "int x = 10;").replace("int y = 2;", "int y = 20;"), result);
+    }
+
+    @Test
+    public void preservesMissingTrailingNewline() throws PatchFailedException {
+        String original = "a\nb\nc";
+        String patch = String.join("\n",
+                "@@ -2,2 +2,2 @@",
+                " b",
+                "-c",
+                "\\ No newline at end of file",
+                "+d",
+                "\\ No newline at end of file");
+
+        assertEquals("a\nb\nd", PatchApplier.apply(original, patch));
+        assertEquals("a\nb\nd\n", PatchApplier.apply(original + "\n", patch));
+    }
+
+    @Test
+    public void insertsAndDeletesLastLineWithoutTrailingNewline() throws PatchFailedException {
+        String original = "a\nb";
+        String insert = String.join("\n",
+                "@@ -2,1 +2,2 @@",
+                " b",
+                "+c");
+        String delete = String.join("\n",
+                "@@ -1,2 +1,1 @@",
+                " a",
+                "-b");
+
+        assertEquals("a\nb\nc", PatchApplier.apply(original, insert));
+        assertEquals("a", PatchApplier.apply(original, delete));
+    }
+
+    @Test
+    public void doubleDashLinesInsideHunkAreNotFileHeader() throws PatchFailedException {
+        String original = "x\n-- old comment\ny\n";
+        String patch = String.join("\n",
+                "--- a/query.sql",
+                "+++ b/query.sql",
+                "@@ -1,3 +1,3 @@",
+                " x",
+                "--- old comment",
+                "+++ new comment",
+                " y",
+                "");
+
+        assertEquals("x\n++ new comment\ny\n", PatchApplier.apply(original, patch));
+    }
+
+    @Test
+    public void emptySearchBlockAppendsAtEnd() throws PatchFailedException {
+        String patch = String.join("\n",
+                "<<<<<<< SEARCH",
+                "=======",
+                "tail();",
+                ">>>>>>> REPLACE");
+
+        assertEquals("head();\ntail();\n", PatchApplier.apply("head();\n", patch));
+        assertEquals("head();\ntail();", PatchApplier.apply("head();", patch));
+    }
+}
@@ -0,0 +1,128 @@
+package com.voidmuse.idea.plugin.editor.diff;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingLineDifferTest {
+
+    private static final List<String> OLD = Arrays.asList(
+            "int a() {",
+            "    int result = 1;",
+            "    return result;",
+            "}",
+            "int b() {",
+            "    int result = 2;",
+            "    return result;",
+            "}");
+
+    @Test
+    public void repeatedLineBeforeOriginalDoesNotDeleteSkippedLines() {
+        List<String> newLines = new ArrayList<>(Arrays.asList(
+                "int c() {",
+                "    return result;",
+                "}"));
+        newLines.addAll(OLD);
+
+        List<DiffLine> diff = streamLineByLine(OLD, newLines);
+
+        assertEquals(0, count(diff, DiffLineType.OLD));
+        assertEquals(3, count(diff, DiffLineType.NEW));
+        assertEquals(OLD.size(), count(diff, DiffLineType.SAME));
+        assertReconstructs(OLD, newLines, diff);
+    }
+
+    @Test
+    public void noOldLineIsEmittedBeforeAlignmentIsConfirmed() {
+        StreamingLineDiffer differ = new StreamingLineDiffer(OLD);
+        List<DiffLine> emitted = new ArrayList<>();
+        emitted.addAll(differ.push("int c() {\n"));
+        emitted.addAll(differ.push("    return result;\n"));
+        emitted.addAll(differ.push("}\n"));
+
+        assertEquals(0, count(emitted, DiffLineType.OLD));
+    }
+
+    @Test
+    public void confirmedSkipDeletesLines() {
+        List<String> old = Arrays.asList("alpha();", "beta();", "gamma();", "delta();", "epsilon();");
+        List<String> newLines = Arrays.asList("alpha();", "delta();", "epsilon();");
+
+        List<DiffLine> diff = streamLineByLine(old, newLines);
+
+        assertEquals(2, count(diff, DiffLineType.OLD));
+        assertEquals(0, count(diff, DiffLineType.NEW));
+        assertReconstructs(old, newLines, diff);
+    }
+
+    @Test
+    public void chunkBoundariesDoNotChangeResult() {
+        List<String> newLines = new ArrayList<>(Arrays.asList("int c() {", "    return result;", "}"));
+        newLines.addAll(OLD.subList(0, 3));
+        newLines.add("    log(result);");
+        newLines.addAll(OLD.subList(3, OLD.size()));
+        String text = String.join("\n", newLines);
+
+        StreamingLineDiffer whole = new StreamingLineDiffer(OLD);
+        List<DiffLine> expected = new ArrayList<>(whole.push(text));
+        expected.addAll(whole.finish());
+
+        StreamingLineDiffer byChar = new StreamingLineDiffer(OLD);
+        List<DiffLine> actual = new ArrayList<>();
+        for (int i = 0; i < text.length(); i++) {
+            actual.addAll(byChar.push(text.substring(i, i + 1)));
+        }
+        actual.addAll(byChar.finish());
+
+        assertEquals(expected, actual);
+        assertReconstructs(OLD, newLines, actual);
+    }
+
+    @Test
+    public void whitespaceOnlyChangeReplacesLine() {
+        List<String> old = Arrays.asList("foo();", "bar();");
+        List<String> newLines = Arrays.asList("  foo();", "bar();");
+
+        List<DiffLine> diff = streamLineByLine(old, newLines);
+
+        assertEquals(Arrays.asList(
+                new DiffLine(DiffLineType.OLD, "foo();"),
+                new DiffLine(DiffLineType.NEW, "  foo();"),
+                new DiffLine(DiffLineType.SAME, "bar();")), diff);
+    }
+
+    private static List<DiffLine> streamLineByLine(List<String> oldLines, List<String> newLines) {
+        StreamingLineDiffer differ = new StreamingLineDiffer(oldLines);
+        List<DiffLine> diff = new ArrayList<>();
+        for (String line : newLines) {
+            diff.addAll(differ.push(line + "\n"));
+        }
+        diff.addAll(differ.finish());
+        return diff;
+    }
+
+    private static void assertReconstructs(List<String> oldLines, List<String> newLines, List<DiffLine> diff) {
+        List<String> oldSide = new ArrayList<>();
+        List<String> newSide = new ArrayList<>();
+        for (DiffLine line : diff) {
+            if (line.type() != DiffLineType.NEW) {
+                oldSide.add(line.line());
+            }
+            if (line.type() != DiffLineType.OLD) {
+                newSide.add(line.line());
+            }
+        }
+        assertEquals(oldLines, oldSide);
+        assertEquals(newLines, newSide);
+        assertTrue(diff.size() >= Math.max(oldLines.size(), newLines.size()));
+    }
+
+    private static long count(List<DiffLine> diff, DiffLineType type) {
+        return diff.stream().filter(line -> line.type() == type).count();
+    }
+}
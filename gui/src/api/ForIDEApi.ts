@@ -27,6 +27,7 @@ interface CodeCompletionArg {
     language: string;
     modelConfig: ModelItem; 
     contexts: any;
+    stream?: boolean;
 }
 
 interface AddToChatArg {
@@ -78,6 +79,13 @@ interface RegisterMcpserverArg {
     config: string;
 }
 
+interface CancelRequestArg {
+    requestIds: string[];
+}
+
+// In-flight code completions, so superseded requests can be aborted from the IDE
+const completionControllers = new Map<string, AbortController>();
+
 // Route to corresponding method based on methodName
 const callJavaScript = async (message: string): Promise<void> => {
     try {
@@ -111,6 +119,9 @@ const callJavaScript = async (message: string): Promise<void> => {
             case 'registerMcpserver':
                 registerMcpserver(parsedMessage.arg);
                 break;
+            case 'cancelRequest':
+                cancelRequest(parsedMessage.arg);
+                break;
             default:
                 throw new Error(`Undefined methodName: ${parsedMessage.methodName}`); // Handle undefined methodName
         }
@@ -173,14 +184,45 @@ const codeCompletion = async (arg: CodeCompletionArg): Promise<void> => {
         const language = arg.language;
         const contexts = arg.contexts;
 
-        const modelConfig = await storageService.getSelectedModelConfig();
-        const codeCompletion = await aiModelService.codeComplete(prefix, suffix, language, contexts, modelConfig);
-        handleJsCallback(requestId, codeCompletion);
+        const controller = new AbortController();
+        completionControllers.set(requestId, controller);
+        try {
+            const modelConfig = await storageService.getSelectedModelConfig();
+            const providerStart = performance.now();
+            // Stream partial text so the IDE can show ghost text before the model finishes
+            const onChunk = arg.stream
+                ? (chunk: string) => {
+                    if (!controller.signal.aborted) {
+                        sendCompletionChunk(requestId, chunk);
+                    }
+                }
+                : undefined;
+            const codeCompletion = await aiModelService.codeComplete(prefix, suffix, language, contexts, modelConfig, controller.signal, onChunk);
+            if (!controller.signal.aborted) {
+                // Report provider time so the IDE can separate it from bridge time
+                handleJsCallback(requestId, codeCompletion, { providerMs: Math.round(performance.now() - providerStart) });
+            }
+        } finally {
+            completionControllers.delete(requestId);
+        }
     } catch (error) {
+        if ((error as Error)?.name === 'AbortError') {
+            return;
+        }
         console.error('codeCompletion error:', arg, error);
     }
 }
 
+const cancelRequest = (arg: CancelRequestArg): void => {
+    for (const requestId of arg.requestIds || []) {
+        const controller = completionControllers.get(requestId);
+        if (controller) {
+            controller.abort();
+            completionControllers.delete(requestId);
+        }
+    }
+}
+
 const addToChat = (arg: AddToChatArg): void => {
     try {
         // Use base64Decode function to decode
@@ -290,12 +332,12 @@ const registerMcpserver = async (arg: RegisterMcpserverArg): Promise<void> => {
 }
 
 // Callback to native: Native calling js cannot get results in real time, can only get through callback
-const handleJsCallback = (requestId: string, data: any): void => {
+const handleJsCallback = (requestId: string, data: any, extra?: Record<string, any>): void => {
     // Only trigger callback when requestId is not empty
     if (requestId) {
         const param = JSON.stringify({
             'methodName': "handleJsCallback",
-            'arg': { 'requestId': requestId, 'data': data } // 将数据传入
+            'arg': { ...extra, 'requestId': requestId, 'data': data } // 将数据传入
         });
         console.log('handleJsCallback, param', param.substring(0, 150));
         // Check if window.callJava method exists, call only if it exists
@@ -327,5 +369,22 @@ const handleJsCallback = (requestId: string, data: any): void => {
     }
 }
 
+// Push a partial code completion to the IDE, the full text still arrives through handleJsCallback
+const sendCompletionChunk = (requestId: string, chunk: string): void => {
+    if (!requestId || !chunk || typeof window.callJava !== 'function') {
+        return;
+    }
+    window.callJava({
+        request: JSON.stringify({
+            'methodName': 'completionChunk',
+            'arg': { 'requestId': requestId, 'chunk': chunk }
+        }),
+        onSuccess: function (response: any) {
+        },
+        onFailure: function (error_code: any, error_message: any) {
+        }
+    });
+}
+
 // Register callJavaScript method to global
 window.callJavaScript = callJavaScript;
\ No newline at end of file
@@ -2,6 +2,13 @@ interface PendingRequest {
     onSuccess: (response: any) => void;
     onFailure: (error_code: string, error_message: string) => void;
     retryCount?: number;
+    queryId?: number;
+}
+
+interface QueuedRequest {
+    data: any;
+    onSuccess: (response: any) => void;
+    onFailure: (error_code: string, error_message: string) => void;
 }
 
 // Message manager
@@ -14,6 +21,10 @@ const IdeaAsyncMgr = {
     maxRetries: 2, // 最大重试次数
     retryDelay: 1000, // 重试延迟（毫秒）
 
+    // Requests queued in the current tick, flushed as one batchCallJava round trip
+    batchQueue: [] as QueuedRequest[],
+    batchFlushScheduled: false,
+
     // Send message and register callback
     sendMessage: function (data: any, onSuccess: (response: any) => void, onFailure: (error_code: string, error_message: string) => void): void {
         // Generate unique identifier
@@ -24,8 +35,9 @@ const IdeaAsyncMgr = {
 
         data["requestId"] = requestId;
 
-        // Send message
-        window.callJava({
+        // Send message; the query stays pending on the Java side until the result is ready,
+        // so its id can be passed to callJavaCancel to stop the work
+        const queryId = window.callJava({
             request: JSON.stringify(data),
             onSuccess: function (response) {
                 console.log(`window.callJava callback success:, data: ${JSON.stringify(data)}, response:${JSON.stringify(response)}`);
@@ -36,6 +48,11 @@ const IdeaAsyncMgr = {
             }
         });
 
+        const pending = this.pendingRequests.get(requestId);
+        if (pending) {
+            pending.queryId = queryId;
+        }
+
         // Set timeout
         setTimeout(() => {
             if (this.pendingRequests.has(requestId)) {
@@ -45,6 +62,85 @@ const IdeaAsyncMgr = {
             }
         }, 30000); // 30 seconds timeout
     },
+
+    // Queue a message; all messages queued in the same tick are sent in a single CefQuery
+    // and each result is streamed back through callJavaCallback with its own requestId
+    enqueueMessage: function (data: any, onSuccess: (response: any) => void, onFailure: (error_code: string, error_message: string) => void): void {
+        this.batchQueue.push({ data, onSuccess, onFailure });
+        if (!this.batchFlushScheduled) {
+            this.batchFlushScheduled = true;
+            setTimeout(() => this.flushBatch(), 0);
+        }
+    },
+
+    // Cancel a pending request: stops the running work in the plugin and rejects the caller
+    cancelRequest: function (requestId: string): void {
+        const pending = this.pendingRequests.get(requestId);
+        if (!pending) {
+            return;
+        }
+        this.pendingRequests.delete(requestId);
+        if (pending.queryId !== undefined && typeof window.callJavaCancel === 'function') {
+            window.callJavaCancel(pending.queryId);
+        } else {
+            // Batched requests share one query, cancel them individually by requestId
+            window.callJava({
+                request: JSON.stringify({ methodName: 'cancelCallJava', arg: { requestIds: [requestId] } }),
+                onSuccess: function () {},
+                onFailure: function (error_code, error_message) {
+                    console.error('window.callJava cancel failed:', error_code, error_message);
+                }
+            });
+        }
+        pending.onFailure('CANCELLED', 'Request cancelled');
+    },
+
+    flushBatch: function (): void {
+        const queued = this.batchQueue;
+        this.batchQueue = [];
+        this.batchFlushScheduled = false;
+        if (queued.length === 0) {
+            return;
+        }
+        if (queued.length === 1) {
+            this.sendMessage(queued[0].data, queued[0].onSuccess, queued[0].onFailure);
+            return;
+        }
+
+        const requests = queued.map(({ data, onSuccess, onFailure }) => {
+            const requestId = Math.random().toString(36).substring(2, 15);
+            this.pendingRequests.set(requestId, { onSuccess, onFailure });
+            data["requestId"] = requestId;
+            return data;
+        });
+
+        window.callJava({
+            request: JSON.stringify({ methodName: 'batchCallJava', arg: { requests, stream: true } }),
+            onSuccess: function () {
+                console.log(`window.callJava batch sent, size: ${requests.length}`);
+            },
+            onFailure: (error_code, error_message) => {
+                console.error('window.callJava batch failed:', error_code, error_message);
+                requests.forEach(({ requestId }) => {
+                    const pending = this.pendingRequests.get(requestId);
+                    if (pending) {
+                        pending.onFailure(error_code + '', error_message);
+                        this.pendingRequests.delete(requestId);
+                    }
+                });
+            }
+        });
+
+        setTimeout(() => {
+            requests.forEach(({ requestId }) => {
+                const pending = this.pendingRequests.get(requestId);
+                if (pending) {
+                    pending.onFailure('TIMEOUT', 'Request timed out');
+                    this.pendingRequests.delete(requestId);
+                }
+            });
+        }, this.requestTimeout);
+    },
 };
 
 // Export IdeaAsyncMgr
@@ -62,8 +158,21 @@ const callJavaCallback = async (message: string): Promise<void> => {
         const parsedMessage: CallbackMessage = JSON.parse(message); // Convert json string to object
         if (parsedMessage.requestId && IdeaAsyncMgr.pendingRequests.has(parsedMessage.requestId)) {
             const { onSuccess, onFailure } = IdeaAsyncMgr.pendingRequests.get(parsedMessage.requestId)!;
-            onSuccess(parsedMessage.arg.response);
             IdeaAsyncMgr.pendingRequests.delete(parsedMessage.requestId);
+            if (parsedMessage.arg.blobId) {
+                // Large responses are not inlined; fetch them from the plugin's resource handler
+                try {
+                    const blobResponse = await fetch(`http://voidmuse/blob/${parsedMessage.arg.blobId}`);
+                    if (!blobResponse.ok) {
+                        throw new Error(`HTTP ${blobResponse.status}`);
+                    }
+                    onSuccess(await blobResponse.text());
+                } catch (error) {
+                    onFailure('BLOB_FETCH_FAILED', String(error));
+                }
+                return;
+            }
+            onSuccess(parsedMessage.arg.response);
         }
     } catch (error) {
         console.error('callJavaCallback error occurred:', error); // Catch and print error information
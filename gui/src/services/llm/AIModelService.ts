@@ -1,4 +1,4 @@
-import { generateText, embed, embedMany, LanguageModelUsage } from 'ai';
+import { generateText, streamText, embed, embedMany, LanguageModelUsage } from 'ai';
 import { ModelFactory } from './ModelFactory';
 import { ModelItem } from '@/types/models';
 import { EditCodeContext, TokenUsage } from './types';
@@ -164,7 +164,9 @@ export class AIModelService {
         suffix: string,
         language: string,
         contexts: EditCodeContext[],
-        modelConfig: ModelItem
+        modelConfig: ModelItem,
+        abortSignal?: AbortSignal,
+        onChunk?: (chunk: string) => void
     ): Promise<string> {
         const model = ModelFactory.createModel(modelConfig);
         
@@ -193,10 +195,13 @@ export class AIModelService {
         const prompt = PromptService.getCodeCompletePrompt(promptParams);
         
         try {
-            const { text, usage, providerMetadata } = await generateText({
-                model,
-                prompt
-            });
+            const { text, usage, providerMetadata } = onChunk
+                ? await this.streamCodeComplete(model, prompt, abortSignal, onChunk)
+                : await generateText({
+                    model,
+                    prompt,
+                    abortSignal
+                });
             
             // 检查空输出
             if (!text || text.trim().length === 0) {
@@ -210,12 +215,38 @@ export class AIModelService {
 
             return text;
         } catch (error) {
+            if (abortSignal?.aborted) {
+                // Superseded by a newer completion, nothing to report
+                throw error;
+            }
             const additionalInfo = `Provider: ${modelConfig.provider || 'unknown'}\nURL: ${modelConfig.baseUrl || 'default'}`;
             errorReportingService.reportErrorWithException('AI Code Complete Failed', error, 'error', 'AIModelService', additionalInfo);
             throw error;
         }
     }
     
+    /**
+     * Stream a code completion, passing each text delta to onChunk
+     */
+    private async streamCodeComplete(
+        model: ReturnType<typeof ModelFactory.createModel>,
+        prompt: string,
+        abortSignal: AbortSignal | undefined,
+        onChunk: (chunk: string) => void
+    ): Promise<{ text: string; usage: LanguageModelUsage; providerMetadata: any }> {
+        const result = streamText({
+            model,
+            prompt,
+            abortSignal
+        });
+        let text = '';
+        for await (const delta of result.textStream) {
+            text += delta;
+            onChunk(delta);
+        }
+        return { text, usage: await result.usage, providerMetadata: await result.providerMetadata };
+    }
+
     /**
      * Optimize codebase prompt
      * @param userInput User input
@@ -1,4 +1,5 @@
 import { IStorage } from "../StorageInterface";
+import IdeaAsyncMgr from "../../api/IdeaAsyncMgr";
 
 /**
  * IDEA platform storage implementation
@@ -20,23 +21,21 @@ export class IntelliJStorage implements IStorage {
       }
       
       const data = { 'methodName': 'getPersistentState', 'arg': { 'key': key } };
-      const param = JSON.stringify(data);
-      
+
+      // Reads issued in the same tick are coalesced into one batchCallJava round trip
       return new Promise((resolve, reject) => {
-        window.callJava!({
-          request: param,
-          onSuccess: function (response: any) {
+        IdeaAsyncMgr.enqueueMessage(data,
+          function (response: any) {
             try {
               resolve(response ? JSON.parse(response) : null);
             } catch (e) {
               resolve(response);
             }
           },
-          onFailure: function (error_code: number, error_message: string) {
+          function (error_code: string, error_message: string) {
             console.error('IDEA storage read error:', error_code, error_message);
             reject(new Error('Failed to read storage data'));
-          }
-        });
+          });
       });
     } catch (error) {
       console.error('IDEA storage read error:', error);
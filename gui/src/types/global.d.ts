@@ -19,7 +19,12 @@ interface Window {
     request: string;
     onSuccess: (response: string) => void;
     onFailure: (error_code: number, error_message: string) => void;
-  }) => void;
+  }) => number;
+
+  /**
+   * Cancels a pending callJava query by the id returned from callJava
+   */
+  callJavaCancel?: (queryId: number) => void;
 
   /**
    * JavaScript callback API